@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that writes an index of the Wicket components, behaviors and sessions
+ * compiled with it to {@value #LOCATION}. wicket-cdi loads the index when the application is
+ * configured, so it can build and validate the injection targets of the indexed classes before the
+ * first request and skip them altogether for classes without injection points.
+ * <p>
+ * Every concrete subclass of {@code org.apache.wicket.Component},
+ * {@code org.apache.wicket.behavior.Behavior} or {@code org.apache.wicket.Session} gets one line
+ * listing the {@code javax.inject.Inject} fields of its hierarchy and whether the hierarchy has
+ * initializer methods or lifecycle callbacks:
+ * 
+ * <pre>
+ * com.example.HomePage fields=com.example.BasePage#users,com.example.HomePage#orders initializers=false callbacks=true
+ * </pre>
+ * 
+ * The processor is picked up by {@code javac} when this jar is on the compile classpath. Classes it
+ * does not see, such as anonymous classes, are discovered at runtime as before.
+ * <p>
+ * Incremental builds only hand the changed classes to the processor, so the entries of an existing
+ * index are kept for every class that is not compiled again and can still be found on the class
+ * path of the build. Entries of classes that have been deleted are dropped.
+ * 
+ * @author igor
+ */
+@SupportedAnnotationTypes("*")
+public class InjectionIndexProcessor extends AbstractProcessor
+{
+	/** location of the index in the class output */
+	public static final String LOCATION = "META-INF/wicket-cdi/injection.index";
+
+	private static final String[] BASE_TYPES = { "org.apache.wicket.Component",
+			"org.apache.wicket.behavior.Behavior", "org.apache.wicket.Session" };
+
+	private static final String INJECT = "javax.inject.Inject";
+	private static final String POST_CONSTRUCT = "javax.annotation.PostConstruct";
+	private static final String PRE_DESTROY = "javax.annotation.PreDestroy";
+
+	private final Map<String, String> entries = new TreeMap<String, String>();
+
+	/** binary names of all classes compiled in this build, indexed or not */
+	private final Set<String> compiled = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		if (roundEnv.processingOver())
+		{
+			write();
+			return false;
+		}
+
+		List<TypeMirror> bases = new ArrayList<TypeMirror>(BASE_TYPES.length);
+		for (String name : BASE_TYPES)
+		{
+			TypeElement base = processingEnv.getElementUtils().getTypeElement(name);
+			if (base != null)
+			{
+				bases.add(processingEnv.getTypeUtils().erasure(base.asType()));
+			}
+		}
+		if (bases.isEmpty())
+		{
+			// wicket is not on the classpath
+			return false;
+		}
+
+		for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements()))
+		{
+			scan(type, bases);
+		}
+
+		// never claim annotations, other processors may need them
+		return false;
+	}
+
+	private void scan(TypeElement type, List<TypeMirror> bases)
+	{
+		compiled.add(getBinaryName(type));
+		if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT))
+		{
+			TypeMirror erased = processingEnv.getTypeUtils().erasure(type.asType());
+			for (TypeMirror base : bases)
+			{
+				if (processingEnv.getTypeUtils().isAssignable(erased, base))
+				{
+					entries.put(getBinaryName(type), describe(type));
+					break;
+				}
+			}
+		}
+		for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements()))
+		{
+			scan(nested, bases);
+		}
+	}
+
+	private String describe(TypeElement type)
+	{
+		StringBuilder fields = new StringBuilder();
+		boolean initializers = false;
+		boolean callbacks = false;
+
+		for (TypeElement t = type; t != null; t = getSuperclass(t))
+		{
+			for (Element member : t.getEnclosedElements())
+			{
+				if (member.getKind() == ElementKind.FIELD && isAnnotated(member, INJECT))
+				{
+					if (fields.length() > 0)
+					{
+						fields.append(',');
+					}
+					fields.append(getBinaryName(t)).append('#').append(member.getSimpleName());
+				}
+				else if (member.getKind() == ElementKind.METHOD ||
+					member.getKind() == ElementKind.CONSTRUCTOR)
+				{
+					initializers |= isAnnotated(member, INJECT);
+					callbacks |= isAnnotated(member, POST_CONSTRUCT) ||
+						isAnnotated(member, PRE_DESTROY);
+				}
+			}
+		}
+
+		return "fields=" + fields + " initializers=" + initializers + " callbacks=" + callbacks;
+	}
+
+	private TypeElement getSuperclass(TypeElement type)
+	{
+		TypeMirror superclass = type.getSuperclass();
+		if (superclass.getKind() != TypeKind.DECLARED)
+		{
+			return null;
+		}
+		return (TypeElement)processingEnv.getTypeUtils().asElement(superclass);
+	}
+
+	private static boolean isAnnotated(Element element, String annotation)
+	{
+		for (AnnotationMirror mirror : element.getAnnotationMirrors())
+		{
+			TypeElement type = (TypeElement)mirror.getAnnotationType().asElement();
+			if (type.getQualifiedName().contentEquals(annotation))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String getBinaryName(TypeElement type)
+	{
+		return processingEnv.getElementUtils().getBinaryName(type).toString();
+	}
+
+	/**
+	 * Reads the entries of the index written by a previous build, skipping classes compiled in
+	 * this build and classes that no longer exist
+	 * 
+	 * @return entries of the existing index
+	 */
+	private Map<String, String> readPrevious()
+	{
+		Map<String, String> previous = new TreeMap<String, String>();
+		try
+		{
+			FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT,
+				"", LOCATION);
+			BufferedReader reader = new BufferedReader(file.openReader(true));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					int space = line.indexOf(' ');
+					if (line.startsWith("#") || space < 0)
+					{
+						continue;
+					}
+					String name = line.substring(0, space);
+					if (!compiled.contains(name) && exists(name))
+					{
+						previous.put(name, line.substring(space + 1));
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// no previous index
+		}
+		catch (IllegalArgumentException e)
+		{
+			// the compiler does not support reading from the class output
+		}
+		return previous;
+	}
+
+	/**
+	 * Tells whether a class of the previous index can still be resolved by this build
+	 * 
+	 * @param binaryName
+	 * @return {@code false} if the class has been deleted
+	 */
+	private boolean exists(String binaryName)
+	{
+		// nested classes are looked up by their canonical name
+		return processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.')) != null;
+	}
+
+	private void write()
+	{
+		Map<String, String> previous = readPrevious();
+		previous.putAll(entries);
+		if (previous.isEmpty())
+		{
+			return;
+		}
+		try
+		{
+			FileObject file = processingEnv.getFiler().createResource(
+				StandardLocation.CLASS_OUTPUT, "", LOCATION);
+			Writer writer = file.openWriter();
+			try
+			{
+				writer.write("# generated by " + getClass().getName() + "\n");
+				for (Map.Entry<String, String> entry : previous.entrySet())
+				{
+					writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+				}
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		catch (IOException e)
+		{
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+				"Could not write " + LOCATION + ": " + e.getMessage());
+		}
+	}
+}
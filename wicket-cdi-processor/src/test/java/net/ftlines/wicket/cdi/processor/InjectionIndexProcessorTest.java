@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link InjectionIndexProcessor}
+ * 
+ * @author igor
+ */
+public class InjectionIndexProcessorTest
+{
+	/**
+	 * Concrete components are indexed with the injected fields of their whole hierarchy
+	 */
+	@Test
+	public void indexesComponents() throws IOException
+	{
+		List<String> index = compile(
+			source("javax.inject.Inject", "package javax.inject; public @interface Inject {}"),
+			source("org.apache.wicket.Component",
+				"package org.apache.wicket; public abstract class Component {}"),
+			source("com.example.BasePage", "package com.example; "
+				+ "public abstract class BasePage extends org.apache.wicket.Component {"
+				+ " @javax.inject.Inject Object users; }"),
+			source("com.example.HomePage", "package com.example; "
+				+ "public class HomePage extends BasePage {"
+				+ " @javax.inject.Inject Object orders;"
+				+ " @javax.inject.Inject void init(Object o) {}"
+				+ " public static class Panel extends org.apache.wicket.Component {} }"),
+			source("com.example.Service", "package com.example; "
+				+ "public class Service { @javax.inject.Inject Object users; }"));
+
+		assertEquals(Arrays.asList(
+			"com.example.HomePage fields=com.example.HomePage#orders,com.example.BasePage#users initializers=true callbacks=false",
+			"com.example.HomePage$Panel fields= initializers=false callbacks=false"), index);
+	}
+
+	/**
+	 * Incremental builds keep the entries of classes that are not compiled again
+	 */
+	@Test
+	public void mergesIncrementalBuilds() throws IOException
+	{
+		JavaFileObject inject = source("javax.inject.Inject",
+			"package javax.inject; public @interface Inject {}");
+		JavaFileObject component = source("org.apache.wicket.Component",
+			"package org.apache.wicket; public abstract class Component {}");
+
+		File output = newOutput();
+		compile(output, inject, component, source("com.example.HomePage",
+			"package com.example; public class HomePage extends org.apache.wicket.Component {}"),
+			source("com.example.Panel", "package com.example; "
+				+ "public class Panel extends org.apache.wicket.Component {}"));
+		List<String> index = compile(output, inject, component, source("com.example.Panel",
+			"package com.example; public class Panel extends org.apache.wicket.Component {"
+				+ " @javax.inject.Inject Object users; }"));
+
+		assertEquals(Arrays.asList(
+			"com.example.HomePage fields= initializers=false callbacks=false",
+			"com.example.Panel fields=com.example.Panel#users initializers=false callbacks=false"),
+			index);
+	}
+
+	/**
+	 * Incremental builds drop the entries of classes that have been deleted
+	 */
+	@Test
+	public void dropsDeletedClasses() throws IOException
+	{
+		JavaFileObject inject = source("javax.inject.Inject",
+			"package javax.inject; public @interface Inject {}");
+		JavaFileObject component = source("org.apache.wicket.Component",
+			"package org.apache.wicket; public abstract class Component {}");
+		JavaFileObject panel = source("com.example.Panel", "package com.example; "
+			+ "public class Panel extends org.apache.wicket.Component {}");
+
+		File output = newOutput();
+		compile(output, inject, component, panel, source("com.example.HomePage",
+			"package com.example; public class HomePage extends org.apache.wicket.Component {"
+				+ " public static class Label extends org.apache.wicket.Component {} }"),
+			source("com.example.OldPage", "package com.example; "
+				+ "public class OldPage extends org.apache.wicket.Component {}"));
+		assertTrue(new File(output, "com/example/OldPage.class").delete());
+		List<String> index = compile(output, inject, component, panel);
+
+		assertEquals(Arrays.asList(
+			"com.example.HomePage fields= initializers=false callbacks=false",
+			"com.example.HomePage$Label fields= initializers=false callbacks=false",
+			"com.example.Panel fields= initializers=false callbacks=false"), index);
+	}
+
+	private List<String> compile(JavaFileObject... sources) throws IOException
+	{
+		return compile(newOutput(), sources);
+	}
+
+	private static File newOutput() throws IOException
+	{
+		File output = File.createTempFile("index", "");
+		assertTrue(output.delete() && output.mkdir());
+		return output;
+	}
+
+	private List<String> compile(File output, JavaFileObject... sources) throws IOException
+	{
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		CompilationTask task = compiler.getTask(null, null, null,
+			Arrays.asList("-d", output.getPath(), "-cp", output.getPath()), null,
+			Arrays.asList(sources));
+		task.setProcessors(Collections.singleton(new InjectionIndexProcessor()));
+		assertTrue(task.call());
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(new File(output,
+			InjectionIndexProcessor.LOCATION)));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (!line.startsWith("#"))
+				{
+					lines.add(line);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static JavaFileObject source(String name, final String code)
+	{
+		return new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') +
+			JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE)
+		{
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors)
+			{
+				return code;
+			}
+		};
+	}
+}
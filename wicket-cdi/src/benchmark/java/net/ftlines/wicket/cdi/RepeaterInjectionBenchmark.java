@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of injecting the 1,000 items of a repeater one by one with injecting them as
+ * one {@link InjectionBatch}, as done during a request when
+ * {@link CdiConfiguration#setBatchInjection(boolean)} is enabled. Each invocation stands for one
+ * render of the repeater.
+ * 
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec
+ * </pre>
+ * 
+ * @author igor
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RepeaterInjectionBenchmark
+{
+	private static final int ROWS = 1000;
+
+	private WeldDeployment weld;
+	private NonContextual<Row> nc;
+
+	@Setup
+	public void setup()
+	{
+		weld = new WeldDeployment(Service.class);
+		nc = NonContextual.of(Row.class, weld.getManager());
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		weld.shutdown();
+	}
+
+	/**
+	 * Every item is injected by the injection target with a creational context of its own
+	 * 
+	 * @return injected items
+	 */
+	@Benchmark
+	public Row[] perItem()
+	{
+		Row[] rows = new Row[ROWS];
+		for (int i = 0; i < ROWS; i++)
+		{
+			rows[i] = new Row();
+			nc.inject(rows[i], InjectionEngine.INJECTION_TARGET, null);
+		}
+		return rows;
+	}
+
+	/**
+	 * The first item is injected by the injection target, the others get a copy of its references
+	 * 
+	 * @return injected items
+	 */
+	@Benchmark
+	public Row[] batched()
+	{
+		InjectionBatch batch = new InjectionBatch();
+		Row[] rows = new Row[ROWS];
+		for (int i = 0; i < ROWS; i++)
+		{
+			rows[i] = new Row();
+			nc.inject(rows[i], InjectionEngine.INJECTION_TARGET, batch);
+		}
+		return rows;
+	}
+
+	/**
+	 * A normal scoped bean
+	 * 
+	 * @author igor
+	 */
+	@ApplicationScoped
+	public static class Service
+	{
+	}
+
+	/**
+	 * Item of the repeater
+	 * 
+	 * @author igor
+	 */
+	public static class Row
+	{
+		@Inject
+		Service service;
+	}
+}
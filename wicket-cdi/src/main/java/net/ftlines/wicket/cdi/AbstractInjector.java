@@ -21,20 +21,29 @@ import org.apache.wicket.util.lang.Args;
 class AbstractInjector
 {
 	private final CdiContainer container;
+	private final InjectionFilter filter;
 
-	public AbstractInjector(CdiContainer container)
+	public AbstractInjector(CdiContainer container, InjectionFilter filter)
 	{
 		Args.notNull(container, "container");
+		Args.notNull(filter, "filter");
 		this.container = container;
+		this.filter = filter;
 	}
 
 	protected <T> void postConstruct(T instance)
 	{
-		container.getNonContextualManager().postConstruct(instance);
+		if (filter.accept(instance.getClass()))
+		{
+			container.getNonContextualManager().postConstruct(instance);
+		}
 	}
 	
 	protected <T> void inject(T instance)
 	{
-		container.getNonContextualManager().inject(instance);
+		if (filter.accept(instance.getClass()))
+		{
+			container.getNonContextualManager().inject(instance);
+		}
 	}
 }
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Fired right after the conversation context of a request is activated, if enabled via {@link CdiConfiguration#setFireConversationEvents(boolean)}. The bean
+ * counterpart of {@link ICdiAwareRequestCycleListener}.
+ * 
+ * @author igor
+ * 
+ */
+public class AfterConversationActivatedEvent
+{
+	private final RequestCycle cycle;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param cycle
+	 */
+	public AfterConversationActivatedEvent(RequestCycle cycle)
+	{
+		this.cycle = cycle;
+	}
+
+	/**
+	 * @return request cycle
+	 */
+	public RequestCycle getCycle()
+	{
+		return cycle;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.PassivationCapable;
+import javax.enterprise.util.AnnotationLiteral;
+
+/**
+ * Table of the normal scoped beans of an application, used by {@link CdiSerializer} to write a
+ * client proxy as the index of its bean.
+ * <p>
+ * Beans are sorted by their passivation id, so every node of a cluster and every restart of the
+ * same deployment builds the same table. The fingerprint of the table is written at the start of
+ * every stream. Streams written against a different table, by an older deployment or another node
+ * of a rolling deploy, are read by looking the beans up by their ids instead.
+ *
+ * @author igor
+ */
+final class BeanTable
+{
+	private final List<Bean<?>> beans;
+	private final String[] ids;
+	private final Map<Bean<?>, Integer> indexes;
+	private final Map<String, Integer> idIndexes;
+	private final int fingerprint;
+
+	/**
+	 * Constructor
+	 *
+	 * @param manager
+	 */
+	@SuppressWarnings("serial")
+	public BeanTable(BeanManager manager)
+	{
+		List<Bean<?>> beans = new ArrayList<Bean<?>>();
+		for (Bean<?> bean : manager.getBeans(Object.class, new AnnotationLiteral<Any>()
+		{
+		}))
+		{
+			if (manager.isNormalScope(bean.getScope()))
+			{
+				beans.add(bean);
+			}
+		}
+		Collections.sort(beans, new Comparator<Bean<?>>()
+		{
+			@Override
+			public int compare(Bean<?> o1, Bean<?> o2)
+			{
+				return getId(o1).compareTo(getId(o2));
+			}
+		});
+
+		int fingerprint = 1;
+		ids = new String[beans.size()];
+		indexes = new HashMap<Bean<?>, Integer>(beans.size() * 2);
+		idIndexes = new HashMap<String, Integer>(beans.size() * 2);
+		for (int i = 0; i < beans.size(); i++)
+		{
+			ids[i] = getId(beans.get(i));
+			indexes.put(beans.get(i), i);
+			idIndexes.put(ids[i], i);
+			fingerprint = 31 * fingerprint + ids[i].hashCode();
+		}
+		this.beans = beans;
+		this.fingerprint = fingerprint;
+	}
+
+	private static String getId(Bean<?> bean)
+	{
+		if (bean instanceof PassivationCapable)
+		{
+			return ((PassivationCapable)bean).getId();
+		}
+		return String.valueOf(bean.getBeanClass()) + sorted(bean.getQualifiers()) +
+			sorted(bean.getTypes());
+	}
+
+	/**
+	 * Set iteration order differs between JVMs, so the ids of beans that are not passivation
+	 * capable are built from sorted names
+	 *
+	 * @param values
+	 * @return names of the values in natural order
+	 */
+	private static List<String> sorted(Collection<?> values)
+	{
+		List<String> names = new ArrayList<String>(values.size());
+		for (Object value : values)
+		{
+			names.add(value instanceof Class ? ((Class<?>)value).getName()
+				: String.valueOf(value));
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * @param bean
+	 * @return index of the bean or {@code -1} if the bean is not in the table
+	 */
+	public int indexOf(Bean<?> bean)
+	{
+		Integer index = indexes.get(bean);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * Looks up a bean by the id it had in the table of another deployment. Beans that are
+	 * passivation capable are found by their passivation id, other beans by their class, qualifiers
+	 * and types.
+	 * 
+	 * @param id
+	 * @return index of the bean or {@code -1} if no bean has the id
+	 */
+	public int indexOf(String id)
+	{
+		Integer index = idIndexes.get(id);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * @param index
+	 * @return id of the bean at the index
+	 */
+	public String getId(int index)
+	{
+		return ids[index];
+	}
+
+	/**
+	 * @param index
+	 * @return bean at the index
+	 */
+	public Bean<?> get(int index)
+	{
+		return beans.get(index);
+	}
+
+	/**
+	 * @return number of beans in the table
+	 */
+	public int size()
+	{
+		return beans.size();
+	}
+
+	/**
+	 * @return hash of the ids of all beans in the table
+	 */
+	public int getFingerprint()
+	{
+		return fingerprint;
+	}
+}
@@ -31,10 +31,12 @@ class BehaviorInjector extends AbstractInjector implements IBehaviorInstantiatio
 	 * Constructor
 	 * 
 	 * @param container
+	 * @param filter
+	 *            decides which instances are injected
 	 */
-	public BehaviorInjector(CdiContainer container)
+	public BehaviorInjector(CdiContainer container, InjectionFilter filter)
 	{
-		super(container);
+		super(container, filter);
 	}
 
 	@Override
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.Serializable;
+
+/**
+ * Snapshot of the statistics of the cache of {@link NonContextual} helpers
+ * 
+ * @see CdiContainer#getCacheStatistics()
+ * @see CdiConfiguration#setCacheSize(int)
+ * @see CdiConfiguration#setCacheStatistics(boolean)
+ * 
+ * @author igor
+ */
+public final class CacheStatistics implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final int size;
+	private final int maxSize;
+	private final int targets;
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+
+	CacheStatistics(int size, int maxSize, int targets, long hits, long misses, long evictions)
+	{
+		this.size = size;
+		this.maxSize = maxSize;
+		this.targets = targets;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	/**
+	 * @return number of classes currently cached
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return maximum number of cached classes or {@code 0} if the cache is unbounded
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return number of injection targets built, including those of evicted classes
+	 */
+	public int getTargets()
+	{
+		return targets;
+	}
+
+	/**
+	 * @return number of lookups of cached classes, only counted while the cache is bounded or
+	 *         statistics are enabled
+	 */
+	public long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups of classes that were not cached
+	 */
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return number of classes evicted from the cache
+	 */
+	public long getEvictions()
+	{
+		return evictions;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CacheStatistics [size=" + size + ", maxSize=" + maxSize + ", targets=" + targets +
+			", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+}
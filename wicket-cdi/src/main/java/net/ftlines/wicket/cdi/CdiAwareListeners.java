@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.request.cycle.IRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.cycle.RequestCycleListenerCollection;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Registry of the {@link ICdiAwareRequestCycleListener}s notified when a conversation is activated
+ * and deactivated.
+ * <p>
+ * The request cycle listeners of the application, including those nested in
+ * {@link RequestCycleListenerCollection}s, are scanned the first time listeners are notified and
+ * the cdi aware ones are kept in a flat array, which is dispatched to without looking at the
+ * application again. The array is rebuilt on the next notification after a listener is added to
+ * or removed from this registry, or after {@link #invalidate()} is called. Applications that
+ * change their request cycle listeners once requests are being served must call
+ * {@link #invalidate()} afterwards. Listeners that are not registered with the application can be
+ * added to this registry directly.
+ * <p>
+ * Listeners that are beans can observe {@link AfterConversationActivatedEvent} and
+ * {@link BeforeConversationDeactivatedEvent} instead, see
+ * {@link CdiConfiguration#setFireConversationEvents(boolean)}.
+ * 
+ * @see CdiContainer#getCdiAwareListeners()
+ * 
+ * @author igor
+ */
+public class CdiAwareListeners
+{
+	private static final ICdiAwareRequestCycleListener[] EMPTY = new ICdiAwareRequestCycleListener[0];
+
+	private final Application application;
+	private final List<ICdiAwareRequestCycleListener> added = new ArrayList<ICdiAwareRequestCycleListener>();
+
+	/** result of the last scan, {@code null} until the application is scanned again */
+	private volatile ICdiAwareRequestCycleListener[] listeners;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param application
+	 *            application whose request cycle listeners are scanned
+	 */
+	public CdiAwareListeners(Application application)
+	{
+		Args.notNull(application, "application");
+
+		this.application = application;
+	}
+
+	/**
+	 * Adds a listener that is not registered with the application
+	 * 
+	 * @param listener
+	 * @return {@code this} for chaining
+	 */
+	public synchronized CdiAwareListeners add(ICdiAwareRequestCycleListener listener)
+	{
+		Args.notNull(listener, "listener");
+
+		added.add(listener);
+		listeners = null;
+		return this;
+	}
+
+	/**
+	 * Removes a listener added to this registry by {@link #add(ICdiAwareRequestCycleListener)}.
+	 * Listeners registered with the application are not affected, remove them from the
+	 * application's request cycle listeners and call {@link #invalidate()} instead.
+	 * 
+	 * @param listener
+	 * @return {@code this} for chaining
+	 */
+	public synchronized CdiAwareListeners remove(ICdiAwareRequestCycleListener listener)
+	{
+		Args.notNull(listener, "listener");
+
+		added.remove(listener);
+		listeners = null;
+		return this;
+	}
+
+	/**
+	 * Discards the listeners found by the last scan so the request cycle listeners of the
+	 * application are scanned again on the next notification. Must be called after listeners have
+	 * been added to or removed from the application.
+	 */
+	public synchronized void invalidate()
+	{
+		listeners = null;
+	}
+
+	/**
+	 * @return listeners that are notified
+	 */
+	public ICdiAwareRequestCycleListener[] getListeners()
+	{
+		return current().clone();
+	}
+
+	/**
+	 * @return listeners to notify, scanning the application if the last scan has been discarded
+	 */
+	private ICdiAwareRequestCycleListener[] current()
+	{
+		ICdiAwareRequestCycleListener[] current = listeners;
+		if (current == null)
+		{
+			current = scan();
+		}
+		return current;
+	}
+
+	private synchronized ICdiAwareRequestCycleListener[] scan()
+	{
+		ICdiAwareRequestCycleListener[] current = listeners;
+		if (current != null)
+		{
+			// scanned by a racing thread
+			return current;
+		}
+		List<ICdiAwareRequestCycleListener> found = new ArrayList<ICdiAwareRequestCycleListener>();
+		collect(application.getRequestCycleListeners(), found);
+		for (ICdiAwareRequestCycleListener listener : added)
+		{
+			if (!found.contains(listener))
+			{
+				found.add(listener);
+			}
+		}
+		current = found.isEmpty() ? EMPTY
+			: found.toArray(new ICdiAwareRequestCycleListener[found.size()]);
+		listeners = current;
+		return current;
+	}
+
+	private static void collect(Iterable<IRequestCycleListener> collection,
+		List<ICdiAwareRequestCycleListener> found)
+	{
+		for (IRequestCycleListener listener : collection)
+		{
+			if (listener instanceof ICdiAwareRequestCycleListener && !found.contains(listener))
+			{
+				found.add((ICdiAwareRequestCycleListener)listener);
+			}
+			if (listener instanceof RequestCycleListenerCollection)
+			{
+				collect((RequestCycleListenerCollection)listener, found);
+			}
+		}
+	}
+
+	/**
+	 * Notifies listeners that a conversation has been activated
+	 * 
+	 * @param cycle
+	 */
+	void fireOnAfterConversationActivated(RequestCycle cycle)
+	{
+		for (ICdiAwareRequestCycleListener listener : current())
+		{
+			listener.onAfterConversationActivated(cycle);
+		}
+	}
+
+	/**
+	 * Notifies listeners that a conversation is about to be deactivated
+	 * 
+	 * @param cycle
+	 */
+	void fireOnBeforeConversationDeactivated(RequestCycle cycle)
+	{
+		for (ICdiAwareRequestCycleListener listener : current())
+		{
+			listener.onBeforeConversationDeactivated(cycle);
+		}
+	}
+}
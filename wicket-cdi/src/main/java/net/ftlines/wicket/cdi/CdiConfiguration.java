@@ -19,6 +19,7 @@ package net.ftlines.wicket.cdi;
 import javax.enterprise.inject.spi.BeanManager;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.application.IClassResolver;
 import org.apache.wicket.request.cycle.RequestCycleListenerCollection;
 import org.apache.wicket.util.lang.Args;
 import org.jboss.seam.conversation.spi.SeamConversationContextFactory;
@@ -34,11 +35,28 @@ public class CdiConfiguration
 	private BeanManager beanManager;
 	private IConversationPropagation propagation = ConversationPropagation.NONBOOKMARKABLE;
 	private INonContextualManager nonContextualManager;
+	private InjectionEngine injectionEngine = InjectionEngine.INJECTION_TARGET;
 
 	private boolean injectComponents = true;
 	private boolean injectApplication = true;
 	private boolean injectSession = true;
 	private boolean injectBehaviors = true;
+	private boolean transientInjection = false;
+	private boolean useInjectionIndex = true;
+	private WarmUp warmUp;
+	private int cacheSize = 0;
+	private boolean cacheStatistics = false;
+	private InjectionFilter injectionFilter = InjectionFilter.newDefault();
+	private boolean batchInjection = false;
+	private boolean deferSessionInjection = false;
+	private boolean fireConversationEvents = false;
+	private ConversationActivation conversationActivation = ConversationActivation.EAGER;
+	private IRequestHandlerClassifier handlerClassifier = new RequestHandlerClassifier();
+	private IConversationStore conversationStore;
+	private int maxConversationsPerSession = 0;
+	private long maxConversationBytesPerSession = 0;
+	private ConversationReaper conversationReaper;
+	private ConversationAdmission conversationAdmission;
 
 
 	public CdiConfiguration(BeanManager beanManager)
@@ -81,6 +99,27 @@ public class CdiConfiguration
 		return this;
 	}
 
+	public InjectionEngine getInjectionEngine()
+	{
+		return injectionEngine;
+	}
+
+	/**
+	 * Sets the engine the default {@link INonContextualManager} uses to inject components, behaviors
+	 * and other non-contextual instances. Has no effect on a custom manager set via
+	 * {@link #setNonContextualManager(INonContextualManager)}.
+	 * 
+	 * @param injectionEngine
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setInjectionEngine(InjectionEngine injectionEngine)
+	{
+		Args.notNull(injectionEngine, "injectionEngine");
+
+		this.injectionEngine = injectionEngine;
+		return this;
+	}
+
 	public boolean isInjectComponents()
 	{
 		return injectComponents;
@@ -125,6 +164,344 @@ public class CdiConfiguration
 		return this;
 	}
 
+	public boolean isTransientInjection()
+	{
+		return transientInjection;
+	}
+
+	/**
+	 * Sets whether client proxies injected into pages are left out of the serialized page and
+	 * re-injected when the page is deserialized. Enabling this installs a {@link CdiSerializer} as
+	 * the application's serializer.
+	 * 
+	 * @param transientInjection
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setTransientInjection(boolean transientInjection)
+	{
+		this.transientInjection = transientInjection;
+		return this;
+	}
+
+	public boolean isUseInjectionIndex()
+	{
+		return useInjectionIndex;
+	}
+
+	/**
+	 * Sets whether the {@link InjectionIndex} generated by the {@code wicket-cdi-processor}
+	 * annotation processor is loaded when the application is configured. Has no effect on a custom
+	 * manager set via {@link #setNonContextualManager(INonContextualManager)}.
+	 * 
+	 * @param useInjectionIndex
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setUseInjectionIndex(boolean useInjectionIndex)
+	{
+		this.useInjectionIndex = useInjectionIndex;
+		return this;
+	}
+
+	public WarmUp getWarmUp()
+	{
+		return warmUp;
+	}
+
+	/**
+	 * Sets the warm-up that prepares injection targets while the application starts. Warm-up
+	 * prepares the classes of the {@link InjectionIndex} in parallel instead of one by one. Has no
+	 * effect on a custom manager set via {@link #setNonContextualManager(INonContextualManager)}.
+	 * 
+	 * @param warmUp
+	 *            warm-up or {@code null} for none
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setWarmUp(WarmUp warmUp)
+	{
+		this.warmUp = warmUp;
+		return this;
+	}
+
+	public int getCacheSize()
+	{
+		return cacheSize;
+	}
+
+	/**
+	 * Bounds the number of classes whose injection targets are cached. Once the cache is full the
+	 * least recently used classes are evicted, and their injection targets are built again if they
+	 * are used later.
+	 * 
+	 * @see CdiContainer#getCacheStatistics()
+	 * 
+	 * @param cacheSize
+	 *            maximum number of classes or {@code 0} for an unbounded cache
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setCacheSize(int cacheSize)
+	{
+		Args.isTrue(cacheSize >= 0, "cacheSize must not be negative");
+
+		this.cacheSize = cacheSize;
+		return this;
+	}
+
+	public boolean isCacheStatistics()
+	{
+		return cacheStatistics;
+	}
+
+	/**
+	 * Enables counting the hits of an unbounded cache of injection targets. Hits are counted on a
+	 * shared counter on every injection, so this is off by default. A bounded cache always counts
+	 * them.
+	 * 
+	 * @see CdiContainer#getCacheStatistics()
+	 * 
+	 * @param cacheStatistics
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setCacheStatistics(boolean cacheStatistics)
+	{
+		this.cacheStatistics = cacheStatistics;
+		return this;
+	}
+
+	/**
+	 * Gets the filter that decides which components, behaviors and sessions are injected, which
+	 * can be used to add rules to the default filter
+	 * 
+	 * @return injection filter
+	 */
+	public InjectionFilter getInjectionFilter()
+	{
+		return injectionFilter;
+	}
+
+	/**
+	 * Sets the filter that decides which components, behaviors and sessions are injected
+	 * 
+	 * @param injectionFilter
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setInjectionFilter(InjectionFilter injectionFilter)
+	{
+		Args.notNull(injectionFilter, "injectionFilter");
+
+		this.injectionFilter = injectionFilter;
+		return this;
+	}
+
+	public boolean isBatchInjection()
+	{
+		return batchInjection;
+	}
+
+	/**
+	 * Sets whether components and behaviors of the same class injected during a single request,
+	 * such as the items of a repeater, share one creational context when all their injection points
+	 * are normal scoped. If those injection points are all fields, only the first instance is
+	 * injected by the injection target and the following ones get a copy of its references. Only
+	 * affects the {@link InjectionEngine#INJECTION_TARGET} engine, the {@link InjectionEngine#FIELD}
+	 * engine already shares normal scoped references across all instances. Has no effect on a
+	 * custom manager set via
+	 * {@link #setNonContextualManager(INonContextualManager)}.
+	 * 
+	 * @param batchInjection
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setBatchInjection(boolean batchInjection)
+	{
+		this.batchInjection = batchInjection;
+		return this;
+	}
+
+	public boolean isDeferSessionInjection()
+	{
+		return deferSessionInjection;
+	}
+
+	/**
+	 * Sets whether sessions are injected, and their {@link javax.annotation.PostConstruct}
+	 * callbacks run, when they are bound instead of when they are created. Temporary sessions that
+	 * are never bound, such as those of stateless pages and crawlers, are then never injected, so
+	 * code running in stateless requests must not rely on injected session fields. The application's
+	 * session store is decorated, so the store must not have been created before the application is
+	 * configured.
+	 * 
+	 * @param deferSessionInjection
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setDeferSessionInjection(boolean deferSessionInjection)
+	{
+		this.deferSessionInjection = deferSessionInjection;
+		return this;
+	}
+
+	public boolean isFireConversationEvents()
+	{
+		return fireConversationEvents;
+	}
+
+	/**
+	 * Sets whether {@link AfterConversationActivatedEvent} and
+	 * {@link BeforeConversationDeactivatedEvent} are fired as CDI events, so beans can observe
+	 * conversation activation without registering an {@link ICdiAwareRequestCycleListener}
+	 * 
+	 * @param fireConversationEvents
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setFireConversationEvents(boolean fireConversationEvents)
+	{
+		this.fireConversationEvents = fireConversationEvents;
+		return this;
+	}
+
+	public ConversationActivation getConversationActivation()
+	{
+		return conversationActivation;
+	}
+
+	/**
+	 * Sets when the conversation context is activated for a request
+	 * 
+	 * @param conversationActivation
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setConversationActivation(ConversationActivation conversationActivation)
+	{
+		Args.notNull(conversationActivation, "conversationActivation");
+
+		this.conversationActivation = conversationActivation;
+		return this;
+	}
+
+	public IRequestHandlerClassifier getHandlerClassifier()
+	{
+		return handlerClassifier;
+	}
+
+	/**
+	 * Sets the classifier that decides which request handlers need a conversation context.
+	 * Requests whose handlers are not conversational, such as resource requests by default, skip
+	 * conversation activation and propagation entirely.
+	 * 
+	 * @param handlerClassifier
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setHandlerClassifier(IRequestHandlerClassifier handlerClassifier)
+	{
+		Args.notNull(handlerClassifier, "handlerClassifier");
+
+		this.handlerClassifier = handlerClassifier;
+		return this;
+	}
+
+	public IConversationStore getConversationStore()
+	{
+		return conversationStore;
+	}
+
+	/**
+	 * Sets the store that holds the state of long-running conversations between requests, instead
+	 * of the session. Conversations are moved to the store at the end of every request that used
+	 * them, or by the {@link ConversationReaper} once they are idle if it has an idle timeout.
+	 * 
+	 * @param conversationStore
+	 *            store or {@code null} to keep conversations in the session
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setConversationStore(IConversationStore conversationStore)
+	{
+		this.conversationStore = conversationStore;
+		return this;
+	}
+
+	public int getMaxConversationsPerSession()
+	{
+		return maxConversationsPerSession;
+	}
+
+	/**
+	 * Sets the maximum number of long-running conversations a session can hold. When a request
+	 * leaves more conversations than that the least recently activated ones are evicted, and
+	 * requests for them fail with a {@link ConversationExpiredException}.
+	 * 
+	 * @param maxConversationsPerSession
+	 *            maximum number of conversations, {@code 0} for no limit
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setMaxConversationsPerSession(int maxConversationsPerSession)
+	{
+		Args.isTrue(maxConversationsPerSession >= 0,
+			"maxConversationsPerSession must not be negative");
+
+		this.maxConversationsPerSession = maxConversationsPerSession;
+		return this;
+	}
+
+	public long getMaxConversationBytesPerSession()
+	{
+		return maxConversationBytesPerSession;
+	}
+
+	/**
+	 * Sets the maximum total serialized size of the long-running conversations of a session. When
+	 * a request leaves conversations larger than that the least recently activated ones are
+	 * evicted, and requests for them fail with a {@link ConversationExpiredException}. Enabling
+	 * the limit serializes the current conversation at the end of every request that uses one.
+	 * 
+	 * @param maxConversationBytesPerSession
+	 *            maximum size in bytes, {@code 0} for no limit
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setMaxConversationBytesPerSession(long maxConversationBytesPerSession)
+	{
+		Args.isTrue(maxConversationBytesPerSession >= 0,
+			"maxConversationBytesPerSession must not be negative");
+
+		this.maxConversationBytesPerSession = maxConversationBytesPerSession;
+		return this;
+	}
+
+	public ConversationReaper getConversationReaper()
+	{
+		return conversationReaper;
+	}
+
+	/**
+	 * Sets the reaper that ends orphaned and inactive long-running conversations in the background,
+	 * and moves idle ones to the conversation store
+	 * 
+	 * @param conversationReaper
+	 *            reaper or {@code null} to leave conversations to the container's timeout
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setConversationReaper(ConversationReaper conversationReaper)
+	{
+		this.conversationReaper = conversationReaper;
+		return this;
+	}
+
+	public ConversationAdmission getConversationAdmission()
+	{
+		return conversationAdmission;
+	}
+
+	/**
+	 * Sets the admission control that queues concurrent requests for the same long-running
+	 * conversation instead of letting the container reject them
+	 * 
+	 * @param conversationAdmission
+	 *            admission control or {@code null} to leave concurrent requests to the container
+	 * @return {@code this} for chaining
+	 */
+	public CdiConfiguration setConversationAdmission(ConversationAdmission conversationAdmission)
+	{
+		this.conversationAdmission = conversationAdmission;
+		return this;
+	}
+
 	/**
 	 * Configures the specified application
 	 * 
@@ -142,13 +519,51 @@ public class CdiConfiguration
 		CdiContainer container = new CdiContainer(beanManager, nonContextualManager);
 		container.bind(application);
 
+		NonContextual.getCache(beanManager).setMaxSize(cacheSize);
+		NonContextual.getCache(beanManager).setStatisticsEnabled(cacheStatistics);
+
+		if (nonContextualManager instanceof NonContextualManager)
+		{
+			NonContextualManager manager = (NonContextualManager)nonContextualManager;
+			manager.setInjectionEngine(injectionEngine);
+			manager.setBatching(batchInjection);
+
+			// build and validate injection targets of indexed classes before serving requests
+			IClassResolver resolver = application.getApplicationSettings().getClassResolver();
+			InjectionIndex index = isUseInjectionIndex() ? InjectionIndex.load(resolver) : null;
+			if (warmUp != null)
+			{
+				container.setWarmUp(warmUp);
+				warmUp.start(application, resolver, manager, index);
+			}
+			else if (index != null)
+			{
+				manager.preload(index, resolver);
+			}
+		}
+
 		RequestCycleListenerCollection listeners = new RequestCycleListenerCollection();
 		application.getRequestCycleListeners().add(listeners);
 
 		// enable conversation propagation
 		if (getPropagation() != ConversationPropagation.NONE)
 		{
-			listeners.add(new ConversationPropagator(application, container, getPropagation()));
+			ConversationPropagator propagator = new ConversationPropagator(application, container,
+				getPropagation());
+			propagator.setFireEvents(fireConversationEvents)
+				.setActivation(conversationActivation)
+				.setHandlerClassifier(handlerClassifier);
+			listeners.add(propagator);
+			if (getPropagation() == ConversationPropagation.COOKIE)
+			{
+				// lets every page send its own conversation with its ajax requests
+				application.getHeaderContributorListenerCollection().add(propagator);
+			}
+			if (conversationActivation == ConversationActivation.ON_DEMAND)
+			{
+				// activates the context once a conversational component is created
+				application.getComponentInstantiationListeners().add(propagator);
+			}
 			application.getComponentPreOnBeforeRenderListeners().add(new ConversationExpiryChecker(container));
 			SeamConversationContextFactory.setDisableNoopInstance(true);
 		}
@@ -156,6 +571,11 @@ public class CdiConfiguration
 		// enable detach event
 		listeners.add(new DetachEventEmitter(container));
 
+		// release dependent beans of components with their pages
+		DependentInstancesReleaser releaser = new DependentInstancesReleaser(container);
+		listeners.add(releaser);
+		application.getSessionStore().registerUnboundListener(releaser);
+
 		// inject application instance
 		if (isInjectApplication())
 		{
@@ -166,23 +586,73 @@ public class CdiConfiguration
 
 		if (isInjectSession())
 		{
-			application.getSessionListeners().add(new SessionInjector(container));
+			SessionInjector injector = new SessionInjector(container, injectionFilter,
+				deferSessionInjection);
+			application.getSessionListeners().add(injector);
+			if (deferSessionInjection)
+			{
+				// inject sessions when the store binds them
+				application.setSessionStoreProvider(new InjectingSessionStore.Provider(
+					application.getSessionStoreProvider(), injector));
+			}
 		}
 
 		if (isInjectComponents())
 		{
-			application.getComponentInstantiationListeners().add(new ComponentInjector(container));
+			application.getComponentInstantiationListeners().add(new ComponentInjector(container, injectionFilter));
 		}
 
 		if (isInjectBehaviors())
 		{
-			application.getBehaviorInstantiationListeners().add(new BehaviorInjector(container));
+			application.getBehaviorInstantiationListeners().add(new BehaviorInjector(container, injectionFilter));
+		}
+
+		// keep long-running conversations out of the session
+		if (conversationStore != null)
+		{
+			container.setConversationStore(conversationStore, application.getApplicationKey());
+		}
+
+		// bound the conversations of a session
+		if (maxConversationsPerSession > 0 || maxConversationBytesPerSession > 0 ||
+			conversationReaper != null)
+		{
+			container.setConversationLimits(new ConversationLimits(maxConversationsPerSession,
+				maxConversationBytesPerSession));
+		}
+
+		// end orphaned and inactive and passivate idle conversations
+		if (conversationReaper != null)
+		{
+			if (conversationReaper.getIdleTimeout() > 0 && conversationStore == null)
+			{
+				throw new IllegalStateException(
+					"Passivating idle conversations requires a conversation store");
+			}
+
+			container.setConversationReaper(conversationReaper);
+			application.getSessionStore().registerUnboundListener(
+				conversationReaper.getUnboundListener());
+			conversationReaper.start(container);
+		}
+
+		// queue concurrent requests for a conversation
+		if (conversationAdmission != null)
+		{
+			container.setConversationAdmission(conversationAdmission);
+		}
+
+		// leave injected client proxies out of serialized pages
+		if (isTransientInjection())
+		{
+			application.getFrameworkSettings().setSerializer(
+				new CdiSerializer(application.getApplicationKey(), beanManager));
 		}
 
 		// enable cleanup
 
 		application.getApplicationListeners().add(
-			new CdiShutdownCleaner(beanManager, isInjectApplication()));
+			new CdiShutdownCleaner(container, isInjectApplication()));
 
 		return container;
 	}
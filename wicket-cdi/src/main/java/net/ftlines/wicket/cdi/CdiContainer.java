@@ -16,8 +16,23 @@
  */
 package net.ftlines.wicket.cdi;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.enterprise.context.Conversation;
+import javax.enterprise.context.NonexistentConversationException;
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.MetaDataKey;
@@ -26,6 +41,8 @@ import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.util.lang.Args;
 import org.jboss.seam.conversation.spi.SeamConversationContext;
 import org.jboss.seam.conversation.spi.SeamConversationContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Provides access to CDI features from inside a Wicket request
@@ -35,14 +52,34 @@ import org.jboss.seam.conversation.spi.SeamConversationContextFactory;
  */
 public class CdiContainer
 {
+	private static final Logger logger = LoggerFactory.getLogger(CdiContainer.class);
+
 	private static final MetaDataKey<CdiContainer> CONTEXT_KEY = new MetaDataKey<CdiContainer>()
 	{
 		private static final long serialVersionUID = 1L;
 	};
 
+	/** request attribute holding the id of the long-running conversation the request activated */
+	private static final String ACTIVATED_CID_ATTRIBUTE = CdiContainer.class.getName() +
+		".activatedCid";
+
+	/** request attribute holding the admission gate of the conversation the request activated */
+	private static final String ADMISSION_ATTRIBUTE = CdiContainer.class.getName() + ".admission";
+
+	private static final int LOCK_STRIPES = 64;
+
 	protected final BeanManager beanManager;
 	private final SeamConversationContext<HttpServletRequest> conversationContext;
 	private final INonContextualManager nonContextualManager;
+	private volatile WarmUp warmUp;
+	private volatile CdiAwareListeners cdiAwareListeners;
+	private volatile ConversationPassivation passivation;
+	private volatile ConversationLimits limits;
+	private volatile ConversationReaper reaper;
+	private volatile ConversationAdmission admission;
+	private volatile Conversation conversation;
+	private volatile Bean<Conversation> conversationBean;
+	private final Object[] sessionLocks = new Object[LOCK_STRIPES];
 
 	/**
 	 * Constructor
@@ -57,6 +94,10 @@ public class CdiContainer
 
 		this.beanManager = beanManager;
 		this.nonContextualManager = nonContextualManager;
+		for (int i = 0; i < sessionLocks.length; i++)
+		{
+			sessionLocks[i] = new Object();
+		}
 
 		conversationContext = SeamConversationContextFactory.getContext(HttpServletRequest.class);
 		if (conversationContext == null)
@@ -66,6 +107,100 @@ public class CdiContainer
 		}
 	}
 
+	/**
+	 * @return bean manager
+	 */
+	public BeanManager getBeanManager()
+	{
+		return beanManager;
+	}
+
+	/**
+	 * @return registry of dependent beans created while injecting components and other
+	 *         non-contextual instances
+	 */
+	public DependentInstances getDependentInstances()
+	{
+		return NonContextual.getDependentInstances(beanManager);
+	}
+
+	/**
+	 * @return statistics of the cache of injection targets
+	 */
+	public CacheStatistics getCacheStatistics()
+	{
+		return NonContextual.getCache(beanManager).getStatistics();
+	}
+
+	/**
+	 * @return warm-up of the injection targets or {@code null} if none was configured
+	 */
+	public WarmUp getWarmUp()
+	{
+		return warmUp;
+	}
+
+	void setWarmUp(WarmUp warmUp)
+	{
+		this.warmUp = warmUp;
+	}
+
+	/**
+	 * @return registry of the listeners notified when conversations are activated and deactivated,
+	 *         or {@code null} if the container is not bound to an application
+	 */
+	public CdiAwareListeners getCdiAwareListeners()
+	{
+		return cdiAwareListeners;
+	}
+
+	/**
+	 * @return store of long-running conversations or {@code null} if conversations are kept in the
+	 *         session
+	 */
+	public IConversationStore getConversationStore()
+	{
+		ConversationPassivation passivation = this.passivation;
+		return passivation != null ? passivation.getStore() : null;
+	}
+
+	void setConversationStore(IConversationStore store, String applicationKey)
+	{
+		passivation = store != null ? new ConversationPassivation(store, applicationKey) : null;
+	}
+
+	void setConversationLimits(ConversationLimits limits)
+	{
+		this.limits = limits;
+	}
+
+	/**
+	 * @return reaper of inactive conversations or {@code null} if none was configured
+	 */
+	public ConversationReaper getConversationReaper()
+	{
+		return reaper;
+	}
+
+	void setConversationReaper(ConversationReaper reaper)
+	{
+		this.reaper = reaper;
+	}
+
+	/**
+	 * @return admission control of long-running conversations or {@code null} if none was
+	 *         configured
+	 */
+	public ConversationAdmission getConversationAdmission()
+	{
+		return admission;
+	}
+
+	void setConversationAdmission(ConversationAdmission admission)
+	{
+		this.admission = admission;
+	}
+
 	public INonContextualManager getNonContextualManager()
 	{
 		return nonContextualManager;
@@ -78,8 +213,135 @@ public class CdiContainer
 	 */
 	public void deactivateConversationalContext(RequestCycle cycle)
 	{
-		conversationContext.deactivate();
-		conversationContext.dissociate(getRequest(cycle));
+		deactivateConversationalContext(cycle, null);
+	}
+
+	/**
+	 * Deactivates conversational context
+	 * 
+	 * @param cycle
+	 * @param page
+	 *            page the request was handled by, whose conversation marker the
+	 *            {@link ConversationReaper} remembers, or {@code null} if none
+	 */
+	public void deactivateConversationalContext(RequestCycle cycle, Page page)
+	{
+		HttpServletRequest request = getRequest(cycle);
+		ConversationAdmission.Gate gate = (ConversationAdmission.Gate)request.getAttribute(
+			ADMISSION_ATTRIBUTE);
+		try
+		{
+			deactivateConversationalContext(request, page);
+		}
+		finally
+		{
+			if (gate != null)
+			{
+				// admit the next request only once the conversation has been put away
+				request.removeAttribute(ADMISSION_ATTRIBUTE);
+				admission.leave(gate);
+			}
+		}
+	}
+
+	private void deactivateConversationalContext(HttpServletRequest request, Page page)
+	{
+		ConversationPassivation passivation = this.passivation;
+		ConversationLimits limits = this.limits;
+		HttpSession session = passivation != null || limits != null ? request.getSession(false)
+			: null;
+		if (session == null)
+		{
+			conversationContext.deactivate();
+			conversationContext.dissociate(request);
+			return;
+		}
+
+		Conversation conversation = getConversation();
+		String cid = conversation.isTransient() ? null : conversation.getId();
+		String activated = (String)request.getAttribute(ACTIVATED_CID_ATTRIBUTE);
+		synchronized (getLock(session))
+		{
+			conversationContext.deactivate();
+			conversationContext.dissociate(request);
+
+			int size = 0;
+			if (cid != null && passivation != null && !isPassivatingIdle())
+			{
+				size = passivation.passivate(session, cid);
+			}
+			else if (cid != null && limits != null && limits.isMeasuring())
+			{
+				size = ConversationLimits.sizeOf(session, cid);
+			}
+
+			if (limits != null && (cid != null || activated != null))
+			{
+				List<String> evicted = limits.deactivated(session, activated, cid, size);
+				for (String evict : evicted)
+				{
+					endConversation(request, session, evict, false);
+				}
+			}
+
+			ConversationReaper reaper = this.reaper;
+			if (limits != null && reaper != null)
+			{
+				if (page != null && !page.isPageStateless())
+				{
+					// the page goes to the page store carrying this conversation, if any
+					limits.pageStored(session, page.getPageId(), getConversationMarker(page),
+						reaper.getPageHistory());
+				}
+				if (cid != null)
+				{
+					// idle, orphaned and inactive conversations are left to the reaper's thread
+					reaper.register(session);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ends the conversations of a session that no request has activated since the inactivity
+	 * cutoff, or since the orphan cutoff if no page carries them, and moves those not activated
+	 * since the idle cutoff to the store, on behalf of the reaper's thread
+	 * 
+	 * @param session
+	 * @param inactiveBefore
+	 *            inactivity cutoff in milliseconds, {@link Long#MIN_VALUE} to end none
+	 * @param orphanedBefore
+	 *            orphan cutoff in milliseconds, {@link Long#MIN_VALUE} to end none
+	 * @param idleBefore
+	 *            idle cutoff in milliseconds, {@link Long#MIN_VALUE} to move none
+	 * @param reaper
+	 * @return {@code true} iff the session still has long-running conversations
+	 * @throws IllegalStateException
+	 *             if the session has been invalidated
+	 */
+	boolean reapConversations(HttpSession session, long inactiveBefore, long orphanedBefore,
+		long idleBefore, ConversationReaper reaper)
+	{
+		ConversationLimits limits = this.limits;
+		if (limits == null)
+		{
+			return false;
+		}
+		synchronized (getLock(session))
+		{
+			Map<String, Boolean> ended = limits.reap(session, inactiveBefore, orphanedBefore,
+				idleBefore, passivation, reaper);
+			if (!ended.isEmpty())
+			{
+				HttpServletRequest request = newSessionRequest(session);
+				for (Map.Entry<String, Boolean> end : ended.entrySet())
+				{
+					reaper.reclaimed(endConversation(request, session, end.getKey(), true),
+						end.getValue());
+				}
+			}
+			return limits.hasConversations(session);
+		}
 	}
 
 	/**
@@ -90,8 +352,182 @@ public class CdiContainer
 	 */
 	public void activateConversationalContext(RequestCycle cycle, String cid)
 	{
-		conversationContext.associate(getRequest(cycle));
-		conversationContext.activate(cid);
+		HttpServletRequest request = getRequest(cycle);
+		ConversationAdmission admission = this.admission;
+		HttpSession session = admission != null && cid != null ? request.getSession(false) : null;
+		if (session == null)
+		{
+			activateConversationalContext(request, cid);
+			return;
+		}
+
+		ConversationAdmission.Gate gate = admission.enter(session.getId(), cid);
+		request.setAttribute(ADMISSION_ATTRIBUTE, gate);
+		try
+		{
+			activateConversationalContext(request, cid);
+		}
+		catch (RuntimeException e)
+		{
+			request.removeAttribute(ADMISSION_ATTRIBUTE);
+			admission.leave(gate);
+			throw e;
+		}
+	}
+
+	private void activateConversationalContext(HttpServletRequest request, String cid)
+	{
+		ConversationPassivation passivation = this.passivation;
+		ConversationLimits limits = this.limits;
+		HttpSession session = (passivation != null || limits != null) && cid != null
+			? request.getSession(false) : null;
+		if (session != null)
+		{
+			synchronized (getLock(session))
+			{
+				if (limits != null)
+				{
+					// mark the conversation as in use before anything can evict it
+					limits.activated(session, cid);
+				}
+				if (passivation != null)
+				{
+					passivation.restore(session, cid);
+				}
+			}
+		}
+
+		conversationContext.associate(request);
+		try
+		{
+			conversationContext.activate(cid);
+		}
+		catch (RuntimeException e)
+		{
+			if (session != null && limits != null)
+			{
+				synchronized (getLock(session))
+				{
+					limits.released(session, cid);
+				}
+			}
+			throw e;
+		}
+
+		if (session != null && limits != null)
+		{
+			request.setAttribute(ACTIVATED_CID_ATTRIBUTE, cid);
+		}
+	}
+
+	/**
+	 * Ends a long-running conversation no request is using so the CDI container destroys its
+	 * beans. Must be called under the lock of the session, by a request once it has deactivated its
+	 * own conversation or by the reaper.
+	 * 
+	 * @param request
+	 * @param session
+	 * @param cid
+	 * @param measure
+	 *            whether to measure the serialized size of the beans
+	 * @return serialized size of the beans, {@code 0} if not measured
+	 */
+	private int endConversation(HttpServletRequest request, HttpSession session, String cid,
+		boolean measure)
+	{
+		ConversationPassivation passivation = this.passivation;
+		if (passivation != null)
+		{
+			// the container can only destroy beans it finds in the session
+			passivation.restore(session, cid);
+		}
+		int size = measure ? ConversationLimits.sizeOf(session, cid) : 0;
+
+		Bean<Conversation> bean = getConversationBean();
+		CreationalContext<Conversation> cc = beanManager.createCreationalContext(bean);
+		conversationContext.associate(request);
+		try
+		{
+			conversationContext.activate(cid);
+			// unlike the client proxy, which sticks to the conversation the request started with,
+			// an instance created now follows the conversation context
+			Conversation conversation = bean.create(cc);
+			if (!conversation.isTransient())
+			{
+				conversation.end();
+			}
+		}
+		catch (NonexistentConversationException e)
+		{
+			logger.debug("Conversation {} has already ended", cid);
+		}
+		catch (RuntimeException e)
+		{
+			logger.warn("Could not end conversation " + cid, e);
+		}
+		finally
+		{
+			// destroys the beans of the conversation now that it is transient
+			conversationContext.deactivate();
+			conversationContext.dissociate(request);
+			cc.release();
+		}
+		return size;
+	}
+
+	/**
+	 * @return {@code true} iff conversations are moved to the store once they are idle rather than
+	 *         at the end of every request
+	 */
+	private boolean isPassivatingIdle()
+	{
+		ConversationReaper reaper = this.reaper;
+		return reaper != null && reaper.getIdleTimeout() > 0;
+	}
+
+	/**
+	 * Retrieves the lock that orders moving and evicting the conversations of a session, so a
+	 * request activating a conversation waits until the request that deactivated it is done with
+	 * it
+	 * 
+	 * @param session
+	 * @return lock
+	 */
+	private Object getLock(HttpSession session)
+	{
+		return sessionLocks[(session.getId().hashCode() & Integer.MAX_VALUE) % sessionLocks.length];
+	}
+
+	/**
+	 * @return client proxy of the current conversation
+	 */
+	private Conversation getConversation()
+	{
+		Conversation result = conversation;
+		if (result == null)
+		{
+			Bean<?> bean = beanManager.resolve(beanManager.getBeans(Conversation.class));
+			result = (Conversation)beanManager.getReference(bean, Conversation.class,
+				beanManager.createCreationalContext(bean));
+			conversation = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return bean of the built-in conversation, resolved once
+	 */
+	@SuppressWarnings("unchecked")
+	private Bean<Conversation> getConversationBean()
+	{
+		Bean<Conversation> result = conversationBean;
+		if (result == null)
+		{
+			Set<Bean<?>> beans = beanManager.getBeans(Conversation.class);
+			result = (Bean<Conversation>)beanManager.resolve(beans);
+			conversationBean = result;
+		}
+		return result;
 	}
 
 	private HttpServletRequest getRequest(RequestCycle cycle)
@@ -99,6 +535,62 @@ public class CdiContainer
 		return (HttpServletRequest)cycle.getRequest().getContainerRequest();
 	}
 
+	/**
+	 * Creates a request of the session with its own attributes, so the conversation context can be
+	 * activated outside of a request. It supports only what the context needs.
+	 * 
+	 * @param session
+	 * @return request
+	 */
+	private static HttpServletRequest newSessionRequest(final HttpSession session)
+	{
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		return (HttpServletRequest)Proxy.newProxyInstance(CdiContainer.class.getClassLoader(),
+			new Class<?>[] { HttpServletRequest.class }, new InvocationHandler()
+			{
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+				{
+					String name = method.getName();
+					if ("getSession".equals(name))
+					{
+						return session;
+					}
+					else if ("getAttribute".equals(name))
+					{
+						return attributes.get(args[0]);
+					}
+					else if ("getAttributeNames".equals(name))
+					{
+						return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+					}
+					else if ("setAttribute".equals(name) && args[1] != null)
+					{
+						attributes.put((String)args[0], args[1]);
+						return null;
+					}
+					else if ("setAttribute".equals(name) || "removeAttribute".equals(name))
+					{
+						attributes.remove(args[0]);
+						return null;
+					}
+					else if ("hashCode".equals(name))
+					{
+						return System.identityHashCode(proxy);
+					}
+					else if ("equals".equals(name))
+					{
+						return proxy == args[0];
+					}
+					else if ("toString".equals(name))
+					{
+						return "SessionRequest [session=" + session.getId() + "]";
+					}
+					throw new UnsupportedOperationException(name);
+				}
+			});
+	}
+
 	/**
 	 * Retrieves a conversation id, if any, that is associated with a {@link Page} instance
 	 * 
@@ -135,6 +627,7 @@ public class CdiContainer
 	protected void bind(Application application)
 	{
 		application.setMetaData(CONTEXT_KEY, this);
+		cdiAwareListeners = new CdiAwareListeners(application);
 	}
 
 	/**
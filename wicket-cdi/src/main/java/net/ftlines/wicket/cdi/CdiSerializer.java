@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+import javax.enterprise.inject.spi.BeanManager;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.apache.wicket.util.io.SerializableChecker;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Page serializer that treats injected client proxies as transient. Every client proxy of a normal
+ * scoped bean injected by wicket-cdi is written as a compact {@link ReferenceToken} holding the
+ * index of its bean in the application's {@link BeanTable}, and is re-injected when the page is
+ * read back from the page store or the session.
+ * <p>
+ * Every stream starts with the fingerprint of the bean table. Tokens of streams written by a
+ * deployment with the same beans are resolved by index. Tokens of streams written by a deployment
+ * with different beans, such as an older version during a rolling deploy, are resolved by the id of
+ * their bean, so only the tokens of beans that no longer exist fail to deserialize.
+ * <p>
+ * Client proxies are stateless, so the deserialized page behaves exactly as if its fields were
+ * injected again. {@code Dependent} beans carry their own state and are serialized as before.
+ *
+ * @see CdiConfiguration#setTransientInjection(boolean)
+ *
+ * @author igor
+ */
+public class CdiSerializer extends JavaSerializer
+{
+	private final BeanManager beanManager;
+
+	/**
+	 * Constructor
+	 *
+	 * @param applicationKey
+	 * @param beanManager
+	 */
+	public CdiSerializer(String applicationKey, BeanManager beanManager)
+	{
+		super(applicationKey);
+
+		Args.notNull(beanManager, "beanManager");
+
+		this.beanManager = beanManager;
+	}
+
+	@Override
+	protected ObjectOutputStream newObjectOutputStream(OutputStream out) throws IOException
+	{
+		return new CheckingOutputStream(new ReferenceReplacingOutputStream(out,
+			NonContextual.getInjectedReferences(beanManager)));
+	}
+
+	@Override
+	protected ObjectInputStream newObjectInputStream(InputStream in) throws IOException
+	{
+		return new ReferenceResolvingInputStream(in,
+			NonContextual.getInjectedReferences(beanManager));
+	}
+
+	/**
+	 * Runs wicket's {@link SerializableChecker} when an object cannot be serialized, so the
+	 * failure reports the path to the offending field like {@link JavaSerializer} does
+	 *
+	 * @author igor
+	 */
+	private static class CheckingOutputStream extends ObjectOutputStream
+	{
+		private final ObjectOutputStream delegate;
+
+		public CheckingOutputStream(ObjectOutputStream delegate) throws IOException
+		{
+			this.delegate = delegate;
+		}
+
+		@Override
+		protected void writeObjectOverride(Object obj) throws IOException
+		{
+			try
+			{
+				delegate.writeObject(obj);
+			}
+			catch (NotSerializableException e)
+			{
+				if (SerializableChecker.isAvailable())
+				{
+					// throws a WicketNotSerializableException describing the offending field
+					new SerializableChecker(e).writeObject(obj);
+				}
+				throw e;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			delegate.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			delegate.close();
+		}
+	}
+
+	/**
+	 * Writes registered client proxies as tokens
+	 *
+	 * @author igor
+	 */
+	private static class ReferenceReplacingOutputStream extends ObjectOutputStream
+	{
+		private final InjectedReferences references;
+
+		public ReferenceReplacingOutputStream(OutputStream out, InjectedReferences references)
+			throws IOException
+		{
+			super(out);
+			this.references = references;
+			enableReplaceObject(true);
+			writeInt(references.getFingerprint());
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) throws IOException
+		{
+			int index = references.indexOf(obj);
+			if (index < 0)
+			{
+				index = references.indexOfReplacement(obj);
+			}
+			return index >= 0 ? new ReferenceToken(index, references.getBeanId(index)) : obj;
+		}
+	}
+
+	/**
+	 * Re-injects client proxies written as tokens. Classes are resolved like
+	 * {@link JavaSerializer} does, falling back on the application's class resolver.
+	 *
+	 * @author igor
+	 */
+	private static class ReferenceResolvingInputStream extends ObjectInputStream
+	{
+		private final InjectedReferences references;
+		private final int fingerprint;
+
+		public ReferenceResolvingInputStream(InputStream in, InjectedReferences references)
+			throws IOException
+		{
+			super(in);
+			this.references = references;
+			enableResolveObject(true);
+			fingerprint = readInt();
+		}
+
+		@Override
+		protected Object resolveObject(Object obj) throws IOException
+		{
+			if (obj instanceof ReferenceToken)
+			{
+				ReferenceToken token = (ReferenceToken)obj;
+				int index = token.getIndex();
+				if (fingerprint != references.getFingerprint())
+				{
+					// written by a deployment with different beans
+					index = references.indexOfBean(token.getId());
+					if (index < 0)
+					{
+						throw new InvalidObjectException("Bean " + token.getId() +
+							" of an injected reference does not exist in this deployment");
+					}
+				}
+				return references.getReference(index);
+			}
+			return obj;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+			ClassNotFoundException
+		{
+			try
+			{
+				return super.resolveClass(desc);
+			}
+			catch (ClassNotFoundException e)
+			{
+				if (!Application.exists())
+				{
+					throw e;
+				}
+				return Application.get()
+					.getApplicationSettings()
+					.getClassResolver()
+					.resolveClass(desc.getName());
+			}
+		}
+	}
+}
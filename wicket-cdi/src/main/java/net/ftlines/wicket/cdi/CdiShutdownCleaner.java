@@ -17,33 +17,46 @@
 package net.ftlines.wicket.cdi;
 
 import javax.enterprise.inject.spi.BeanManager;
+import javax.servlet.http.HttpSession;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.IApplicationListener;
 import org.apache.wicket.util.lang.Args;
 
 /**
- * Listens to application shutdown and cleans up
+ * Listens to application startup and shutdown, hands sessions restored at startup to the
+ * {@link ConversationReaper} and cleans up at shutdown
  * 
  * @author igor
  */
 class CdiShutdownCleaner implements IApplicationListener
 {
+	private final CdiContainer container;
 	private final BeanManager beanManager;
 	private final boolean preDestroyApplication;
 
-	public CdiShutdownCleaner(BeanManager beanManager, boolean preDestroyApplication)
+	public CdiShutdownCleaner(CdiContainer container, boolean preDestroyApplication)
 	{
-		Args.notNull(beanManager, "beanManager");
+		Args.notNull(container, "container");
 
-		this.beanManager = beanManager;
+		this.container = container;
+		this.beanManager = container.getBeanManager();
 		this.preDestroyApplication = preDestroyApplication;
 	}
 
 	@Override
 	public void onAfterInitialized(Application application)
 	{
-		// noop
+		ConversationReaper conversationReaper = container.getConversationReaper();
+		for (HttpSession session : ConversationPassivation.takeRestored(
+			application.getApplicationKey()))
+		{
+			if (conversationReaper != null)
+			{
+				// check the conversations of sessions the servlet container restored at startup
+				conversationReaper.register(session);
+			}
+		}
 	}
 
 	@Override
@@ -54,6 +67,21 @@ class CdiShutdownCleaner implements IApplicationListener
 			NonContextual.of(application.getClass(), beanManager).preDestroy(application);
 		}
 		NonContextual.undeploy(beanManager);
+
+		ConversationReaper conversationReaper = container.getConversationReaper();
+		if (conversationReaper != null)
+		{
+			// keep the live conversations in the store rather than in sessions the servlet
+			// container may persist
+			conversationReaper.snapshot();
+			conversationReaper.stop();
+		}
+
+		IConversationStore conversationStore = container.getConversationStore();
+		if (conversationStore != null)
+		{
+			conversationStore.destroy();
+		}
 	}
 
 }
@@ -31,10 +31,12 @@ class ComponentInjector extends AbstractInjector implements IComponentInstantiat
 	 * Constructor
 	 * 
 	 * @param container
+	 * @param filter
+	 *            decides which instances are injected
 	 */
-	public ComponentInjector(CdiContainer container)
+	public ComponentInjector(CdiContainer container, InjectionFilter filter)
 	{
-		super(container);
+		super(container, filter);
 	}
 
 	@Override
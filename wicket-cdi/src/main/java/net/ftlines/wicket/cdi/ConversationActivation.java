@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import javax.enterprise.context.Conversation;
+import javax.enterprise.context.ConversationScoped;
+
+/**
+ * Modes of activating the conversation context for a request
+ * 
+ * @see CdiConfiguration#setConversationActivation(ConversationActivation)
+ * 
+ * @author igor
+ */
+public enum ConversationActivation {
+	/**
+	 * The conversation context is activated for every request
+	 */
+	EAGER,
+
+	/**
+	 * The conversation context is activated for requests that propagate a conversation id and for
+	 * requests to pages that inject the {@link Conversation} or a {@link ConversationScoped} bean.
+	 * For other requests activation is deferred until a component that injects one of them is
+	 * created, so requests that never create such a component skip the session lookups of
+	 * activating and deactivating the context.
+	 */
+	ON_DEMAND;
+}
@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Admits the requests of a long-running conversation one at a time. The CDI container rejects a
+ * request for a conversation that another request is using, which concurrent Ajax requests and
+ * multiple tabs run into regularly. With admission control the requests queue up in the order they
+ * arrived and each waits until the previous one has deactivated the conversation.
+ * <p>
+ * A request fails with a {@link ConversationBusyException} if the queue of the conversation is
+ * already full or if it waited longer than the timeout.
+ * 
+ * <pre>
+ * new CdiConfiguration(beanManager).setConversationAdmission(
+ * 	new ConversationAdmission().setTimeout(5, TimeUnit.SECONDS).setMaxQueueDepth(4)).configure(
+ * 	this);
+ * </pre>
+ * 
+ * @author igor
+ */
+public class ConversationAdmission
+{
+	private long timeout = TimeUnit.SECONDS.toMillis(10);
+	private int maxQueueDepth = 8;
+
+	/** gates of the conversations in use, by session id and cid */
+	private final ConcurrentMap<String, Gate> gates = new ConcurrentHashMap<String, Gate>();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong waited = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+
+	/**
+	 * Sets how long a request waits for a conversation other requests are using, defaults to ten
+	 * seconds
+	 * 
+	 * @param time
+	 * @param unit
+	 * @return {@code this} for chaining
+	 */
+	public ConversationAdmission setTimeout(long time, TimeUnit unit)
+	{
+		Args.isTrue(time >= 0, "time must not be negative");
+
+		timeout = unit.toMillis(time);
+		return this;
+	}
+
+	/**
+	 * @return timeout in milliseconds
+	 */
+	public long getTimeout()
+	{
+		return timeout;
+	}
+
+	/**
+	 * Sets how many requests can wait for a conversation, defaults to eight
+	 * 
+	 * @param maxQueueDepth
+	 *            maximum number of waiting requests, {@code 0} to reject requests for a
+	 *            conversation in use right away
+	 * @return {@code this} for chaining
+	 */
+	public ConversationAdmission setMaxQueueDepth(int maxQueueDepth)
+	{
+		Args.isTrue(maxQueueDepth >= 0, "maxQueueDepth must not be negative");
+
+		this.maxQueueDepth = maxQueueDepth;
+		return this;
+	}
+
+	public int getMaxQueueDepth()
+	{
+		return maxQueueDepth;
+	}
+
+	/**
+	 * @return number of requests admitted
+	 */
+	public long getAdmitted()
+	{
+		return admitted.get();
+	}
+
+	/**
+	 * @return number of requests that had to wait, whether or not they were admitted eventually
+	 */
+	public long getWaited()
+	{
+		return waited.get();
+	}
+
+	/**
+	 * @return total time requests have waited in milliseconds
+	 */
+	public long getWaitTime()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+	}
+
+	/**
+	 * @return longest time a request has waited in milliseconds
+	 */
+	public long getMaxWaitTime()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+	}
+
+	/**
+	 * @return number of requests rejected because the queue was full
+	 */
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of requests that gave up waiting
+	 */
+	public long getTimedOut()
+	{
+		return timedOut.get();
+	}
+
+	/**
+	 * @return number of conversations currently in use
+	 */
+	public int getConversationsInUse()
+	{
+		return gates.size();
+	}
+
+	/**
+	 * Waits until the conversation is available
+	 * 
+	 * @param sessionId
+	 * @param cid
+	 * @return gate to pass to {@link #leave(Gate)} once the conversation is deactivated
+	 * @throws ConversationBusyException
+	 *             if the queue is full or the timeout elapses
+	 */
+	Gate enter(String sessionId, String cid)
+	{
+		String key = sessionId + "#" + cid;
+		Gate gate;
+		for (;;)
+		{
+			gate = gates.get(key);
+			if (gate == null)
+			{
+				Gate created = new Gate(key);
+				gate = gates.putIfAbsent(key, created);
+				if (gate == null)
+				{
+					gate = created;
+				}
+			}
+
+			int joined = gate.join(maxQueueDepth);
+			if (joined == Gate.JOINED)
+			{
+				break;
+			}
+			else if (joined == Gate.FULL)
+			{
+				rejected.incrementAndGet();
+				throw new ConversationBusyException(
+					"Too many requests are waiting for conversation " + cid, cid);
+			}
+			// the gate has been retired by the last request leaving it, start over
+		}
+
+		boolean acquired;
+		long start = System.nanoTime();
+		try
+		{
+			// a timed attempt, unlike tryAcquire(), respects the requests already waiting
+			acquired = gate.permit.tryAcquire(0, TimeUnit.NANOSECONDS);
+			if (!acquired)
+			{
+				waited.incrementAndGet();
+				acquired = gate.permit.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+				waited(System.nanoTime() - start);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+
+		if (!acquired)
+		{
+			depart(gate);
+			timedOut.incrementAndGet();
+			throw new ConversationBusyException("Timed out waiting for conversation " + cid, cid);
+		}
+
+		admitted.incrementAndGet();
+		return gate;
+	}
+
+	/**
+	 * Makes the conversation available to the next request
+	 * 
+	 * @param gate
+	 */
+	void leave(Gate gate)
+	{
+		gate.permit.release();
+		depart(gate);
+	}
+
+	private void depart(Gate gate)
+	{
+		if (gate.leave())
+		{
+			gates.remove(gate.key, gate);
+		}
+	}
+
+	private void waited(long nanos)
+	{
+		waitTime.addAndGet(nanos);
+		long max;
+		do
+		{
+			max = maxWaitTime.get();
+		}
+		while (nanos > max && !maxWaitTime.compareAndSet(max, nanos));
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ConversationAdmission [admitted=" + admitted + ", waited=" + waited +
+			", waitTime=" + getWaitTime() + ", maxWaitTime=" + getMaxWaitTime() + ", rejected=" +
+			rejected + ", timedOut=" + timedOut + "]";
+	}
+
+	/**
+	 * Fair single permit of a conversation along with the number of requests holding or waiting
+	 * for it
+	 * 
+	 * @author igor
+	 */
+	static final class Gate
+	{
+		private static final int JOINED = 0;
+		private static final int FULL = 1;
+		private static final int RETIRED = 2;
+
+		private final String key;
+		private final Semaphore permit = new Semaphore(1, true);
+
+		/** requests holding or waiting for the permit, {@code -1} once the gate is retired */
+		private final AtomicInteger requests = new AtomicInteger();
+
+		private Gate(String key)
+		{
+			this.key = key;
+		}
+
+		/**
+		 * Registers a request that is about to wait for the permit
+		 * 
+		 * @param maxQueueDepth
+		 * @return {@link #JOINED}, {@link #FULL} or {@link #RETIRED}
+		 */
+		private int join(int maxQueueDepth)
+		{
+			for (;;)
+			{
+				int current = requests.get();
+				if (current < 0)
+				{
+					return RETIRED;
+				}
+				if (current > maxQueueDepth)
+				{
+					// one request holds the permit and the queue is full
+					return FULL;
+				}
+				if (requests.compareAndSet(current, current + 1))
+				{
+					return JOINED;
+				}
+			}
+		}
+
+		/**
+		 * Unregisters a request
+		 * 
+		 * @return {@code true} iff it was the last one and the gate has been retired
+		 */
+		private boolean leave()
+		{
+			return requests.decrementAndGet() == 0 && requests.compareAndSet(0, -1);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+/**
+ * Thrown when a request is not admitted to a long-running conversation because other requests are
+ * using it, either because too many requests are already waiting for it or because the request
+ * waited longer than the timeout
+ * 
+ * @see ConversationAdmission
+ * 
+ * @author igor
+ */
+public class ConversationBusyException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final String cid;
+
+	public ConversationBusyException(String message, String cid)
+	{
+		super(message);
+		this.cid = cid;
+	}
+
+	public String getCid()
+	{
+		return cid;
+	}
+}
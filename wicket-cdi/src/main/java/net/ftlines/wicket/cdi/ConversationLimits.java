@@ -0,0 +1,418 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds the number and the total size of the long-running conversations of a session by evicting
+ * the conversations that were least recently activated.
+ * <p>
+ * The {@link CdiContainer} ends evicted conversations, which destroys their beans, so a later
+ * request for one fails to restore it and is reported as a {@link ConversationExpiredException}.
+ * Conversations activated by a request that is still in progress are never evicted.
+ * <p>
+ * The same bookkeeping lets the {@link ConversationReaper} find conversations no request has used
+ * for a while, to have them ended or to move them to the {@link IConversationStore}, and
+ * conversations none of the recently stored pages of the session carries any longer.
+ * 
+ * @author igor
+ */
+final class ConversationLimits
+{
+	private static final Logger logger = LoggerFactory.getLogger(ConversationLimits.class);
+
+	private static final String USAGE_ATTRIBUTE = ConversationLimits.class.getName();
+
+	private final int maxConversations;
+	private final long maxBytes;
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param maxConversations
+	 *            maximum number of long-running conversations per session, {@code 0} for no limit
+	 * @param maxBytes
+	 *            maximum total serialized size of the conversations of a session, {@code 0} for no
+	 *            limit
+	 */
+	ConversationLimits(int maxConversations, long maxBytes)
+	{
+		this.maxConversations = maxConversations;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return {@code true} iff the size of the conversations has to be measured
+	 */
+	boolean isMeasuring()
+	{
+		return maxBytes > 0;
+	}
+
+	/**
+	 * @return total number of conversations evicted
+	 */
+	long getEvicted()
+	{
+		return evicted.get();
+	}
+
+	/**
+	 * Records that a request is activating a long-running conversation. Must be called under the
+	 * lock of the session.
+	 * 
+	 * @param session
+	 * @param cid
+	 */
+	void activated(HttpSession session, String cid)
+	{
+		Usage usage = getUsage(session);
+		usage.activate(cid);
+		session.setAttribute(USAGE_ATTRIBUTE, usage);
+	}
+
+	/**
+	 * Records that a request failed to activate a long-running conversation. Must be called under
+	 * the lock of the session.
+	 * 
+	 * @param session
+	 * @param cid
+	 */
+	void released(HttpSession session, String cid)
+	{
+		Usage usage = getUsage(session);
+		usage.deactivate(cid);
+		session.setAttribute(USAGE_ATTRIBUTE, usage);
+	}
+
+	/**
+	 * Records that a request has deactivated the conversational context and picks the
+	 * conversations to evict to get back within the limits. Must be called under the lock of the
+	 * session.
+	 * 
+	 * @param session
+	 * @param activated
+	 *            id of the conversation the request activated, or {@code null} if it started with
+	 *            a transient conversation
+	 * @param cid
+	 *            id of the conversation the request ended with, or {@code null} if it is transient
+	 * @param size
+	 *            serialized size of the conversation the request ended with
+	 * @return ids of the conversations the caller has to end
+	 */
+	List<String> deactivated(HttpSession session, String activated, String cid, int size)
+	{
+		Usage usage = getUsage(session);
+		if (activated != null)
+		{
+			usage.deactivate(activated);
+			if (!activated.equals(cid))
+			{
+				// the conversation has ended
+				usage.entries.remove(activated);
+			}
+		}
+		if (cid != null)
+		{
+			usage.touch(cid).size = size;
+		}
+
+		int count = usage.entries.size();
+		long bytes = 0;
+		for (Entry entry : usage.entries.values())
+		{
+			bytes += entry.size;
+		}
+
+		List<String> evictions = new ArrayList<String>();
+		Iterator<Map.Entry<String, Entry>> it = usage.entries.entrySet().iterator();
+		while (isOver(count, bytes) && it.hasNext())
+		{
+			Map.Entry<String, Entry> entry = it.next();
+			String evict = entry.getKey();
+			if (evict.equals(cid) || usage.active.containsKey(evict))
+			{
+				continue;
+			}
+
+			it.remove();
+			count--;
+			bytes -= entry.getValue().size;
+			logger.info("Evicting conversation {} of session {}", evict, session.getId());
+			evictions.add(evict);
+			evicted.incrementAndGet();
+		}
+
+		session.setAttribute(USAGE_ATTRIBUTE, usage);
+		return evictions;
+	}
+
+	/**
+	 * Records the conversation a page carries in its {@link ConversationIdMetaKey} as the page is
+	 * stored at the end of a request. Must be called under the lock of the session.
+	 * 
+	 * @param session
+	 * @param pageId
+	 * @param cid
+	 *            id of the conversation the page carries, or {@code null} if none
+	 * @param history
+	 *            number of the most recently stored pages to remember
+	 */
+	void pageStored(HttpSession session, int pageId, String cid, int history)
+	{
+		Usage usage = getUsage(session);
+		usage.pages.remove(pageId);
+		usage.pages.put(pageId, cid);
+
+		Iterator<Integer> it = usage.pages.keySet().iterator();
+		while (usage.pages.size() > history)
+		{
+			it.next();
+			it.remove();
+		}
+		session.setAttribute(USAGE_ATTRIBUTE, usage);
+	}
+
+	/**
+	 * Picks the conversations that no request has activated since the inactivity cutoff, or since
+	 * the orphan cutoff if none of the recently stored pages carries them, to be ended, and moves
+	 * those not activated since the idle cutoff to the store. Must be called under the lock of the
+	 * session.
+	 * 
+	 * @param session
+	 * @param inactiveBefore
+	 *            inactivity cutoff in milliseconds, {@link Long#MIN_VALUE} to end none
+	 * @param orphanedBefore
+	 *            orphan cutoff in milliseconds, {@link Long#MIN_VALUE} to end none
+	 * @param idleBefore
+	 *            idle cutoff in milliseconds, {@link Long#MIN_VALUE} to move none
+	 * @param passivation
+	 *            passivation holding the state of passivated conversations, or {@code null}
+	 * @param reaper
+	 *            reaper notified of every conversation it moves
+	 * @return ids of the conversations the caller has to end, mapped to whether they are orphaned
+	 */
+	Map<String, Boolean> reap(HttpSession session, long inactiveBefore, long orphanedBefore,
+		long idleBefore, ConversationPassivation passivation, ConversationReaper reaper)
+	{
+		Usage usage = (Usage)session.getAttribute(USAGE_ATTRIBUTE);
+		if (usage == null)
+		{
+			return Collections.emptyMap();
+		}
+
+		long cutoff = Math.max(inactiveBefore, Math.max(orphanedBefore, idleBefore));
+		Set<String> carried = orphanedBefore > Long.MIN_VALUE ? new HashSet<String>(
+			usage.pages.values()) : null;
+
+		Map<String, Boolean> ended = new LinkedHashMap<String, Boolean>();
+		boolean modified = false;
+		Iterator<Map.Entry<String, Entry>> it = usage.entries.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<String, Entry> entry = it.next();
+			String cid = entry.getKey();
+			Entry conversation = entry.getValue();
+			if (conversation.referenced >= cutoff)
+			{
+				// entries are ordered by activation, all following ones are newer
+				break;
+			}
+			if (usage.active.containsKey(cid))
+			{
+				continue;
+			}
+
+			if (conversation.referenced < inactiveBefore)
+			{
+				it.remove();
+				logger.debug("Ending inactive conversation {} of session {}", cid,
+					session.getId());
+				ended.put(cid, false);
+				modified = true;
+			}
+			else if (conversation.referenced < orphanedBefore && !carried.contains(cid))
+			{
+				it.remove();
+				logger.debug("Ending orphaned conversation {} of session {}", cid,
+					session.getId());
+				ended.put(cid, true);
+				modified = true;
+			}
+			else if (passivation != null && !conversation.passivated)
+			{
+				logger.debug("Passivating idle conversation {} of session {}", cid,
+					session.getId());
+				reaper.passivated(passivation.passivate(session, cid));
+				conversation.passivated = true;
+				modified = true;
+			}
+		}
+
+		if (modified)
+		{
+			session.setAttribute(USAGE_ATTRIBUTE, usage);
+		}
+		return ended;
+	}
+
+	/**
+	 * @param session
+	 * @return {@code true} iff the session has long-running conversations
+	 */
+	boolean hasConversations(HttpSession session)
+	{
+		Usage usage = (Usage)session.getAttribute(USAGE_ATTRIBUTE);
+		return usage != null && !usage.entries.isEmpty();
+	}
+
+	private boolean isOver(int count, long bytes)
+	{
+		return (maxConversations > 0 && count > maxConversations) ||
+			(maxBytes > 0 && bytes > maxBytes);
+	}
+
+	/**
+	 * Measures the serialized size of the beans of a conversation held in the session
+	 * 
+	 * @param session
+	 * @param cid
+	 * @return size in bytes
+	 */
+	static int sizeOf(HttpSession session, String cid)
+	{
+		HashMap<String, Object> attributes = ConversationPassivation.getAttributes(session, cid);
+		if (attributes.isEmpty())
+		{
+			return 0;
+		}
+		try
+		{
+			return ConversationPassivation.serialize(attributes).length;
+		}
+		catch (IOException e)
+		{
+			logger.debug("Could not measure conversation " + cid, e);
+			return 0;
+		}
+	}
+
+	private static Usage getUsage(HttpSession session)
+	{
+		Usage usage = (Usage)session.getAttribute(USAGE_ATTRIBUTE);
+		return usage != null ? usage : new Usage();
+	}
+
+	/**
+	 * Conversations of a session in the order they were last activated
+	 * 
+	 * @author igor
+	 */
+	private static final class Usage implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** entries by cid, least recently activated first */
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+			0.75f, true);
+
+		/** number of requests in progress by cid, never carried over with the session */
+		private transient HashMap<String, Integer> active = new HashMap<String, Integer>();
+
+		/** conversations carried by the most recently stored pages by page id, oldest first */
+		private LinkedHashMap<Integer, String> pages = new LinkedHashMap<Integer, String>();
+
+		public Entry touch(String cid)
+		{
+			Entry entry = entries.get(cid);
+			if (entry == null)
+			{
+				entry = new Entry();
+				entries.put(cid, entry);
+			}
+			entry.referenced = System.currentTimeMillis();
+			entry.passivated = false;
+			return entry;
+		}
+
+		public void activate(String cid)
+		{
+			touch(cid);
+
+			Integer requests = active.get(cid);
+			active.put(cid, requests != null ? requests + 1 : 1);
+		}
+
+		public void deactivate(String cid)
+		{
+			Integer requests = active.remove(cid);
+			if (requests != null && requests > 1)
+			{
+				active.put(cid, requests - 1);
+			}
+		}
+
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+		{
+			in.defaultReadObject();
+			active = new HashMap<String, Integer>();
+			if (pages == null)
+			{
+				// written before pages were remembered
+				pages = new LinkedHashMap<Integer, String>();
+			}
+		}
+	}
+
+	/**
+	 * A conversation of a session
+	 * 
+	 * @author igor
+	 */
+	private static final class Entry implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** serialized size of the beans, {@code 0} if not measured */
+		private int size;
+
+		/** time the conversation was last activated */
+		private long referenced;
+
+		/** whether the beans have been moved to the store since */
+		private boolean passivated;
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.apache.wicket.Application;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the session attributes holding the beans of a long-running conversation between the
+ * {@link HttpSession} and an {@link IConversationStore}. Conversations are stored under a
+ * {@link SessionKey} kept in the session rather than under the session id, which the container may
+ * change.
+ * 
+ * @author igor
+ */
+final class ConversationPassivation
+{
+	private static final Logger logger = LoggerFactory.getLogger(ConversationPassivation.class);
+
+	/** prefix of the session attributes holding conversation scoped beans, as named by Weld */
+	static final String ATTRIBUTE_PREFIX = "org.jboss.weld.context.ConversationContext.";
+
+	/** delimiter between the conversation id and the bean id in an attribute name */
+	private static final String DELIMITER = "#";
+
+	/** prefix of the session attribute holding the {@link SessionKey} of an application */
+	static final String KEY_ATTRIBUTE_PREFIX = ConversationPassivation.class.getName() + ".key.";
+
+	/** sessions restored before their application was initialized, by application key */
+	private static final ConcurrentMap<String, List<HttpSession>> restored = new ConcurrentHashMap<String, List<HttpSession>>();
+
+	private final IConversationStore store;
+	private final String applicationKey;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param store
+	 * @param applicationKey
+	 *            key of the application, used to find the store again when a session is unbound
+	 */
+	ConversationPassivation(IConversationStore store, String applicationKey)
+	{
+		this.store = store;
+		this.applicationKey = applicationKey;
+	}
+
+	/**
+	 * @return store the conversations are moved to
+	 */
+	IConversationStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Moves the beans of a conversation from the session to the store
+	 * 
+	 * @param session
+	 * @param cid
+	 * @return serialized size of the conversation
+	 */
+	int passivate(HttpSession session, String cid)
+	{
+		HashMap<String, Object> attributes = getAttributes(session, cid);
+		if (attributes.isEmpty())
+		{
+			return 0;
+		}
+
+		byte[] state;
+		try
+		{
+			state = serialize(attributes);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Could not serialize conversation " + cid + ", keeping it in the session", e);
+			return 0;
+		}
+
+		if (store.store(getKey(session, true), cid, state))
+		{
+			for (String name : attributes.keySet())
+			{
+				session.removeAttribute(name);
+			}
+		}
+		return state.length;
+	}
+
+	/**
+	 * Moves the beans of a conversation from the store back to the session
+	 * 
+	 * @param session
+	 * @param cid
+	 */
+	void restore(HttpSession session, String cid)
+	{
+		String key = getKey(session, false);
+		byte[] state = key != null ? store.load(key, cid) : null;
+		if (state == null)
+		{
+			return;
+		}
+
+		Map<String, Object> attributes;
+		try
+		{
+			attributes = deserialize(state);
+		}
+		catch (IOException e)
+		{
+			logger.error("Could not restore conversation " + cid, e);
+			return;
+		}
+		catch (ClassNotFoundException e)
+		{
+			logger.error("Could not restore conversation " + cid, e);
+			return;
+		}
+
+		for (Map.Entry<String, Object> attribute : attributes.entrySet())
+		{
+			session.setAttribute(attribute.getKey(), attribute.getValue());
+		}
+	}
+
+	/**
+	 * Looks up the key the conversations of the session are stored under. Must be called under the
+	 * lock of the session.
+	 * 
+	 * @param session
+	 * @param create
+	 *            whether to create the key if the session has none yet
+	 * @return key or {@code null} if the session has none and {@code create} is {@code false}
+	 */
+	String getKey(HttpSession session, boolean create)
+	{
+		String name = KEY_ATTRIBUTE_PREFIX + applicationKey;
+		SessionKey key = (SessionKey)session.getAttribute(name);
+		if (key == null && create)
+		{
+			key = new SessionKey(applicationKey);
+			session.setAttribute(name, key);
+		}
+		return key != null ? key.value : null;
+	}
+
+	/**
+	 * Collects the session attributes holding the beans of a conversation
+	 * 
+	 * @param session
+	 * @param cid
+	 * @return attributes by name
+	 */
+	static HashMap<String, Object> getAttributes(HttpSession session, String cid)
+	{
+		String prefix = ATTRIBUTE_PREFIX + cid + DELIMITER;
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		for (Enumeration<?> names = session.getAttributeNames(); names.hasMoreElements();)
+		{
+			String name = (String)names.nextElement();
+			if (name.startsWith(prefix))
+			{
+				attributes.put(name, session.getAttribute(name));
+			}
+		}
+		return attributes;
+	}
+
+	/**
+	 * Hands a session the servlet container has restored, after a restart or from another node, to
+	 * the {@link ConversationReaper} of its application, so its conversations are checked before
+	 * the next request. Sessions restored before the application is initialized are kept until
+	 * {@link #takeRestored(String)}.
+	 * 
+	 * @param applicationKey
+	 * @param session
+	 */
+	static void restored(String applicationKey, HttpSession session)
+	{
+		Application application = Application.get(applicationKey);
+		if (application != null)
+		{
+			try
+			{
+				ConversationReaper reaper = CdiContainer.get(application)
+					.getConversationReaper();
+				if (reaper != null)
+				{
+					reaper.register(session);
+				}
+				return;
+			}
+			catch (IllegalStateException e)
+			{
+				// the application is still being configured
+			}
+		}
+
+		List<HttpSession> sessions = restored.get(applicationKey);
+		if (sessions == null)
+		{
+			sessions = new ArrayList<HttpSession>();
+			List<HttpSession> existing = restored.putIfAbsent(applicationKey, sessions);
+			if (existing != null)
+			{
+				sessions = existing;
+			}
+		}
+		synchronized (sessions)
+		{
+			sessions.add(session);
+		}
+	}
+
+	/**
+	 * Removes the sessions restored before the application was initialized
+	 * 
+	 * @param applicationKey
+	 * @return sessions
+	 */
+	static List<HttpSession> takeRestored(String applicationKey)
+	{
+		List<HttpSession> sessions = restored.remove(applicationKey);
+		if (sessions == null)
+		{
+			return Collections.emptyList();
+		}
+		synchronized (sessions)
+		{
+			return new ArrayList<HttpSession>(sessions);
+		}
+	}
+
+	static byte[] serialize(HashMap<String, Object> attributes) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		try
+		{
+			out.writeObject(attributes);
+		}
+		finally
+		{
+			out.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> deserialize(byte[] state) throws IOException,
+		ClassNotFoundException
+	{
+		ObjectInputStream in = new ResolvingObjectInputStream(new ByteArrayInputStream(state));
+		try
+		{
+			return (Map<String, Object>)in.readObject();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Key the conversations of a session are stored under. Unlike the session id it stays the same
+	 * when the container renews the id of the session or restores the session after a restart.
+	 * Removes the conversations of the session from the store when the session is invalidated, and
+	 * hands the session to the reaper when it is restored.
+	 * 
+	 * @author igor
+	 */
+	static final class SessionKey
+		implements
+			HttpSessionBindingListener,
+			HttpSessionActivationListener,
+			Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final String applicationKey;
+		private final String value = UUID.randomUUID().toString();
+
+		public SessionKey(String applicationKey)
+		{
+			this.applicationKey = applicationKey;
+		}
+
+		@Override
+		public void valueBound(HttpSessionBindingEvent event)
+		{
+		}
+
+		@Override
+		public void valueUnbound(HttpSessionBindingEvent event)
+		{
+			Application application = Application.get(applicationKey);
+			IConversationStore store = application != null ? CdiContainer.get(application)
+				.getConversationStore() : null;
+			if (store != null)
+			{
+				store.remove(value);
+			}
+		}
+
+		@Override
+		public void sessionWillPassivate(HttpSessionEvent event)
+		{
+		}
+
+		@Override
+		public void sessionDidActivate(HttpSessionEvent event)
+		{
+			restored(applicationKey, event.getSession());
+		}
+	}
+
+	/**
+	 * Resolves classes of the application that are not visible to the loader of this library
+	 * 
+	 * @author igor
+	 */
+	private static class ResolvingObjectInputStream extends ObjectInputStream
+	{
+		public ResolvingObjectInputStream(InputStream in) throws IOException
+		{
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+			ClassNotFoundException
+		{
+			try
+			{
+				return super.resolveClass(desc);
+			}
+			catch (ClassNotFoundException e)
+			{
+				ClassLoader loader = Thread.currentThread().getContextClassLoader();
+				if (loader != null)
+				{
+					try
+					{
+						return Class.forName(desc.getName(), false, loader);
+					}
+					catch (ClassNotFoundException ignored)
+					{
+						// try the application next
+					}
+				}
+				if (Application.exists())
+				{
+					return Application.get()
+						.getApplicationSettings()
+						.getClassResolver()
+						.resolveClass(desc.getName());
+				}
+				throw e;
+			}
+		}
+	}
+}
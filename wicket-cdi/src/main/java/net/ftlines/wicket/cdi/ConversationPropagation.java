@@ -74,5 +74,25 @@ public enum ConversationPropagation implements IConversationPropagation {
 		{
 			return true;
 		}
+	},
+	/**
+	 * Persistent conversations are propagated between non-bookmarkable pages, and to bookmarkable
+	 * pages via a cookie instead of url parameters, so urls stay stable and cacheable. The cookie
+	 * is shared by all tabs of the browser, so every page also remembers the conversation of its
+	 * tab and sends it with its Ajax requests in the {@link ConversationPropagator#CID_HEADER}
+	 * request header, which takes precedence over the cookie.
+	 */
+	COOKIE {
+		@Override
+		public boolean propagatesViaPage(Page page, IRequestHandler handler)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean propagatesViaParameters(IRequestHandler handler)
+		{
+			return false;
+		}
 	};
 }
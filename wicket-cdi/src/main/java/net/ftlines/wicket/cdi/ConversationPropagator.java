@@ -16,61 +16,136 @@
  */
 package net.ftlines.wicket.cdi;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.enterprise.context.Conversation;
 import javax.enterprise.context.ConversationScoped;
 import javax.enterprise.context.NonexistentConversationException;
+import javax.enterprise.event.Event;
 import javax.inject.Inject;
+import javax.servlet.http.Cookie;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.Component;
 import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.Page;
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.application.IComponentInstantiationListener;
+import org.apache.wicket.markup.html.IHeaderContributor;
+import org.apache.wicket.markup.html.IHeaderResponse;
 import org.apache.wicket.request.IRequestHandler;
 import org.apache.wicket.request.IRequestHandlerDelegate;
 import org.apache.wicket.request.Url;
 import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
-import org.apache.wicket.request.cycle.IRequestCycleListener;
 import org.apache.wicket.request.cycle.RequestCycle;
 import org.apache.wicket.request.handler.BufferedResponseRequestHandler;
 import org.apache.wicket.request.handler.IPageClassRequestHandler;
 import org.apache.wicket.request.handler.IPageRequestHandler;
 import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.handler.resource.ResourceRequestHandler;
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.JavaScriptResourceReference;
 import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.SharedResourceReference;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
 import org.apache.wicket.util.lang.Args;
 import org.apache.wicket.util.lang.Objects;
+import org.apache.wicket.util.string.JavaScriptUtils;
+import org.apache.wicket.util.string.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A request cycle listener that takes care of propagating persistent conversations.
+ * <p>
+ * In {@link ConversationPropagation#COOKIE} mode the propagator also has to be registered as an
+ * application level header contributor, which {@link CdiConfiguration} does. Every page then
+ * remembers the conversation it was rendered in and sends it with its Ajax requests in the
+ * {@link #CID_HEADER} header, so tabs of the same browser keep their own conversations even though
+ * they share the cookie. Ajax responses update the conversation of the page.
  * 
  * @see ConversationScoped
  * 
  * @author igor
  */
 public class ConversationPropagator extends AbstractRequestCycleListener
+	implements
+		IHeaderContributor,
+		IComponentInstantiationListener
 {
 	private static final Logger logger = LoggerFactory.getLogger(ConversationPropagator.class);
 
 	private static final MetaDataKey<String> CID_KEY = ConversationIdMetaKey.INSTANCE;
 
-	private static final MetaDataKey<Boolean> CONVERSATION_STARTED_KEY = new MetaDataKey<Boolean>()
+	static final MetaDataKey<Boolean> CONVERSATION_STARTED_KEY = new MetaDataKey<Boolean>()
+	{
+	};
+
+	/** set while activation of the context is deferred to the first conversational component */
+	private static final MetaDataKey<Boolean> CONVERSATION_DEFERRED_KEY = new MetaDataKey<Boolean>()
 	{
+		private static final long serialVersionUID = 1L;
 	};
 
 
 	public static final String CID = "cid";
 
+	/**
+	 * Request header that carries the conversation id in {@link ConversationPropagation#COOKIE}
+	 * mode, for clients that keep a conversation per tab
+	 */
+	public static final String CID_HEADER = "Wicket-Conversation-Id";
+
+	/**
+	 * Script that remembers the conversation of a page and sends it with its Ajax requests in the
+	 * {@link #CID_HEADER} header
+	 */
+	private static final ResourceReference CONVERSATION_JS = new JavaScriptResourceReference(
+		ConversationPropagator.class, "wicket-cdi-conversation.js");
+
+	/** conversation id written to the cookie during this request, empty if it was cleared */
+	private static final MetaDataKey<String> COOKIE_WRITTEN_KEY = new MetaDataKey<String>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	/** page the request was handled by, stored along with its conversation marker */
+	private static final MetaDataKey<Page> PAGE_KEY = new MetaDataKey<Page>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
 	private final CdiContainer container;
 
 	/** propagation mode to use */
 	private final IConversationPropagation propagation;
 
-	private final Application application;
+	/** listeners notified when a conversation is activated and deactivated */
+	private final CdiAwareListeners listeners;
+
+	private volatile boolean fireEvents;
+
+	private volatile ConversationActivation activation = ConversationActivation.EAGER;
+
+	private volatile IRequestHandlerClassifier classifier = new RequestHandlerClassifier();
+
+	/** cached decisions of the classifier by handler class */
+	private final ConcurrentMap<Class<?>, Boolean> conversational = new ConcurrentHashMap<Class<?>, Boolean>();
 
 	@Inject
 	Conversation conversation_;
 
+	@Inject
+	Event<AfterConversationActivatedEvent> activatedEvent;
+
+	@Inject
+	Event<BeforeConversationDeactivatedEvent> deactivatedEvent;
+
 	/**
 	 * Constructor
 	 * 
@@ -90,13 +165,58 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 				"If propagation is NONE do not set up the propagator");
 		}
 
-		this.application = application;
 		this.container = container;
 		this.propagation = propagation;
 
+		CdiAwareListeners listeners = container.getCdiAwareListeners();
+		this.listeners = listeners != null ? listeners : new CdiAwareListeners(application);
+
 		container.getNonContextualManager().postConstruct(this);
 	}
 
+	/**
+	 * Sets whether {@link AfterConversationActivatedEvent} and
+	 * {@link BeforeConversationDeactivatedEvent} are fired in addition to notifying the
+	 * {@link ICdiAwareRequestCycleListener}s
+	 * 
+	 * @param fireEvents
+	 * @return {@code this} for chaining
+	 */
+	public ConversationPropagator setFireEvents(boolean fireEvents)
+	{
+		this.fireEvents = fireEvents;
+		return this;
+	}
+
+	/**
+	 * Sets when the conversation context is activated
+	 * 
+	 * @param activation
+	 * @return {@code this} for chaining
+	 */
+	public ConversationPropagator setActivation(ConversationActivation activation)
+	{
+		Args.notNull(activation, "activation");
+
+		this.activation = activation;
+		return this;
+	}
+
+	/**
+	 * Sets the classifier that decides which request handlers need a conversation context
+	 * 
+	 * @param classifier
+	 * @return {@code this} for chaining
+	 */
+	public ConversationPropagator setHandlerClassifier(IRequestHandlerClassifier classifier)
+	{
+		Args.notNull(classifier, "classifier");
+
+		this.classifier = classifier;
+		conversational.clear();
+		return this;
+	}
+
 	private Conversation getConversation(RequestCycle cycle)
 	{
 		return Boolean.TRUE.equals(cycle.getMetaData(CONVERSATION_STARTED_KEY)) ? conversation_
@@ -105,6 +225,12 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 
 	public void onRequestHandlerResolved(RequestCycle cycle, IRequestHandler handler)
 	{
+		if (getConversation(cycle) == null && !activateForHandler(handler))
+		{
+			// resources and other utility requests never take part in a conversation
+			return;
+		}
+
 		String cid = cycle.getRequest().getRequestParameters().getParameterValue(CID).toString();
 		Page page = getPage(handler);
 
@@ -113,6 +239,13 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 			cid = page.getMetaData(CID_KEY);
 		}
 
+		boolean fromCookie = false;
+		if (cid == null && propagation == ConversationPropagation.COOKIE)
+		{
+			cid = getCookieConversationId(cycle);
+			fromCookie = cid != null;
+		}
+
 		Conversation current = getConversation(cycle);
 		if (current != null && !Objects.isEqual(current.getId(), cid))
 		{
@@ -120,18 +253,118 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 			throw new ConversationExpiredException(null, cid, page, handler);
 		}
 
-		activateConversationIfNeeded(cycle, handler, cid);
+		activateConversationIfNeeded(cycle, handler, cid, fromCookie);
+	}
+
+	/**
+	 * Reads the conversation id from the {@link #CID_HEADER} header or, if there is none, from the
+	 * {@link #CID} cookie
+	 * 
+	 * @param cycle
+	 * @return conversation id or {@code null} if none
+	 */
+	private String getCookieConversationId(RequestCycle cycle)
+	{
+		if (!(cycle.getRequest() instanceof WebRequest))
+		{
+			return null;
+		}
+		WebRequest request = (WebRequest)cycle.getRequest();
+		String cid = request.getHeader(CID_HEADER);
+		if (Strings.isEmpty(cid))
+		{
+			Cookie cookie = request.getCookie(CID);
+			cid = cookie != null ? cookie.getValue() : null;
+		}
+		return Strings.isEmpty(cid) ? null : cid;
+	}
+
+	/**
+	 * Writes the id of the current long-running conversation to the {@link #CID} cookie, or clears
+	 * the cookie once the conversation has ended, in {@link ConversationPropagation#COOKIE} mode
+	 * 
+	 * @param cycle
+	 */
+	private void updateConversationCookie(RequestCycle cycle)
+	{
+		Conversation conversation = getConversation(cycle);
+		if (propagation != ConversationPropagation.COOKIE || conversation == null ||
+			!(cycle.getResponse() instanceof WebResponse))
+		{
+			return;
+		}
+
+		String cid = conversation.isTransient() ? "" : conversation.getId();
+		String written = cycle.getMetaData(COOKIE_WRITTEN_KEY);
+		if (written == null)
+		{
+			// nothing written yet, compare with what the browser sent
+			String sent = getCookieConversationId(cycle);
+			written = sent != null ? sent : "";
+		}
+		if (cid.equals(written))
+		{
+			return;
+		}
+
+		logger.debug("Propagating conversation {} via cookie", cid);
+
+		Cookie cookie = new Cookie(CID, cid);
+		cookie.setPath(getCookiePath(cycle));
+		if (cid.length() == 0)
+		{
+			((WebResponse)cycle.getResponse()).clearCookie(cookie);
+		}
+		else
+		{
+			((WebResponse)cycle.getResponse()).addCookie(cookie);
+		}
+		cycle.setMetaData(COOKIE_WRITTEN_KEY, cid);
+	}
+
+	private String getCookiePath(RequestCycle cycle)
+	{
+		String path = cycle.getRequest().getContextPath();
+		return Strings.isEmpty(path) ? "/" : path;
+	}
+
+	/**
+	 * Renders the script that sends the conversation of the page with its Ajax requests in
+	 * {@link ConversationPropagation#COOKIE} mode
+	 */
+	@Override
+	public void renderHead(IHeaderResponse response)
+	{
+		if (propagation != ConversationPropagation.COOKIE)
+		{
+			return;
+		}
+		response.renderJavaScriptReference(CONVERSATION_JS);
+		response.renderOnDomReadyJavaScript(getConversationScript(RequestCycle.get()));
+	}
+
+	/**
+	 * @param cycle
+	 * @return script setting the conversation the page takes part in, {@code null} if none
+	 */
+	private String getConversationScript(RequestCycle cycle)
+	{
+		Conversation conversation = getConversation(cycle);
+		String cid = conversation == null || conversation.isTransient() ? null
+			: conversation.getId();
+		return "Wicket.Conversation.set(" +
+			(cid == null ? "null" : "'" + JavaScriptUtils.escapeQuotes(cid) + "'") + ");";
 	}
 
 	@Override
 	public IRequestHandler onException(RequestCycle cycle, Exception ex)
 	{
-		activateConversationIfNeeded(cycle, null, null);
+		activateConversationIfNeeded(cycle, null, null, false);
 		return null;
 	}
 
 	private void activateConversationIfNeeded(RequestCycle cycle, IRequestHandler handler,
-		String cid)
+		String cid, boolean fromCookie)
 	{
 		Conversation current = getConversation(cycle);
 
@@ -140,38 +373,91 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 			return;
 		}
 
+		if (activation == ConversationActivation.ON_DEMAND && cid == null &&
+			!isConversational(handler))
+		{
+			// the page does not use the conversation, one of its components still may
+			cycle.setMetaData(CONVERSATION_DEFERRED_KEY, true);
+			return;
+		}
+
+		activateConversation(cycle, handler, cid, fromCookie);
+	}
+
+	/**
+	 * Activates the context deferred by {@link ConversationActivation#ON_DEMAND} once a component
+	 * that injects the {@link Conversation} or a {@link ConversationScoped} bean is created
+	 */
+	@Override
+	public void onInstantiation(Component component)
+	{
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle == null || !Boolean.TRUE.equals(cycle.getMetaData(CONVERSATION_DEFERRED_KEY)) ||
+			!NonContextual.of(component.getClass(), container.getBeanManager()).isConversational())
+		{
+			return;
+		}
+
+		cycle.setMetaData(CONVERSATION_DEFERRED_KEY, null);
+		if (getConversation(cycle) == null)
+		{
+			activateConversation(cycle, cycle.getActiveRequestHandler(), null, false);
+		}
+	}
+
+	private void activateConversation(RequestCycle cycle, IRequestHandler handler, String cid,
+		boolean fromCookie)
+	{
 		logger.debug("Activating conversation {}", cid);
 
 		try
 		{
 			container.activateConversationalContext(cycle, cid);
-			fireOnAfterConversationStarted(cycle);
 		}
 		catch (NonexistentConversationException e)
 		{
-			logger.info("Unable to restore conversation with id {}", cid, e.getMessage());
-			logger.debug("Unable to restore conversation", e);
+			// the context has been activated with a transient conversation regardless
+			cycle.setMetaData(CONVERSATION_STARTED_KEY, true);
 			fireOnAfterConversationStarted(cycle);
-			throw new ConversationExpiredException(e, cid, getPage(handler), handler);
+
+			if (!fromCookie)
+			{
+				logger.info("Unable to restore conversation with id {}", cid, e.getMessage());
+				logger.debug("Unable to restore conversation", e);
+				throw new ConversationExpiredException(e, cid, getPage(handler), handler);
+			}
+
+			// a stale cookie must not expire every page, continue with the transient conversation
+			logger.debug("Conversation {} from cookie no longer exists", cid);
+			return;
 		}
 
+		// mark the context as active before any listener runs, so it is deactivated in onDetach
+		// even if one of them fails
 		cycle.setMetaData(CONVERSATION_STARTED_KEY, true);
+		fireOnAfterConversationStarted(cycle);
 	}
 
 	private void fireOnAfterConversationStarted(RequestCycle cycle)
 	{
-		for (IRequestCycleListener listener : application.getRequestCycleListeners())
+		listeners.fireOnAfterConversationActivated(cycle);
+		if (fireEvents)
 		{
-			if (listener instanceof ICdiAwareRequestCycleListener)
-			{
-				((ICdiAwareRequestCycleListener)listener).onAfterConversationActivated(cycle);
-			}
+			activatedEvent.fire(new AfterConversationActivatedEvent(cycle));
 		}
 	}
 
 	@Override
 	public void onRequestHandlerExecuted(RequestCycle cycle, IRequestHandler handler)
 	{
+		updateConversationCookie(cycle);
+
+		Page page = getPage(handler);
+		if (page != null)
+		{
+			cycle.setMetaData(PAGE_KEY, page);
+		}
+
 		Conversation conversation = getConversation(cycle);
 
 		if (conversation == null || conversation.isTransient())
@@ -180,7 +466,6 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 		}
 
 
-		Page page = getPage(handler);
 		if (page != null && propagation.propagatesViaPage(page, handler))
 		{
 			// propagate a conversation across non-bookmarkable page instances
@@ -190,6 +475,27 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 
 	public void onRequestHandlerScheduled(RequestCycle cycle, IRequestHandler handler)
 	{
+		updateConversationCookie(cycle);
+
+		if (propagation == ConversationPropagation.COOKIE && handler instanceof AjaxRequestTarget)
+		{
+			// the request may have started or ended the conversation of the page
+			((AjaxRequestTarget)handler).addListener(new AjaxRequestTarget.IListener()
+			{
+				@Override
+				public void onBeforeRespond(Map<String, Component> map, AjaxRequestTarget target)
+				{
+				}
+
+				@Override
+				public void onAfterRespond(Map<String, Component> map,
+					AjaxRequestTarget.IJavaScriptResponse response)
+				{
+					response.addJavaScript(getConversationScript(RequestCycle.get()));
+				}
+			});
+		}
+
 		Conversation conversation = getConversation(cycle);
 
 		if (conversation == null || conversation.isTransient())
@@ -232,13 +538,10 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 	@Override
 	public void onUrlMapped(RequestCycle cycle, IRequestHandler handler, Url url)
 	{
-		// no need to propagate the conversation to packaged resources, they should never change
-		if (handler instanceof ResourceReferenceRequestHandler)
+		// no need to propagate the conversation to cacheable resources, they should never change
+		if (isCacheableResource(handler))
 		{
-			if (((ResourceReferenceRequestHandler)handler).getResourceReference() instanceof PackageResourceReference)
-			{
-				return;
-			}
+			return;
 		}
 
 		Conversation conversation = getConversation(cycle);
@@ -266,23 +569,58 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 		{
 			logger.debug("Deactivating conversation {}", conversation.getId());
 
-			for (IRequestCycleListener listener : application.getRequestCycleListeners())
+			try
 			{
-				if (listener instanceof ICdiAwareRequestCycleListener)
+				listeners.fireOnBeforeConversationDeactivated(cycle);
+				if (fireEvents)
 				{
-					((ICdiAwareRequestCycleListener)listener).onBeforeConversationDeactivated(cycle);
+					deactivatedEvent.fire(new BeforeConversationDeactivatedEvent(cycle));
 				}
 			}
-			container.deactivateConversationalContext(cycle);
+			finally
+			{
+				// releases the conversation to the next request even if a listener failed
+				cycle.setMetaData(CONVERSATION_STARTED_KEY, null);
+				container.deactivateConversationalContext(cycle, cycle.getMetaData(PAGE_KEY));
+			}
+		}
+	}
+
+	/**
+	 * Determines whether or not the handler serves a resource whose url must not depend on the
+	 * conversation, so browsers and proxies can cache it. Packaged, shared and static cacheable
+	 * resources, which include context relative resources and all resources whose urls are
+	 * versioned by the resource caching strategy, are never decorated with the conversation id.
+	 * 
+	 * @param handler
+	 * @return {@code true} iff the handler serves a cacheable resource
+	 */
+	protected boolean isCacheableResource(IRequestHandler handler)
+	{
+		while (handler instanceof IRequestHandlerDelegate)
+		{
+			handler = ((IRequestHandlerDelegate)handler).getDelegateHandler();
+		}
 
-			cycle.setMetaData(CONVERSATION_STARTED_KEY, null);
+		if (handler instanceof ResourceReferenceRequestHandler)
+		{
+			ResourceReference reference = ((ResourceReferenceRequestHandler)handler).getResourceReference();
+			return reference instanceof PackageResourceReference ||
+				reference instanceof SharedResourceReference ||
+				reference.getResource() instanceof IStaticCacheableResource;
 		}
+		else if (handler instanceof ResourceRequestHandler)
+		{
+			return ((ResourceRequestHandler)handler).getResource() instanceof IStaticCacheableResource;
+		}
+		return false;
 	}
 
 	/**
 	 * Determines whether or not a conversation should be activated fro the specified handler. This
 	 * method is used to filter out conversation activation for utility handlers such as the
-	 * {@link BufferedResponseRequestHandler}
+	 * {@link BufferedResponseRequestHandler} and resource handlers, as decided by the
+	 * {@link IRequestHandlerClassifier}
 	 * 
 	 * @param handler
 	 * @return {@code true} iff a conversation should be activated
@@ -291,15 +629,51 @@ public class ConversationPropagator extends AbstractRequestCycleListener
 	{
 		if (handler != null)
 		{
-			if (handler instanceof BufferedResponseRequestHandler)
+			while (handler instanceof IRequestHandlerDelegate)
+			{
+				handler = ((IRequestHandlerDelegate)handler).getDelegateHandler();
+			}
+
+			Class<? extends IRequestHandler> handlerClass = handler.getClass();
+			Boolean result = conversational.get(handlerClass);
+			if (result == null)
 			{
-				// we do not care about pages that are being rendered from a buffer
-				return false;
+				result = classifier.isConversational(handlerClass);
+				conversational.put(handlerClass, result);
 			}
+			return result;
 		}
 		return true;
 	}
 
+	/**
+	 * Determines whether or not the page targeted by the handler injects the conversation or a
+	 * conversation scoped bean, or has taken part in a conversation
+	 * 
+	 * @param handler
+	 * @return {@code true} iff the page is conversational
+	 */
+	private boolean isConversational(IRequestHandler handler)
+	{
+		while (handler instanceof IRequestHandlerDelegate)
+		{
+			handler = ((IRequestHandlerDelegate)handler).getDelegateHandler();
+		}
+
+		if (handler instanceof IPageClassRequestHandler)
+		{
+			Class<?> pageClass = ((IPageClassRequestHandler)handler).getPageClass();
+			if (NonContextual.of(pageClass, container.getBeanManager()).isConversational())
+			{
+				return true;
+			}
+		}
+
+		// a page whose components took part in a conversation carries its marker
+		Page page = getPage(handler);
+		return page != null && page.getMetaData(CID_KEY) != null;
+	}
+
 	/**
 	 * Resolves a page instance from the request handler iff the page instance is already created
 	 * 
@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.session.ISessionStore.UnboundListener;
+import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ends long-running conversations that have been orphaned or abandoned, so their beans are
+ * released long before the session times out.
+ * <p>
+ * A conversation is propagated by the pages that carry its id in their
+ * {@link ConversationIdMetaKey}. For every session the reaper remembers the conversation carried by
+ * each of the most recently stored pages, as those pages are put into the page store at the end of
+ * a request. A conversation that none of these pages carries any longer is orphaned: the user can
+ * no longer get back to it, for example because it was begun on a page the user navigated away
+ * from. The reaper ends orphaned conversations once no request has activated them for the orphan
+ * timeout, which only has to cover the requests that carry the id in the url or a cookie before it
+ * reaches a page.
+ * <p>
+ * A conversation that is still carried by a page but that no request has activated for the
+ * inactivity timeout has most likely been abandoned along with its tab, and is ended as well. The
+ * inactivity timeout should be well above the time a user may spend on a {@link Page} without
+ * making a request, including the Ajax requests of timers that keep it alive.
+ * <p>
+ * The reaper checks the sessions that hold long-running conversations periodically on a background
+ * thread. It only touches a session under the lock the container orders requests of the session
+ * with, skips conversations a request is using and forgets sessions once they are unbound or
+ * invalidated. Ended conversations are destroyed through the container, running the
+ * {@code @PreDestroy} callbacks of their beans, and a later request for one fails with a
+ * {@link ConversationExpiredException}.
+ * <p>
+ * If an {@link IConversationStore} is configured the reaper can also move conversations that have
+ * been idle for a shorter period to the store on the same thread, rather than moving every
+ * conversation at the end of every request that used it. They are restored when a request
+ * activates them again. When the application is destroyed all conversations that are not in use
+ * are moved to the store, so a persistent store such as {@link MappedConversationStore} carries
+ * them over a restart. Once the application has started again the reaper resumes checking the
+ * sessions the servlet container restored.
+ * 
+ * <pre>
+ * new CdiConfiguration(beanManager).setConversationReaper(
+ * 	new ConversationReaper().setOrphanTimeout(1, TimeUnit.MINUTES)).configure(this);
+ * 
+ * long reclaimed = CdiContainer.get(application).getConversationReaper().getReclaimedBytes();
+ * </pre>
+ * 
+ * @author igor
+ */
+public class ConversationReaper
+{
+	private static final Logger logger = LoggerFactory.getLogger(ConversationReaper.class);
+
+	private long inactivityTimeout = TimeUnit.MINUTES.toMillis(10);
+	private long orphanTimeout = TimeUnit.MINUTES.toMillis(1);
+	private long idleTimeout = 0;
+	private long period = TimeUnit.MINUTES.toMillis(1);
+	private int pageHistory = 100;
+
+	private final ConcurrentMap<String, HttpSession> sessions = new ConcurrentHashMap<String, HttpSession>();
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong reclaimedConversations = new AtomicLong();
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+	private final AtomicLong orphanedConversations = new AtomicLong();
+	private final AtomicLong passivatedConversations = new AtomicLong();
+	private final AtomicLong passivatedBytes = new AtomicLong();
+	private volatile CdiContainer container;
+	private volatile ScheduledExecutorService executor;
+
+	/**
+	 * Sets the time after which a conversation no request has activated is ended, defaults to ten
+	 * minutes
+	 * 
+	 * @param time
+	 *            timeout, {@code 0} to leave inactive conversations to the container
+	 * @param unit
+	 * @return {@code this} for chaining
+	 */
+	public ConversationReaper setInactivityTimeout(long time, TimeUnit unit)
+	{
+		Args.isTrue(time >= 0, "time must not be negative");
+
+		inactivityTimeout = unit.toMillis(time);
+		return this;
+	}
+
+	/**
+	 * @return inactivity timeout in milliseconds, {@code 0} if disabled
+	 */
+	public long getInactivityTimeout()
+	{
+		return inactivityTimeout;
+	}
+
+	/**
+	 * Sets the time after which a conversation that no recently stored page carries and no request
+	 * has activated is ended, defaults to one minute
+	 * 
+	 * @param time
+	 *            timeout, {@code 0} to leave orphaned conversations to the inactivity timeout
+	 * @param unit
+	 * @return {@code this} for chaining
+	 */
+	public ConversationReaper setOrphanTimeout(long time, TimeUnit unit)
+	{
+		Args.isTrue(time >= 0, "time must not be negative");
+
+		orphanTimeout = unit.toMillis(time);
+		return this;
+	}
+
+	/**
+	 * @return orphan timeout in milliseconds, {@code 0} if disabled
+	 */
+	public long getOrphanTimeout()
+	{
+		return orphanTimeout;
+	}
+
+	/**
+	 * Sets the number of the most recently stored pages of a session whose conversations are
+	 * remembered, defaults to {@code 100}. Older pages are assumed to have left the page store.
+	 * 
+	 * @param pages
+	 * @return {@code this} for chaining
+	 */
+	public ConversationReaper setPageHistory(int pages)
+	{
+		Args.isTrue(pages > 0, "pages must be positive");
+
+		pageHistory = pages;
+		return this;
+	}
+
+	/**
+	 * @return number of pages per session whose conversations are remembered
+	 */
+	public int getPageHistory()
+	{
+		return pageHistory;
+	}
+
+	/**
+	 * Sets the time after which a conversation no request has activated is moved to the
+	 * {@link IConversationStore}. Requires a store to be configured.
+	 * 
+	 * @param time
+	 *            timeout, {@code 0} to move conversations at the end of every request that used
+	 *            them
+	 * @param unit
+	 * @return {@code this} for chaining
+	 */
+	public ConversationReaper setIdleTimeout(long time, TimeUnit unit)
+	{
+		Args.isTrue(time >= 0, "time must not be negative");
+
+		idleTimeout = unit.toMillis(time);
+		return this;
+	}
+
+	/**
+	 * @return idle timeout in milliseconds, {@code 0} if disabled
+	 */
+	public long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets how often the sessions are checked, defaults to once a minute
+	 * 
+	 * @param time
+	 * @param unit
+	 * @return {@code this} for chaining
+	 */
+	public ConversationReaper setPeriod(long time, TimeUnit unit)
+	{
+		Args.isTrue(time > 0, "time must be positive");
+
+		period = unit.toMillis(time);
+		return this;
+	}
+
+	/**
+	 * @return period in milliseconds
+	 */
+	public long getPeriod()
+	{
+		return period;
+	}
+
+	/**
+	 * @return number of times the sessions have been checked
+	 */
+	public long getRuns()
+	{
+		return runs.get();
+	}
+
+	/**
+	 * @return number of sessions holding long-running conversations
+	 */
+	public int getSessions()
+	{
+		return sessions.size();
+	}
+
+	/**
+	 * @return total number of orphaned and inactive conversations ended
+	 */
+	public long getReclaimedConversations()
+	{
+		return reclaimedConversations.get();
+	}
+
+	/**
+	 * @return total serialized size of the beans of the orphaned and inactive conversations ended
+	 */
+	public long getReclaimedBytes()
+	{
+		return reclaimedBytes.get();
+	}
+
+	/**
+	 * @return total number of conversations ended because no page carried them any longer
+	 */
+	public long getOrphanedConversations()
+	{
+		return orphanedConversations.get();
+	}
+
+	/**
+	 * @return total number of idle conversations moved to the store
+	 */
+	public long getPassivatedConversations()
+	{
+		return passivatedConversations.get();
+	}
+
+	/**
+	 * @return total serialized size of the idle conversations moved to the store
+	 */
+	public long getPassivatedBytes()
+	{
+		return passivatedBytes.get();
+	}
+
+	/**
+	 * Starts checking the sessions of the container in the background
+	 * 
+	 * @param container
+	 */
+	synchronized void start(CdiContainer container)
+	{
+		if (executor != null)
+		{
+			throw new IllegalStateException("Conversation reaper has already been started");
+		}
+
+		this.container = container;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "wicket-cdi-conversation-reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					reap();
+				}
+				catch (RuntimeException e)
+				{
+					// keep the task scheduled
+					logger.error("Could not reap conversations", e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops checking the sessions
+	 */
+	synchronized void stop()
+	{
+		if (executor != null)
+		{
+			executor.shutdownNow();
+			executor = null;
+		}
+		sessions.clear();
+	}
+
+	/**
+	 * Ends the orphaned and inactive conversations and moves the idle ones to the store in all
+	 * registered sessions
+	 */
+	void reap()
+	{
+		long now = System.currentTimeMillis();
+		reap(getInactiveBefore(now), getOrphanedBefore(now), getIdleBefore(now));
+		runs.incrementAndGet();
+	}
+
+	/**
+	 * Moves the conversations of all registered sessions that are not in use to the store, called
+	 * when the application is destroyed
+	 */
+	void snapshot()
+	{
+		if (container != null && container.getConversationStore() != null)
+		{
+			long before = passivatedConversations.get();
+			reap(Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+			logger.info("Moved {} conversations to the store", passivatedConversations.get() -
+				before);
+		}
+	}
+
+	private void reap(long inactiveBefore, long orphanedBefore, long idleBefore)
+	{
+		for (Map.Entry<String, HttpSession> entry : sessions.entrySet())
+		{
+			boolean live;
+			try
+			{
+				live = container.reapConversations(entry.getValue(), inactiveBefore,
+					orphanedBefore, idleBefore, this);
+			}
+			catch (IllegalStateException e)
+			{
+				// the session has been invalidated
+				live = false;
+			}
+			if (!live)
+			{
+				sessions.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Registers a session that holds long-running conversations. A session the container has
+	 * replaced, for example after restoring or replicating it, replaces the one registered before.
+	 * 
+	 * @param session
+	 */
+	void register(HttpSession session)
+	{
+		if (sessions.get(session.getId()) != session)
+		{
+			sessions.put(session.getId(), session);
+		}
+	}
+
+	/**
+	 * @return listener that unregisters sessions as they are unbound
+	 */
+	UnboundListener getUnboundListener()
+	{
+		return new UnboundListener()
+		{
+			@Override
+			public void sessionUnbound(String sessionId)
+			{
+				sessions.remove(sessionId);
+			}
+		};
+	}
+
+	/**
+	 * Computes the time before which a conversation must have been last activated to be ended
+	 * 
+	 * @param now
+	 * @return cutoff in milliseconds, {@link Long#MIN_VALUE} to end none
+	 */
+	long getInactiveBefore(long now)
+	{
+		return inactivityTimeout > 0 ? now - inactivityTimeout : Long.MIN_VALUE;
+	}
+
+	/**
+	 * Computes the time before which a conversation no page carries must have been last activated
+	 * to be ended
+	 * 
+	 * @param now
+	 * @return cutoff in milliseconds, {@link Long#MIN_VALUE} to end none
+	 */
+	long getOrphanedBefore(long now)
+	{
+		return orphanTimeout > 0 ? now - orphanTimeout : Long.MIN_VALUE;
+	}
+
+	/**
+	 * Computes the time before which a conversation must have been last activated to be moved to
+	 * the store
+	 * 
+	 * @param now
+	 * @return cutoff in milliseconds, {@link Long#MIN_VALUE} to move none
+	 */
+	long getIdleBefore(long now)
+	{
+		return idleTimeout > 0 ? now - idleTimeout : Long.MIN_VALUE;
+	}
+
+	/**
+	 * Records a conversation that has been ended
+	 * 
+	 * @param bytes
+	 *            serialized size of its beans
+	 * @param orphaned
+	 *            whether no page carried it any longer
+	 */
+	void reclaimed(int bytes, boolean orphaned)
+	{
+		reclaimedConversations.incrementAndGet();
+		reclaimedBytes.addAndGet(bytes);
+		if (orphaned)
+		{
+			orphanedConversations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records an idle conversation that has been moved to the store
+	 * 
+	 * @param bytes
+	 *            serialized size of its beans, {@code 0} if there were none
+	 */
+	void passivated(int bytes)
+	{
+		if (bytes > 0)
+		{
+			passivatedConversations.incrementAndGet();
+			passivatedBytes.addAndGet(bytes);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ConversationReaper [sessions=" + sessions.size() + ", runs=" + runs +
+			", reclaimedConversations=" + reclaimedConversations + ", reclaimedBytes=" +
+			reclaimedBytes + ", orphanedConversations=" + orphanedConversations +
+			", passivatedConversations=" + passivatedConversations + ", passivatedBytes=" +
+			passivatedBytes + "]";
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.Dependent;
+import javax.enterprise.context.spi.CreationalContext;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Page;
+import org.apache.wicket.Session;
+import org.apache.wicket.behavior.Behavior;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the {@link CreationalContext}s that hold {@link Dependent} beans injected into
+ * non-contextual instances.
+ * <p>
+ * A context is released, destroying its dependent beans and running their {@link PreDestroy}
+ * callbacks, when the instance it was created for is destroyed via
+ * {@link NonContextual#preDestroy(Object)}. Otherwise the lifecycle of the instance decides:
+ * <ul>
+ * <li>Components and behaviors injected during a request belong to their page. A page lives on in
+ * the page store after its instance is gone, so their contexts are kept until the session the
+ * page is stored in is unbound. Contexts of stateless pages, which are never stored, are released
+ * when the request is detached.</li>
+ * <li>Other instances are tracked weakly and their contexts are released once they have been
+ * garbage collected, on the next injection.</li>
+ * </ul>
+ * Contexts that are still outstanding when the application shuts down are released by
+ * {@link NonContextual#undeploy}.
+ *
+ * @see DependentInstancesReleaser
+ *
+ * @author igor
+ */
+public class DependentInstances
+{
+	private static final Logger logger = LoggerFactory.getLogger(DependentInstances.class);
+
+	/** contexts tracked for the pages of the current request */
+	private static final MetaDataKey<List<Entry>> REQUEST_KEY = new MetaDataKey<List<Entry>>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private final ConcurrentMap<Entry, Entry> entries = new ConcurrentHashMap<Entry, Entry>();
+
+	/** contexts of stored pages by session id */
+	private final ConcurrentMap<String, Map<Entry, Entry>> sessions = new ConcurrentHashMap<String, Map<Entry, Entry>>();
+
+	/** contexts tracked without an owner outside of a request */
+	private final Set<Entry> unowned = new HashSet<Entry>();
+
+	private final AtomicLong tracked = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+
+	/**
+	 * Tracks the context holding the dependent beans of the instance
+	 *
+	 * @param instance
+	 *            owner of the dependent beans, {@code null} if it is not known, in which case the
+	 *            dependent beans belong to the page of the current request
+	 * @param cc
+	 */
+	void track(Object instance, CreationalContext<?> cc)
+	{
+		expunge();
+		tracked.incrementAndGet();
+
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle != null &&
+			(instance == null || instance instanceof Component || instance instanceof Behavior))
+		{
+			// the page is only known once the request is done
+			List<Entry> pending = cycle.getMetaData(REQUEST_KEY);
+			if (pending == null)
+			{
+				pending = new ArrayList<Entry>();
+				cycle.setMetaData(REQUEST_KEY, pending);
+			}
+			pending.add(new Entry(instance, cc, null));
+		}
+		else if (instance == null)
+		{
+			synchronized (unowned)
+			{
+				unowned.add(new Entry(null, cc, null));
+			}
+		}
+		else
+		{
+			Entry entry = new Entry(instance, cc, queue);
+			entries.put(entry, entry);
+		}
+	}
+
+	/**
+	 * Releases the context of the instance, if any
+	 *
+	 * @param instance
+	 */
+	void release(Object instance)
+	{
+		expunge();
+
+		Entry key = new Entry(instance, null, null);
+		Entry entry = entries.remove(key);
+		if (entry == null)
+		{
+			RequestCycle cycle = RequestCycle.get();
+			List<Entry> pending = cycle != null ? cycle.getMetaData(REQUEST_KEY) : null;
+			int index = pending != null ? pending.indexOf(key) : -1;
+			if (index >= 0)
+			{
+				entry = pending.remove(index);
+			}
+		}
+		if (entry == null)
+		{
+			for (Map<Entry, Entry> stored : sessions.values())
+			{
+				synchronized (stored)
+				{
+					entry = stored.remove(key);
+				}
+				if (entry != null)
+				{
+					break;
+				}
+			}
+		}
+		if (entry != null)
+		{
+			release(entry);
+		}
+	}
+
+	/**
+	 * Hands the contexts tracked during the request over to the pages their instances belong to
+	 *
+	 * @param cycle
+	 * @param requestPage
+	 *            page the request was handled by, owns the instances that are not part of a page,
+	 *            {@code null} if none
+	 */
+	void detach(RequestCycle cycle, Page requestPage)
+	{
+		List<Entry> pending = cycle.getMetaData(REQUEST_KEY);
+		if (pending == null)
+		{
+			return;
+		}
+		cycle.setMetaData(REQUEST_KEY, null);
+
+		String sessionId = Session.exists() ? Session.get().getId() : null;
+		for (Entry entry : pending)
+		{
+			Object instance = entry.get();
+			Page page = null;
+			if (instance instanceof Page)
+			{
+				page = (Page)instance;
+			}
+			else if (instance instanceof Component)
+			{
+				page = ((Component)instance).findParent(Page.class);
+			}
+			if (page == null)
+			{
+				page = requestPage;
+			}
+
+			if (page == null || page.isPageStateless() || sessionId == null)
+			{
+				// the instance does not outlive the request
+				release(entry);
+				continue;
+			}
+
+			Map<Entry, Entry> stored = sessions.get(sessionId);
+			if (stored == null)
+			{
+				stored = new HashMap<Entry, Entry>();
+				Map<Entry, Entry> existing = sessions.putIfAbsent(sessionId, stored);
+				if (existing != null)
+				{
+					stored = existing;
+				}
+			}
+			synchronized (stored)
+			{
+				stored.put(entry, entry);
+			}
+		}
+	}
+
+	/**
+	 * Releases the contexts of the pages stored in the session
+	 *
+	 * @param sessionId
+	 */
+	void releaseSession(String sessionId)
+	{
+		Map<Entry, Entry> stored = sessions.remove(sessionId);
+		if (stored != null)
+		{
+			synchronized (stored)
+			{
+				for (Entry entry : stored.values())
+				{
+					release(entry);
+				}
+				stored.clear();
+			}
+		}
+	}
+
+	/**
+	 * Releases all outstanding contexts
+	 */
+	void releaseAll()
+	{
+		for (Entry entry : entries.keySet())
+		{
+			if (entries.remove(entry) != null)
+			{
+				release(entry);
+			}
+		}
+		for (String sessionId : sessions.keySet())
+		{
+			releaseSession(sessionId);
+		}
+		synchronized (unowned)
+		{
+			for (Entry entry : unowned)
+			{
+				release(entry);
+			}
+			unowned.clear();
+		}
+	}
+
+	/**
+	 * Releases contexts of instances that have been garbage collected
+	 */
+	void expunge()
+	{
+		Reference<?> reference;
+		while ((reference = queue.poll()) != null)
+		{
+			Entry entry = (Entry)reference;
+			if (entries.remove(entry) != null)
+			{
+				release(entry);
+			}
+		}
+	}
+
+	private void release(Entry entry)
+	{
+		try
+		{
+			entry.cc.release();
+		}
+		catch (RuntimeException e)
+		{
+			logger.warn("Could not release dependent instances", e);
+		}
+		released.incrementAndGet();
+	}
+
+	/**
+	 * @return number of contexts that have been tracked and not yet released
+	 */
+	public int getOutstanding()
+	{
+		return (int)(tracked.get() - released.get());
+	}
+
+	/**
+	 * @return total number of contexts tracked
+	 */
+	public long getTracked()
+	{
+		return tracked.get();
+	}
+
+	/**
+	 * @return total number of contexts released
+	 */
+	public long getReleased()
+	{
+		return released.get();
+	}
+
+	/**
+	 * Weak reference to an instance that compares by the identity of the instance
+	 *
+	 * @author igor
+	 */
+	private static final class Entry extends WeakReference<Object>
+	{
+		private final int hash;
+		private final CreationalContext<?> cc;
+
+		public Entry(Object instance, CreationalContext<?> cc, ReferenceQueue<Object> queue)
+		{
+			super(instance, queue);
+			this.hash = System.identityHashCode(instance);
+			this.cc = cc;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (obj == this)
+			{
+				return true;
+			}
+			if (obj instanceof Entry)
+			{
+				Object instance = get();
+				return instance != null && instance == ((Entry)obj).get();
+			}
+			return false;
+		}
+	}
+}
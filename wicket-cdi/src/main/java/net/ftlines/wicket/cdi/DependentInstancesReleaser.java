@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Page;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.session.ISessionStore.UnboundListener;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Ties the dependent beans injected into components to the lifecycle of their pages: hands them
+ * over to the page when the request is detached and releases them when the session holding the
+ * page store of the page is unbound
+ * 
+ * @see DependentInstances
+ * 
+ * @author igor
+ */
+class DependentInstancesReleaser extends AbstractRequestCycleListener implements UnboundListener
+{
+	private static final MetaDataKey<Page> PAGE_KEY = new MetaDataKey<Page>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final CdiContainer container;
+
+	public DependentInstancesReleaser(CdiContainer container)
+	{
+		Args.notNull(container, "container");
+
+		this.container = container;
+	}
+
+	@Override
+	public void onRequestHandlerExecuted(RequestCycle cycle, IRequestHandler handler)
+	{
+		Page page = ConversationPropagator.getPage(handler);
+		if (page != null)
+		{
+			cycle.setMetaData(PAGE_KEY, page);
+		}
+	}
+
+	@Override
+	public void onDetach(RequestCycle cycle)
+	{
+		container.getDependentInstances().detach(cycle, cycle.getMetaData(PAGE_KEY));
+	}
+
+	@Override
+	public void sessionUnbound(String sessionId)
+	{
+		container.getDependentInstances().releaseSession(sessionId);
+	}
+}
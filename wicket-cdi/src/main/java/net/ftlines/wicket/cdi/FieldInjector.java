@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.enterprise.context.Dependent;
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.AmbiguousResolutionException;
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.InjectionPoint;
+import javax.enterprise.inject.spi.InjectionTarget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Injection plan of a single class that writes references directly into fields, bypassing the
+ * per-instance injection point processing of {@link InjectionTarget#inject}.
+ * <p>
+ * A plan can only be compiled when every injection point of the class is a plain field; classes
+ * with initializer methods, even ones without parameters, delegate injection points or
+ * {@link InjectionPoint} metadata fields are reported as unsupported and must be injected by the
+ * {@link InjectionTarget}.
+ * <p>
+ * Each injection point is resolved once, the first time it is injected. If it resolves to a bean
+ * with a normal scope its client proxy is stateless, so the proxy is cached and simply written into
+ * the field of every following instance. Only injection points of {@link Dependent} beans are
+ * resolved per instance, and those of {@link Lazy} fields are not resolved until the injected
+ * proxy is first used.
+ *
+ * @author igor
+ */
+class FieldInjector
+{
+	private static final Logger logger = LoggerFactory.getLogger(FieldInjector.class);
+
+	private static final FieldInjector UNSUPPORTED = new FieldInjector(null, null);
+
+	private final NonContextual<?> owner;
+	private final BeanManager manager;
+	private final InjectedField[] fields;
+
+	private FieldInjector(NonContextual<?> owner, InjectedField[] fields)
+	{
+		this.owner = owner;
+		this.manager = owner != null ? owner.manager : null;
+		this.fields = fields;
+	}
+
+	/**
+	 * Compiles the injection plan for the specified injection points
+	 *
+	 * @param owner
+	 *            noncontextual helper of the class
+	 * @param clazz
+	 *            injected class, checked for initializer methods without injection points
+	 * @param injectionPoints
+	 * @return injection plan, check {@link #isSupported()} before using it
+	 */
+	public static FieldInjector of(NonContextual<?> owner, Class<?> clazz,
+		Set<InjectionPoint> injectionPoints)
+	{
+		if (NonContextualCache.hasInjectMethods(clazz))
+		{
+			return UNSUPPORTED;
+		}
+		List<InjectedField> fields = new ArrayList<InjectedField>(injectionPoints.size());
+		for (InjectionPoint ip : injectionPoints)
+		{
+			if (!(ip.getMember() instanceof Field) || ip.isDelegate() ||
+				isInjectionPointMetadata(ip.getType()))
+			{
+				return UNSUPPORTED;
+			}
+
+			Field field = (Field)ip.getMember();
+			if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers()))
+			{
+				return UNSUPPORTED;
+			}
+
+			try
+			{
+				field.setAccessible(true);
+			}
+			catch (SecurityException e)
+			{
+				return UNSUPPORTED;
+			}
+			fields.add(new InjectedField(field, ip));
+		}
+		return new FieldInjector(owner, fields.toArray(new InjectedField[fields.size()]));
+	}
+
+	private static boolean isInjectionPointMetadata(Type type)
+	{
+		return InjectionPoint.class.equals(type);
+	}
+
+	/**
+	 * Resolves the bean of an injection point
+	 *
+	 * @param manager
+	 * @param ip
+	 * @return bean or {@code null} if the injection point is unsatisfied or ambiguous
+	 */
+	static Bean<?> resolve(BeanManager manager, InjectionPoint ip)
+	{
+		Set<Annotation> qualifiers = ip.getQualifiers();
+		try
+		{
+			return manager.resolve(manager.getBeans(ip.getType(),
+				qualifiers.toArray(new Annotation[qualifiers.size()])));
+		}
+		catch (AmbiguousResolutionException e)
+		{
+			// let injection report the problem
+			return null;
+		}
+	}
+
+	/**
+	 * Tells whether or not any of the injection points is a {@link Lazy} field
+	 *
+	 * @param injectionPoints
+	 * @return {@code true} iff at least one field is lazy
+	 */
+	public static boolean hasLazyFields(Set<InjectionPoint> injectionPoints)
+	{
+		for (InjectionPoint ip : injectionPoints)
+		{
+			if (ip.getMember() instanceof Field &&
+				((Field)ip.getMember()).isAnnotationPresent(Lazy.class))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return {@code true} iff the class can be injected by this plan
+	 */
+	public boolean isSupported()
+	{
+		return fields != null;
+	}
+
+	/**
+	 * Injects all fields of the instance
+	 *
+	 * @param instance
+	 * @return creational context holding any dependent instances created for the instance, or
+	 *         {@code null} if all fields were injected with cached normal scoped references
+	 */
+	public CreationalContext<?> inject(Object instance)
+	{
+		CreationalContext<?> cc = null;
+		for (InjectedField field : fields)
+		{
+			Object reference = field.getSharedReference(owner);
+			if (reference == null && field.lazy)
+			{
+				reference = LazyReference.of(instance, field.field);
+			}
+			else if (reference == null)
+			{
+				if (cc == null)
+				{
+					cc = manager.createCreationalContext(null);
+				}
+				reference = manager.getInjectableReference(field.ip, cc);
+			}
+			field.set(instance, reference);
+		}
+		return cc;
+	}
+
+	/**
+	 * Reads the references injected into the fields of an instance
+	 * 
+	 * @param instance
+	 * @return references in the order of the fields of the plan
+	 */
+	public Object[] read(Object instance)
+	{
+		Object[] references = new Object[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			references[i] = fields[i].get(instance);
+		}
+		return references;
+	}
+
+	/**
+	 * Writes references read from another instance of the class into the fields of an instance
+	 * 
+	 * @param instance
+	 * @param references
+	 *            references as returned by {@link #read(Object)}
+	 */
+	public void write(Object instance, Object[] references)
+	{
+		for (int i = 0; i < fields.length; i++)
+		{
+			fields[i].set(instance, references[i]);
+		}
+	}
+
+	/**
+	 * A single injected field
+	 *
+	 * @author igor
+	 */
+	private static final class InjectedField
+	{
+		private final Field field;
+		private final InjectionPoint ip;
+		private final boolean lazy;
+
+		private volatile boolean resolved;
+		private volatile Object shared;
+
+		public InjectedField(Field field, InjectionPoint ip)
+		{
+			this.field = field;
+			this.ip = ip;
+
+			boolean lazy = field.isAnnotationPresent(Lazy.class);
+			if (lazy && !field.getType().isInterface())
+			{
+				logger.warn(
+					"Field {} is marked @Lazy but its type is not an interface, injecting eagerly",
+					field);
+				lazy = false;
+			}
+			this.lazy = lazy;
+		}
+
+		/**
+		 * Resolves the injection point on first use
+		 *
+		 * @param owner
+		 * @return cached client proxy or {@code null} if the reference must be created per instance
+		 */
+		public Object getSharedReference(NonContextual<?> owner)
+		{
+			if (!resolved)
+			{
+				// resolution is idempotent so a racing thread at worst does it twice
+				Bean<?> bean = resolve(owner.manager, ip);
+				if (bean != null && owner.manager.isNormalScope(bean.getScope()))
+				{
+					shared = owner.getSharedReference(ip, bean);
+				}
+				resolved = true;
+			}
+			return shared;
+		}
+
+		public Object get(Object instance)
+		{
+			try
+			{
+				return field.get(instance);
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new IllegalStateException("Could not read field " + field, e);
+			}
+		}
+
+		public void set(Object instance, Object reference)
+		{
+			try
+			{
+				field.set(instance, reference);
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new IllegalStateException("Could not inject field " + field, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import javax.enterprise.context.ConversationScoped;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Storage of the serialized state of long-running conversations between the requests that use
+ * them. By default the {@link ConversationScoped} beans of a conversation stay in the
+ * {@link HttpSession}; once a store is configured they are moved out of the session when the
+ * conversation context is deactivated, or once the conversation is idle, and put back when it is
+ * activated again.
+ * <p>
+ * Conversations are stored under a key of their session. The key is kept in the session and,
+ * unlike the session id, stays the same when the container renews the session id or restores the
+ * session after a restart.
+ * <p>
+ * Implementations must be thread safe.
+ * 
+ * @see CdiConfiguration#setConversationStore(IConversationStore)
+ * @see MappedConversationStore
+ * 
+ * @author igor
+ */
+public interface IConversationStore
+{
+	/**
+	 * Stores the state of a conversation, replacing any state stored before
+	 * 
+	 * @param sessionKey
+	 *            key of the session the conversation belongs to
+	 * @param cid
+	 *            conversation id
+	 * @param state
+	 *            serialized state
+	 * @return {@code true} if the state was stored, {@code false} if it could not be, in which case
+	 *         it stays in the session
+	 */
+	public boolean store(String sessionKey, String cid, byte[] state);
+
+	/**
+	 * Removes the state of a conversation from the store and returns it
+	 * 
+	 * @param sessionKey
+	 * @param cid
+	 * @return serialized state or {@code null} if none is stored
+	 */
+	public byte[] load(String sessionKey, String cid);
+
+	/**
+	 * Removes the state of all conversations of a session, called when the session is unbound
+	 * 
+	 * @param sessionKey
+	 */
+	public void remove(String sessionKey);
+
+	/**
+	 * Releases all resources held by the store, called when the application is destroyed
+	 */
+	public void destroy();
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.IRequestHandlerDelegate;
+
+/**
+ * A strategy that decides which request handlers need a conversation context. Handlers are
+ * classified by class, after unwrapping any {@link IRequestHandlerDelegate}s, and the result is
+ * cached per class, so implementations must give the same answer for every handler of a class.
+ * {@link RequestHandlerClassifier} provides a sensible default implementation of this interface.
+ * 
+ * @see CdiConfiguration#setHandlerClassifier(IRequestHandlerClassifier)
+ * 
+ * @author igor
+ */
+public interface IRequestHandlerClassifier
+{
+	/**
+	 * Indicates if requests handled by handlers of the given class need a conversation context
+	 * 
+	 * @param handlerClass
+	 *            class of the innermost request handler
+	 * @return true if the conversation context should be activated for the handler
+	 */
+	public boolean isConversational(Class<? extends IRequestHandler> handlerClass);
+}
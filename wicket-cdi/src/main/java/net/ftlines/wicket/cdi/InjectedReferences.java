@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+
+/**
+ * Registry of the client proxies of normal scoped beans that have been injected into
+ * non-contextual instances, used by {@link CdiSerializer} to write a {@link ReferenceToken} holding
+ * the index of the proxy's bean in the {@link BeanTable} in place of the proxy.
+ * <p>
+ * Client proxies forward {@code equals()} and {@code hashCode()} to the contextual instance, so
+ * references are compared by identity. The registry only changes when an injection point is
+ * resolved for the first time, so it is copied on write and read without locking.
+ * <p>
+ * Weld's client proxies replace themselves with a {@value #WELD_SERIALIZED_PROXY} holding the
+ * passivation id of their bean before the serializer gets to see them, so that form is recognized
+ * by its bean id.
+ *
+ * @author igor
+ */
+final class InjectedReferences
+{
+	/** class Weld's client proxies are replaced with when serialized */
+	static final String WELD_SERIALIZED_PROXY = "org.jboss.weld.bean.proxy.util.SerializableProxy";
+
+	private static volatile Field weldBeanId;
+
+	private final BeanManager manager;
+	private final Object lock = new Object();
+	private volatile Map<Object, Integer> indexes = Collections.emptyMap();
+
+	/** built on first use, after all beans have been deployed */
+	private volatile BeanTable table;
+	private volatile AtomicReferenceArray<Object> references;
+
+	/**
+	 * Constructor
+	 *
+	 * @param manager
+	 */
+	public InjectedReferences(BeanManager manager)
+	{
+		this.manager = manager;
+	}
+
+	private BeanTable getTable()
+	{
+		BeanTable table = this.table;
+		if (table == null)
+		{
+			synchronized (lock)
+			{
+				table = this.table;
+				if (table == null)
+				{
+					table = new BeanTable(manager);
+					references = new AtomicReferenceArray<Object>(table.size());
+					this.table = table;
+				}
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Registers the client proxy of a bean. Proxies of beans that are not in the bean table are
+	 * ignored and serialized as is.
+	 *
+	 * @param reference
+	 * @param bean
+	 */
+	public void register(Object reference, Bean<?> bean)
+	{
+		if (reference == null || indexes.containsKey(reference))
+		{
+			return;
+		}
+		int index = getTable().indexOf(bean);
+		if (index < 0)
+		{
+			return;
+		}
+		synchronized (lock)
+		{
+			if (!indexes.containsKey(reference))
+			{
+				Map<Object, Integer> copy = new IdentityHashMap<Object, Integer>(indexes);
+				copy.put(reference, index);
+				indexes = copy;
+			}
+		}
+		references.compareAndSet(index, null, reference);
+	}
+
+	/**
+	 * @param reference
+	 * @return index of the reference or {@code -1} if the reference is not registered
+	 */
+	public int indexOf(Object reference)
+	{
+		Integer index = indexes.get(reference);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * Finds the bean of an object a client proxy has replaced itself with for serialization
+	 * 
+	 * @param replacement
+	 * @return index of the bean or {@code -1} if the object is not the replacement of a client
+	 *         proxy of a bean in the table
+	 */
+	public int indexOfReplacement(Object replacement)
+	{
+		if (replacement == null || !WELD_SERIALIZED_PROXY.equals(replacement.getClass().getName()))
+		{
+			return -1;
+		}
+		try
+		{
+			Field field = weldBeanId;
+			if (field == null)
+			{
+				field = replacement.getClass().getDeclaredField("beanId");
+				field.setAccessible(true);
+				weldBeanId = field;
+			}
+			Object id = field.get(replacement);
+			return id instanceof String ? indexOfBean((String)id) : -1;
+		}
+		catch (NoSuchFieldException e)
+		{
+			return -1;
+		}
+		catch (IllegalAccessException e)
+		{
+			return -1;
+		}
+		catch (SecurityException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * @param index
+	 * @return id of the bean at the index, see {@link BeanTable#getId(int)}
+	 */
+	public String getBeanId(int index)
+	{
+		return getTable().getId(index);
+	}
+
+	/**
+	 * @param id
+	 * @return index of the bean with the id or {@code -1} if there is no such bean
+	 */
+	public int indexOfBean(String id)
+	{
+		return getTable().indexOf(id);
+	}
+
+	/**
+	 * Retrieves the client proxy of the bean at the index, creating it if no proxy of the bean has
+	 * been injected yet
+	 *
+	 * @param index
+	 * @return client proxy
+	 */
+	public Object getReference(int index)
+	{
+		BeanTable table = getTable();
+		if (index < 0 || index >= table.size())
+		{
+			throw new IllegalStateException("Bean index " + index + " is out of range");
+		}
+		Object reference = references.get(index);
+		if (reference == null)
+		{
+			Bean<?> bean = table.get(index);
+			reference = manager.getReference(bean, Object.class,
+				manager.createCreationalContext(bean));
+			register(reference, bean);
+		}
+		return reference;
+	}
+
+	/**
+	 * @return fingerprint of the bean table
+	 */
+	public int getFingerprint()
+	{
+		return getTable().getFingerprint();
+	}
+
+	/**
+	 * @return number of registered references
+	 */
+	public int size()
+	{
+		return indexes.size();
+	}
+
+	/**
+	 * Removes all references
+	 */
+	public void clear()
+	{
+		synchronized (lock)
+		{
+			indexes = Collections.emptyMap();
+			table = null;
+			references = null;
+		}
+	}
+}
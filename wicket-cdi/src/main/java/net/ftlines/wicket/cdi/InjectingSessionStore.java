@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.wicket.Session;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.session.ISessionStore;
+import org.apache.wicket.util.IProvider;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Session store decorator that injects sessions when they are bound, used when session injection
+ * is deferred so temporary sessions, such as those created for stateless pages and crawlers, are
+ * never injected.
+ * 
+ * @see CdiConfiguration#setDeferSessionInjection(boolean)
+ * 
+ * @author igor
+ */
+class InjectingSessionStore implements ISessionStore
+{
+	private final ISessionStore delegate;
+	private final SessionInjector injector;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param delegate
+	 * @param injector
+	 */
+	public InjectingSessionStore(ISessionStore delegate, SessionInjector injector)
+	{
+		Args.notNull(delegate, "delegate");
+		Args.notNull(injector, "injector");
+
+		this.delegate = delegate;
+		this.injector = injector;
+	}
+
+	@Override
+	public void bind(Request request, Session newSession)
+	{
+		injector.onBind(newSession);
+		delegate.bind(request, newSession);
+	}
+
+	@Override
+	public Serializable getAttribute(Request request, String name)
+	{
+		return delegate.getAttribute(request, name);
+	}
+
+	@Override
+	public List<String> getAttributeNames(Request request)
+	{
+		return delegate.getAttributeNames(request);
+	}
+
+	@Override
+	public void setAttribute(Request request, String name, Serializable value)
+	{
+		delegate.setAttribute(request, name, value);
+	}
+
+	@Override
+	public void removeAttribute(Request request, String name)
+	{
+		delegate.removeAttribute(request, name);
+	}
+
+	@Override
+	public void invalidate(Request request)
+	{
+		delegate.invalidate(request);
+	}
+
+	@Override
+	public String getSessionId(Request request, boolean create)
+	{
+		return delegate.getSessionId(request, create);
+	}
+
+	@Override
+	public Session lookup(Request request)
+	{
+		return delegate.lookup(request);
+	}
+
+	@Override
+	public void flushSession(Request request, Session session)
+	{
+		delegate.flushSession(request, session);
+	}
+
+	@Override
+	public void destroy()
+	{
+		delegate.destroy();
+	}
+
+	@Override
+	public void registerUnboundListener(UnboundListener listener)
+	{
+		delegate.registerUnboundListener(listener);
+	}
+
+	@Override
+	public void unregisterUnboundListener(UnboundListener listener)
+	{
+		delegate.unregisterUnboundListener(listener);
+	}
+
+	@Override
+	public Set<UnboundListener> getUnboundListener()
+	{
+		return delegate.getUnboundListener();
+	}
+
+	/**
+	 * Provider that decorates the stores of another provider
+	 * 
+	 * @author igor
+	 */
+	static class Provider implements IProvider<ISessionStore>
+	{
+		private final IProvider<ISessionStore> delegate;
+		private final SessionInjector injector;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param delegate
+		 * @param injector
+		 */
+		public Provider(IProvider<ISessionStore> delegate, SessionInjector injector)
+		{
+			Args.notNull(delegate, "delegate");
+			Args.notNull(injector, "injector");
+
+			this.delegate = delegate;
+			this.injector = injector;
+		}
+
+		@Override
+		public ISessionStore get()
+		{
+			return new InjectingSessionStore(delegate.get(), injector);
+		}
+	}
+}
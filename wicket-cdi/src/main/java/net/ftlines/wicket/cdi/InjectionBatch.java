@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.InjectionTarget;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.request.cycle.RequestCycle;
+
+/**
+ * Injection state shared by the instances of a class injected during a single request, such as
+ * the items of a repeater.
+ * <p>
+ * Only classes whose injection points all resolve to normal scoped beans take part. Their
+ * {@link InjectionTarget} only writes client proxies into the instance, so the creational context
+ * never holds dependent instances and there is nothing to release per instance. The first instance
+ * of such a class is injected by the {@link InjectionTarget} with the shared context. If all its
+ * injection points are fields, the references written into it are remembered and simply copied
+ * into the following instances, which are not processed by the {@link InjectionTarget} at all.
+ * <p>
+ * A batch is confined to the thread of its request, which is why it is not shared across requests.
+ * 
+ * @see CdiConfiguration#setBatchInjection(boolean)
+ * 
+ * @author igor
+ */
+final class InjectionBatch
+{
+	private static final MetaDataKey<InjectionBatch> KEY = new MetaDataKey<InjectionBatch>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final Map<NonContextual<?>, CreationalContext<?>> contexts = new IdentityHashMap<NonContextual<?>, CreationalContext<?>>();
+
+	private final Map<NonContextual<?>, Object[]> references = new IdentityHashMap<NonContextual<?>, Object[]>();
+
+	/**
+	 * Retrieves the batch of the current request
+	 * 
+	 * @return batch or {@code null} if there is no request
+	 */
+	static InjectionBatch get()
+	{
+		RequestCycle cycle = RequestCycle.get();
+		if (cycle == null)
+		{
+			return null;
+		}
+		InjectionBatch batch = cycle.getMetaData(KEY);
+		if (batch == null)
+		{
+			batch = new InjectionBatch();
+			cycle.setMetaData(KEY, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Retrieves the context shared by the instances of a class, creating it on first use
+	 * 
+	 * @param <T>
+	 * @param nc
+	 *            noncontextual helper of the class
+	 * @return shared context
+	 */
+	@SuppressWarnings("unchecked")
+	<T> CreationalContext<T> getCreationalContext(NonContextual<T> nc)
+	{
+		CreationalContext<T> cc = (CreationalContext<T>)contexts.get(nc);
+		if (cc == null)
+		{
+			cc = nc.manager.createCreationalContext(null);
+			contexts.put(nc, cc);
+		}
+		return cc;
+	}
+
+	/**
+	 * @param nc
+	 *            noncontextual helper of the class
+	 * @return references injected into the first instance of the class, or {@code null} if none
+	 *         have been remembered
+	 */
+	Object[] getReferences(NonContextual<?> nc)
+	{
+		return references.get(nc);
+	}
+
+	/**
+	 * Remembers the references injected into the first instance of a class
+	 * 
+	 * @param nc
+	 *            noncontextual helper of the class
+	 * @param references
+	 */
+	void setReferences(NonContextual<?> nc, Object[] references)
+	{
+		this.references.put(nc, references);
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import javax.enterprise.inject.spi.InjectionPoint;
+import javax.enterprise.inject.spi.InjectionTarget;
+
+/**
+ * Strategies used by {@link NonContextualManager} to inject non-contextual instances
+ *
+ * @see CdiConfiguration#setInjectionEngine(InjectionEngine)
+ *
+ * @author igor
+ */
+public enum InjectionEngine {
+	/**
+	 * Instances are injected by the container's {@link InjectionTarget}
+	 */
+	INJECTION_TARGET,
+
+	/**
+	 * Instances are injected by writing references directly into their fields using a plan that is
+	 * compiled once per class. Classes the plan cannot handle, such as those with initializer
+	 * methods or {@link InjectionPoint} metadata fields, are injected by the
+	 * {@link InjectionTarget} instead.
+	 */
+	FIELD;
+}
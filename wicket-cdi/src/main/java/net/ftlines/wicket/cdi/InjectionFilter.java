@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Decides which components, behaviors and sessions are injected. A class is injected if it matches
+ * at least one include rule, or there are no include rules, and matches no exclude rule.
+ * <p>
+ * Rules match classes by package, including subpackages, by annotation or by base type. The
+ * decision is made once per class and cached, so excluded classes skip the
+ * {@link INonContextualManager} entirely at the cost of a single map lookup.
+ * <p>
+ * The default filter has no rules, so every class is injected as it was before filters existed.
+ * Applications whose classes never live in the {@code org.apache.wicket} namespace can opt into
+ * skipping Wicket's own classes with {@link #excludeWicket()}. Anonymous and other subclasses of
+ * Wicket classes declared in application packages are still injected.
+ * 
+ * <pre>
+ * config.getInjectionFilter().excludeWicket().excludePackages(&quot;com.vendor.components&quot;);
+ * </pre>
+ * 
+ * @author igor
+ */
+public class InjectionFilter
+{
+	private final List<String> includedPackages = new ArrayList<String>();
+	private final List<String> excludedPackages = new ArrayList<String>();
+	private final List<Class<? extends Annotation>> includedAnnotations = new ArrayList<Class<? extends Annotation>>();
+	private final List<Class<? extends Annotation>> excludedAnnotations = new ArrayList<Class<? extends Annotation>>();
+	private final List<Class<?>> includedTypes = new ArrayList<Class<?>>();
+	private final List<Class<?>> excludedTypes = new ArrayList<Class<?>>();
+
+	private final ConcurrentMap<Class<?>, Boolean> decisions = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	/**
+	 * Creates a filter with the default rules
+	 * 
+	 * @return filter without rules, which injects every class
+	 */
+	public static InjectionFilter newDefault()
+	{
+		return new InjectionFilter();
+	}
+
+	/**
+	 * Excludes the classes of {@code org.apache.wicket} and its subpackages. Must not be used if
+	 * the application declares injected classes in that namespace, they would no longer be
+	 * injected.
+	 * 
+	 * @return {@code this} for chaining
+	 */
+	public InjectionFilter excludeWicket()
+	{
+		return excludePackages("org.apache.wicket");
+	}
+
+	/**
+	 * Includes the classes of the packages and their subpackages
+	 * 
+	 * @param packages
+	 * @return {@code this} for chaining
+	 */
+	public InjectionFilter includePackages(String... packages)
+	{
+		return add(includedPackages, packages);
+	}
+
+	/**
+	 * Excludes the classes of the packages and their subpackages
+	 * 
+	 * @param packages
+	 * @return {@code this} for chaining
+	 */
+	public InjectionFilter excludePackages(String... packages)
+	{
+		return add(excludedPackages, packages);
+	}
+
+	/**
+	 * Includes classes annotated with the annotation
+	 * 
+	 * @param annotation
+	 * @return {@code this} for chaining
+	 */
+	public InjectionFilter includeAnnotation(Class<? extends Annotation> annotation)
+	{
+		return add(includedAnnotations, annotation);
+	}
+
+	/**
+	 * Excludes classes annotated with the annotation
+	 * 
+	 * @param annotation
+	 * @return {@code this} for chaining
+	 */
+	public InjectionFilter excludeAnnotation(Class<? extends Annotation> annotation)
+	{
+		return add(excludedAnnotations, annotation);
+	}
+
+	/**
+	 * Includes subtypes of any of the types
+	 * 
+	 * @param types
+	 * @return {@code this} for chaining
+	 */
+	public InjectionFilter includeTypes(Class<?>... types)
+	{
+		return add(includedTypes, types);
+	}
+
+	/**
+	 * Excludes subtypes of any of the types
+	 * 
+	 * @param types
+	 * @return {@code this} for chaining
+	 */
+	public InjectionFilter excludeTypes(Class<?>... types)
+	{
+		return add(excludedTypes, types);
+	}
+
+	private synchronized <T> InjectionFilter add(List<T> rules, T[] values)
+	{
+		for (T value : values)
+		{
+			Args.notNull(value, "value");
+			rules.add(value);
+		}
+		decisions.clear();
+		return this;
+	}
+
+	private synchronized <T> InjectionFilter add(List<T> rules, T value)
+	{
+		Args.notNull(value, "value");
+		rules.add(value);
+		decisions.clear();
+		return this;
+	}
+
+	/**
+	 * Decides whether instances of the class are injected
+	 * 
+	 * @param clazz
+	 * @return {@code true} iff instances of the class are injected
+	 */
+	public boolean accept(Class<?> clazz)
+	{
+		Boolean decision = decisions.get(clazz);
+		if (decision == null)
+		{
+			decision = decide(clazz);
+			decisions.put(clazz, decision);
+		}
+		return decision;
+	}
+
+	private synchronized boolean decide(Class<?> clazz)
+	{
+		boolean included = includedPackages.isEmpty() && includedAnnotations.isEmpty() &&
+			includedTypes.isEmpty();
+		included = included || matchesPackage(clazz, includedPackages) ||
+			matchesAnnotation(clazz, includedAnnotations) || matchesType(clazz, includedTypes);
+
+		return included && !matchesPackage(clazz, excludedPackages) &&
+			!matchesAnnotation(clazz, excludedAnnotations) && !matchesType(clazz, excludedTypes);
+	}
+
+	private static boolean matchesPackage(Class<?> clazz, List<String> packages)
+	{
+		String name = clazz.getName();
+		for (String pkg : packages)
+		{
+			if (name.startsWith(pkg) && name.length() > pkg.length() &&
+				name.charAt(pkg.length()) == '.')
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matchesAnnotation(Class<?> clazz,
+		List<Class<? extends Annotation>> annotations)
+	{
+		for (Class<? extends Annotation> annotation : annotations)
+		{
+			if (clazz.isAnnotationPresent(annotation))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matchesType(Class<?> clazz, List<Class<?>> types)
+	{
+		for (Class<?> type : types)
+		{
+			if (type.isAssignableFrom(clazz))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.wicket.application.IClassResolver;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Build-time index of the components, behaviors and sessions of an application and their injection
+ * points, written by the {@code wicket-cdi-processor} annotation processor to {@value #LOCATION}.
+ * <p>
+ * Every line of the index describes a single class:
+ * 
+ * <pre>
+ * com.example.HomePage fields=com.example.BasePage#users,com.example.HomePage#orders initializers=false callbacks=true
+ * </pre>
+ * 
+ * @see NonContextualManager#preload(InjectionIndex, IClassResolver)
+ * 
+ * @author igor
+ */
+public final class InjectionIndex
+{
+	/** location of the index files on the classpath */
+	public static final String LOCATION = "META-INF/wicket-cdi/injection.index";
+
+	private final List<Entry> entries;
+
+	private InjectionIndex(List<Entry> entries)
+	{
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Loads and merges all index files visible to the class resolver
+	 * 
+	 * @param resolver
+	 * @return index, empty if no index files were found
+	 */
+	public static InjectionIndex load(IClassResolver resolver)
+	{
+		Args.notNull(resolver, "resolver");
+
+		List<Entry> entries = new ArrayList<Entry>();
+		Iterator<URL> resources = resolver.getResources(LOCATION);
+		while (resources.hasNext())
+		{
+			URL url = resources.next();
+			try
+			{
+				Reader reader = new InputStreamReader(url.openStream(), "UTF-8");
+				try
+				{
+					entries.addAll(parse(reader).getEntries());
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Could not read injection index " + url, e);
+			}
+		}
+		return new InjectionIndex(entries);
+	}
+
+	/**
+	 * Parses a single index file
+	 * 
+	 * @param reader
+	 * @return index
+	 * @throws IOException
+	 */
+	static InjectionIndex parse(Reader reader) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		while ((line = lines.readLine()) != null)
+		{
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#"))
+			{
+				continue;
+			}
+
+			String[] tokens = line.split(" ");
+			List<String> fields = Collections.emptyList();
+			boolean initializers = false;
+			boolean callbacks = false;
+			for (int i = 1; i < tokens.length; i++)
+			{
+				String token = tokens[i];
+				if (token.startsWith("fields="))
+				{
+					String value = token.substring("fields=".length());
+					if (value.length() > 0)
+					{
+						fields = Arrays.asList(value.split(","));
+					}
+				}
+				else if (token.startsWith("initializers="))
+				{
+					initializers = Boolean.parseBoolean(token.substring("initializers=".length()));
+				}
+				else if (token.startsWith("callbacks="))
+				{
+					callbacks = Boolean.parseBoolean(token.substring("callbacks=".length()));
+				}
+			}
+			entries.add(new Entry(tokens[0], fields, initializers, callbacks));
+		}
+		return new InjectionIndex(entries);
+	}
+
+	/**
+	 * @return entries of all loaded index files
+	 */
+	public List<Entry> getEntries()
+	{
+		return entries;
+	}
+
+	/**
+	 * Describes a single indexed class
+	 * 
+	 * @author igor
+	 */
+	public static final class Entry
+	{
+		private final String className;
+		private final List<String> fields;
+		private final boolean initializers;
+		private final boolean callbacks;
+
+		Entry(String className, List<String> fields, boolean initializers, boolean callbacks)
+		{
+			this.className = className;
+			this.fields = Collections.unmodifiableList(fields);
+			this.initializers = initializers;
+			this.callbacks = callbacks;
+		}
+
+		/**
+		 * @return binary name of the class
+		 */
+		public String getClassName()
+		{
+			return className;
+		}
+
+		/**
+		 * @return injected fields of the class hierarchy, as {@code declaringClass#fieldName}
+		 */
+		public List<String> getFields()
+		{
+			return fields;
+		}
+
+		/**
+		 * @return {@code true} iff the class hierarchy has initializer methods or constructors
+		 */
+		public boolean hasInitializers()
+		{
+			return initializers;
+		}
+
+		/**
+		 * @return {@code true} iff the class hierarchy has lifecycle callbacks
+		 */
+		public boolean hasCallbacks()
+		{
+			return callbacks;
+		}
+
+		/**
+		 * @return {@code true} iff instances of the class need neither injection nor lifecycle
+		 *         callbacks
+		 */
+		public boolean isPassive()
+		{
+			return fields.isEmpty() && !initializers && !callbacks;
+		}
+	}
+}
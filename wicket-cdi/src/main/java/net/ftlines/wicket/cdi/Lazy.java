@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+
+/**
+ * Marks an {@link Inject} field of a component, behavior or other non-contextual instance as
+ * lazily injected. Instead of the bean the field receives a lightweight serializable proxy that
+ * resolves the bean the first time one of its methods is called, so a component that is never
+ * interacted with never creates its {@link Dependent} beans.
+ * <p>
+ * Only fields whose type is an interface can be proxied, other fields are injected eagerly. Fields
+ * of normal scoped beans are always injected with the container's client proxy, which is already
+ * lazy.
+ *
+ * <pre>
+ * &#064;Inject
+ * &#064;Lazy
+ * private ReportService reports;
+ * </pre>
+ *
+ * @author igor
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Lazy {
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.InjectionPoint;
+
+/**
+ * Invocation handler of the proxies injected into {@link Lazy} fields. The injection point is
+ * resolved on the first method call other than {@code equals()} and {@code hashCode()}.
+ * <p>
+ * The handler only serializes the class of the injected instance and the field, so an unresolved
+ * proxy serializes to a few bytes. Dependent beans it resolves belong to the instance, or to the
+ * page of the current request once the proxy has been deserialized. Once resolved the bean is serialized along with the proxy, just
+ * like an eagerly injected bean would be.
+ *
+ * @author igor
+ */
+class LazyReference implements InvocationHandler, Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final Class<?> instanceClass;
+	private final Class<?> declaringClass;
+	private final String fieldName;
+
+	/** instance the proxy was injected into, {@code null} once the proxy has been serialized */
+	private transient Object owner;
+
+	private Object target;
+
+	private LazyReference(Object owner, Field field)
+	{
+		this.owner = owner;
+		instanceClass = owner.getClass();
+		declaringClass = field.getDeclaringClass();
+		fieldName = field.getName();
+	}
+
+	/**
+	 * Creates a lazy proxy for the field of the instance
+	 *
+	 * @param instance
+	 * @param field
+	 *            field whose type is an interface
+	 * @return proxy
+	 */
+	public static Object of(Object instance, Field field)
+	{
+		Class<?> type = field.getType();
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+			new LazyReference(instance, field));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		if ("equals".equals(method.getName()) && method.getParameterTypes().length == 1)
+		{
+			return proxy == args[0];
+		}
+		else if ("hashCode".equals(method.getName()) && method.getParameterTypes().length == 0)
+		{
+			return System.identityHashCode(proxy);
+		}
+
+		try
+		{
+			return method.invoke(getTarget(), args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	private synchronized Object getTarget()
+	{
+		if (target == null)
+		{
+			BeanManager manager = CdiContainer.get().getBeanManager();
+			NonContextual<?> nc = NonContextual.of(instanceClass, manager);
+			InjectionPoint ip = nc.getInjectionPoint(declaringClass, fieldName);
+			if (ip == null)
+			{
+				throw new IllegalStateException("Field " + declaringClass.getName() + "." +
+					fieldName + " is no longer injected into " + instanceClass.getName());
+			}
+			CreationalContext<?> cc = manager.createCreationalContext(null);
+			target = manager.getInjectableReference(ip, cc);
+			// a deserialized proxy belongs to the page of the current request
+			nc.track(owner, cc);
+		}
+		return target;
+	}
+}
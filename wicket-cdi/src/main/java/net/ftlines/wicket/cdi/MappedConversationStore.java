@@ -0,0 +1,580 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link IConversationStore} that keeps conversation state in a memory-mapped file, outside of the
+ * Java heap. Only a small index of the stored conversations is kept on the heap.
+ * <p>
+ * State is appended to the mapped region. When the end of the region is reached the live entries
+ * are compacted to its start, and if the state still does not fit it is not stored and stays in
+ * the session.
+ * <p>
+ * Storing and loading a state holds the lock of the store while the state is copied, so requests
+ * of different sessions wait for each other only as long as one copy takes. Compaction is done by
+ * the request that found the region full, under a lock of its own, and moves one entry at a time
+ * under the lock of the store, so other requests keep storing and loading in between.
+ * <p>
+ * A persistent store keeps its file when the application is destroyed and writes the index next to
+ * it, so a restarted application continues with the conversations stored before. This only makes
+ * sense when the servlet container persists the sessions across the restart as well.
+ * 
+ * <pre>
+ * config.setConversationStore(new MappedConversationStore(new File(&quot;/var/tmp/conversations&quot;),
+ * 	512 * 1024 * 1024));
+ * </pre>
+ * 
+ * @author igor
+ */
+public class MappedConversationStore implements IConversationStore
+{
+	private static final Logger logger = LoggerFactory.getLogger(MappedConversationStore.class);
+
+	private static final int INDEX_VERSION = 1;
+
+	private final File file;
+	private final File indexFile;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+
+	/** stored segments by session key and conversation id */
+	private final Map<String, Map<String, Segment>> sessions = new HashMap<String, Map<String, Segment>>();
+
+	/** offset of the free space at the end of the region */
+	private int top;
+
+	/** bytes held by stored segments */
+	private int used;
+
+	private int count;
+
+	/** held while compacting, so only one request compacts at a time */
+	private final Object compactionLock = new Object();
+
+	/** whether a compaction is moving segments */
+	private boolean compacting;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            file to map, created if it does not exist and truncated if it does
+	 * @param capacity
+	 *            size of the mapped region in bytes
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	public MappedConversationStore(File file, int capacity) throws IOException
+	{
+		this(file, capacity, false);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 *            file to map, created if it does not exist
+	 * @param capacity
+	 *            size of the mapped region in bytes
+	 * @param persistent
+	 *            if {@code true} the conversations stored when the store was last destroyed are
+	 *            loaded from the file, otherwise the file is truncated
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	public MappedConversationStore(File file, int capacity, boolean persistent)
+		throws IOException
+	{
+		Args.notNull(file, "file");
+		Args.isTrue(capacity > 0, "capacity must be positive");
+
+		this.file = file;
+		this.capacity = capacity;
+		indexFile = persistent ? new File(file.getPath() + ".index") : null;
+		raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			boolean restore = persistent && indexFile.exists();
+			if (!restore)
+			{
+				raf.setLength(0);
+			}
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			if (restore)
+			{
+				readIndex();
+			}
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Loads the index written when the store was last destroyed. The index is deleted once loaded
+	 * so the state is not restored again after a crash.
+	 */
+	private void readIndex()
+	{
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != INDEX_VERSION || in.readInt() != capacity)
+			{
+				logger.info("Discarding conversation store index {} of a different format",
+					indexFile);
+				return;
+			}
+			int entries = in.readInt();
+			for (int i = 0; i < entries; i++)
+			{
+				String sessionKey = in.readUTF();
+				String cid = in.readUTF();
+				Segment segment = new Segment(in.readInt(), in.readInt());
+				if (segment.offset < 0 || segment.length < 0 ||
+					segment.offset > capacity - segment.length)
+				{
+					throw new IOException("Segment of conversation " + cid + " is out of bounds");
+				}
+
+				Map<String, Segment> conversations = sessions.get(sessionKey);
+				if (conversations == null)
+				{
+					conversations = new HashMap<String, Segment>();
+					sessions.put(sessionKey, conversations);
+				}
+				conversations.put(cid, segment);
+				top = Math.max(top, segment.offset + segment.length);
+				used += segment.length;
+				count++;
+			}
+			logger.info("Restored {} conversations from {}", count, file);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Could not read conversation store index " + indexFile, e);
+			sessions.clear();
+			top = 0;
+			used = 0;
+			count = 0;
+		}
+		finally
+		{
+			close(in);
+			if (!indexFile.delete())
+			{
+				logger.warn("Could not delete conversation store index {}", indexFile);
+			}
+		}
+	}
+
+	/**
+	 * Writes the index of the stored conversations next to the file
+	 * 
+	 * @throws IOException
+	 */
+	private void writeIndex() throws IOException
+	{
+		buffer.force();
+
+		File temp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(temp)));
+		try
+		{
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(capacity);
+			out.writeInt(count);
+			for (Map.Entry<String, Map<String, Segment>> session : sessions.entrySet())
+			{
+				for (Map.Entry<String, Segment> conversation : session.getValue().entrySet())
+				{
+					out.writeUTF(session.getKey());
+					out.writeUTF(conversation.getKey());
+					out.writeInt(conversation.getValue().offset);
+					out.writeInt(conversation.getValue().length);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		if (!temp.renameTo(indexFile))
+		{
+			throw new IOException("Could not rename " + temp + " to " + indexFile);
+		}
+	}
+
+	private static void close(DataInputStream in)
+	{
+		if (in != null)
+		{
+			try
+			{
+				in.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+	@Override
+	public boolean store(String sessionKey, String cid, byte[] state)
+	{
+		Args.notNull(sessionKey, "sessionKey");
+		Args.notNull(cid, "cid");
+		Args.notNull(state, "state");
+
+		if (append(sessionKey, cid, state, true))
+		{
+			return true;
+		}
+		compact();
+		if (append(sessionKey, cid, state, false))
+		{
+			return true;
+		}
+		logger.warn("Conversation store is full, keeping conversation {} in the session", cid);
+		return false;
+	}
+
+	/**
+	 * Appends the state to the end of the region
+	 * 
+	 * @param sessionKey
+	 * @param cid
+	 * @param state
+	 * @param replace
+	 *            whether to remove the state stored before
+	 * @return {@code true} if the state fit into the free space at the end of the region
+	 */
+	private synchronized boolean append(String sessionKey, String cid, byte[] state,
+		boolean replace)
+	{
+		if (replace)
+		{
+			remove(sessionKey, cid);
+		}
+		if (state.length > capacity - top)
+		{
+			return false;
+		}
+
+		ByteBuffer target = buffer.duplicate();
+		target.position(top);
+		target.put(state);
+
+		Map<String, Segment> conversations = sessions.get(sessionKey);
+		if (conversations == null)
+		{
+			conversations = new HashMap<String, Segment>();
+			sessions.put(sessionKey, conversations);
+		}
+		conversations.put(cid, new Segment(top, state.length));
+		top += state.length;
+		used += state.length;
+		count++;
+		return true;
+	}
+
+	@Override
+	public synchronized byte[] load(String sessionKey, String cid)
+	{
+		Map<String, Segment> conversations = sessions.get(sessionKey);
+		Segment segment = conversations != null ? conversations.get(cid) : null;
+		if (segment == null)
+		{
+			return null;
+		}
+
+		byte[] state = new byte[segment.length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(segment.offset);
+		source.get(state);
+
+		remove(sessionKey, cid);
+		return state;
+	}
+
+	private void remove(String sessionKey, String cid)
+	{
+		Map<String, Segment> conversations = sessions.get(sessionKey);
+		if (conversations != null)
+		{
+			Segment segment = conversations.remove(cid);
+			if (segment != null)
+			{
+				released(segment);
+			}
+			if (conversations.isEmpty())
+			{
+				sessions.remove(sessionKey);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void remove(String sessionKey)
+	{
+		Map<String, Segment> conversations = sessions.remove(sessionKey);
+		if (conversations != null)
+		{
+			for (Segment segment : conversations.values())
+			{
+				released(segment);
+			}
+		}
+	}
+
+	private void released(Segment segment)
+	{
+		segment.removed = true;
+		used -= segment.length;
+		count--;
+		if (count == 0 && !compacting)
+		{
+			// nothing is stored, start over at the beginning of the region
+			top = 0;
+		}
+	}
+
+	/**
+	 * Moves all stored segments to the start of the region. Segments appended while compacting lie
+	 * beyond the segments being moved and are moved in another pass.
+	 */
+	private void compact()
+	{
+		synchronized (compactionLock)
+		{
+			List<Segment> segments;
+			synchronized (this)
+			{
+				compacting = true;
+				segments = getSegments(0);
+			}
+
+			int position = 0;
+			byte[] chunk = new byte[8192];
+			try
+			{
+				while (true)
+				{
+					for (Segment segment : segments)
+					{
+						position = move(segment, position, chunk);
+					}
+					synchronized (this)
+					{
+						segments = getSegments(position);
+						if (segments.isEmpty())
+						{
+							top = position;
+							break;
+						}
+					}
+				}
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					compacting = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param from
+	 * @return stored segments at or beyond the offset, in the order of their offsets
+	 */
+	private List<Segment> getSegments(int from)
+	{
+		List<Segment> segments = new ArrayList<Segment>();
+		for (Map<String, Segment> conversations : sessions.values())
+		{
+			for (Segment segment : conversations.values())
+			{
+				if (segment.offset >= from)
+				{
+					segments.add(segment);
+				}
+			}
+		}
+		Collections.sort(segments, new Comparator<Segment>()
+		{
+			@Override
+			public int compare(Segment o1, Segment o2)
+			{
+				return o1.offset < o2.offset ? -1 : (o1.offset == o2.offset ? 0 : 1);
+			}
+		});
+		return segments;
+	}
+
+	/**
+	 * Moves a segment to the position, unless it has been removed in the meantime
+	 * 
+	 * @param segment
+	 * @param position
+	 * @param chunk
+	 *            buffer used for copying
+	 * @return position following the segment
+	 */
+	private synchronized int move(Segment segment, int position, byte[] chunk)
+	{
+		if (segment.removed)
+		{
+			return position;
+		}
+		if (segment.offset != position)
+		{
+			// segments are moved towards the start so a forward copy never overwrites
+			ByteBuffer source = buffer.duplicate();
+			ByteBuffer target = buffer.duplicate();
+			source.position(segment.offset);
+			target.position(position);
+			int remaining = segment.length;
+			while (remaining > 0)
+			{
+				int length = Math.min(remaining, chunk.length);
+				source.get(chunk, 0, length);
+				target.put(chunk, 0, length);
+				remaining -= length;
+			}
+			segment.offset = position;
+		}
+		return position + segment.length;
+	}
+
+	/**
+	 * @return size of the mapped region in bytes
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return bytes held by stored conversations
+	 */
+	public synchronized int getUsed()
+	{
+		return used;
+	}
+
+	/**
+	 * @return number of stored conversations
+	 */
+	public synchronized int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return {@code true} iff the stored conversations are kept when the store is destroyed
+	 */
+	public boolean isPersistent()
+	{
+		return indexFile != null;
+	}
+
+	@Override
+	public synchronized void destroy()
+	{
+		boolean keep = false;
+		if (indexFile != null)
+		{
+			try
+			{
+				writeIndex();
+				keep = true;
+				logger.info("Saved {} conversations to {}", count, file);
+			}
+			catch (IOException e)
+			{
+				logger.error("Could not save conversation store index " + indexFile, e);
+			}
+		}
+
+		sessions.clear();
+		top = 0;
+		used = 0;
+		count = 0;
+		try
+		{
+			raf.close();
+		}
+		catch (IOException e)
+		{
+			logger.warn("Could not close conversation store " + file, e);
+		}
+		if (!keep && !file.delete())
+		{
+			// the mapping may keep the file open until it is collected
+			file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Location of a stored state in the mapped region
+	 * 
+	 * @author igor
+	 */
+	private static final class Segment
+	{
+		private int offset;
+		private final int length;
+		private boolean removed;
+
+		public Segment(int offset, int length)
+		{
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -16,19 +16,25 @@
  */
 package net.ftlines.wicket.cdi;
 
+import java.lang.reflect.Field;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.enterprise.context.Conversation;
+import javax.enterprise.context.ConversationScoped;
+import javax.enterprise.context.Dependent;
 import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.InjectionPoint;
 import javax.enterprise.inject.spi.InjectionTarget;
 
-import org.apache.wicket.util.collections.ClassMetaCache;
-
 /**
  * Manages lifecycle of non-contextual (non-CDI-managed) objects
  * 
@@ -39,10 +45,34 @@ import org.apache.wicket.util.collections.ClassMetaCache;
 public class NonContextual<T>
 {
 	private static final Object lock = new Object();
-	private static volatile Map<BeanManager, ClassMetaCache<NonContextual<?>>> cache = Collections.emptyMap();
+	private static volatile Map<BeanManager, NonContextualCache> cache = Collections.emptyMap();
 
 	final InjectionTarget<T> it;
 	final BeanManager manager;
+	private final Class<?> clazz;
+	private final DependentInstances dependents;
+	private final InjectedReferences references;
+
+	/**
+	 * {@code false} iff the class has no injection points and no initializer methods, in which
+	 * case injection is a noop
+	 */
+	private final boolean injecting;
+
+	/** {@code true} iff the class has {@link Lazy} fields, which require the field engine */
+	private final boolean lazy;
+
+	/** field injection plan, compiled on first use by {@link InjectionEngine#FIELD} */
+	private volatile FieldInjector fieldInjector;
+
+	/**
+	 * whether any injection point is not normal scoped, resolved on first use when the injected
+	 * client proxies are also registered
+	 */
+	private volatile Boolean dependent;
+
+	/** whether the class injects the conversation or a conversation scoped bean */
+	private volatile Boolean conversational;
 
 	/**
 	 * Undeploys specified bean manager from cache
@@ -53,14 +83,20 @@ public class NonContextual<T>
 	{
 		if (cache.containsKey(beanManager))
 		{
+			NonContextualCache meta;
 			synchronized (lock)
 			{
 				// copy-on-write the cache
-				Map<BeanManager, ClassMetaCache<NonContextual<?>>> newCache = new WeakHashMap<BeanManager, ClassMetaCache<NonContextual<?>>>(
+				Map<BeanManager, NonContextualCache> newCache = new WeakHashMap<BeanManager, NonContextualCache>(
 					cache);
-				newCache.remove(beanManager);
+				meta = newCache.remove(beanManager);
 				cache = Collections.unmodifiableMap(newCache);
 			}
+			if (meta != null)
+			{
+				// release injection targets and the classes they hold on to
+				meta.clear();
+			}
 		}
 	}
 
@@ -72,24 +108,51 @@ public class NonContextual<T>
 	 * @param manager
 	 * @return
 	 */
+	@SuppressWarnings("unchecked")
 	public static <T> NonContextual<T> of(Class<? extends T> clazz, BeanManager manager)
 	{
-		ClassMetaCache<NonContextual<?>> meta = getCache(manager);
+		return (NonContextual<T>)getCache(manager).get(clazz);
+	}
+
+	/**
+	 * Retrieves the registry of {@link Dependent} instances created while injecting noncontextual
+	 * instances with beans from the specified bean manager
+	 * 
+	 * @param manager
+	 * @return dependent instances registry
+	 */
+	public static DependentInstances getDependentInstances(BeanManager manager)
+	{
+		return getCache(manager).getDependentInstances();
+	}
 
-		@SuppressWarnings("unchecked")
-		NonContextual<T> nc = (NonContextual<T>)meta.get(clazz);
+	/**
+	 * Caches a helper for a class that, according to the {@link InjectionIndex}, has neither
+	 * injection points nor lifecycle callbacks, without building its injection target
+	 * 
+	 * @param clazz
+	 * @param manager
+	 * @return {@code false} if the class does have injection points or lifecycle callbacks
+	 */
+	static boolean preloadPassive(Class<?> clazz, BeanManager manager)
+	{
+		return getCache(manager).putPassive(clazz);
+	}
 
-		if (nc == null)
-		{
-			nc = new NonContextual<T>(manager, clazz);
-			meta.put(clazz, nc);
-		}
-		return nc;
+	/**
+	 * Retrieves the registry of client proxies injected into noncontextual instances
+	 * 
+	 * @param manager
+	 * @return injected references registry
+	 */
+	static InjectedReferences getInjectedReferences(BeanManager manager)
+	{
+		return getCache(manager).getInjectedReferences();
 	}
 
-	private static ClassMetaCache<NonContextual<?>> getCache(BeanManager manager)
+	static NonContextualCache getCache(BeanManager manager)
 	{
-		ClassMetaCache<NonContextual<?>> meta = cache.get(manager);
+		NonContextualCache meta = cache.get(manager);
 		if (meta == null)
 		{
 			synchronized (lock)
@@ -97,10 +160,10 @@ public class NonContextual<T>
 				meta = cache.get(manager);
 				if (meta == null)
 				{
-					meta = new ClassMetaCache<NonContextual<?>>();
+					meta = new NonContextualCache(manager);
 
 					// copy-on-write the cache
-					Map<BeanManager, ClassMetaCache<NonContextual<?>>> newCache = new WeakHashMap<BeanManager, ClassMetaCache<NonContextual<?>>>(
+					Map<BeanManager, NonContextualCache> newCache = new WeakHashMap<BeanManager, NonContextualCache>(
 						cache);
 					newCache.put(manager, meta);
 					cache = Collections.unmodifiableMap(newCache);
@@ -111,11 +174,72 @@ public class NonContextual<T>
 	}
 
 	@SuppressWarnings("unchecked")
-	private NonContextual(BeanManager manager, Class<? extends T> clazz)
+	NonContextual(BeanManager manager, Class<? extends T> clazz, NonContextualCache owner)
 	{
 		this.manager = manager;
+		this.dependents = owner.getDependentInstances();
+		this.references = owner.getInjectedReferences();
+		this.clazz = clazz;
 		AnnotatedType<? extends T> type = manager.createAnnotatedType(clazz);
 		this.it = (InjectionTarget<T>)manager.createInjectionTarget(type);
+		// initializers without parameters have no injection points but must still be called
+		this.injecting = !it.getInjectionPoints().isEmpty() ||
+			NonContextualCache.hasInjectMethods(clazz);
+		this.lazy = FieldInjector.hasLazyFields(it.getInjectionPoints());
+	}
+
+	/**
+	 * Constructor of a helper for a class without injection points and lifecycle callbacks, which
+	 * does not build an injection target
+	 * 
+	 * @param manager
+	 * @param owner
+	 */
+	NonContextual(BeanManager manager, NonContextualCache owner)
+	{
+		this.manager = manager;
+		this.dependents = owner.getDependentInstances();
+		this.references = owner.getInjectedReferences();
+		this.clazz = null;
+		this.it = null;
+		this.injecting = false;
+		this.lazy = false;
+	}
+
+	/**
+	 * Validates all injection points
+	 * 
+	 * @return injected fields of the class, as {@code declaringClass#fieldName}
+	 */
+	Set<String> validate()
+	{
+		Set<String> fields = new HashSet<String>();
+		if (it == null)
+		{
+			return fields;
+		}
+		for (InjectionPoint ip : it.getInjectionPoints())
+		{
+			manager.validate(ip);
+			if (ip.getMember() instanceof Field)
+			{
+				fields.add(ip.getMember().getDeclaringClass().getName() + "#" +
+					ip.getMember().getName());
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Tells whether or not instances of the class have any injection points or initializer
+	 * methods. Classes without either are skipped by {@link #inject(Object)} without allocating a
+	 * {@link CreationalContext}.
+	 * 
+	 * @return {@code true} iff the class has at least one injection point or initializer method
+	 */
+	public boolean isInjecting()
+	{
+		return injecting;
 	}
 
 	/**
@@ -125,9 +249,22 @@ public class NonContextual<T>
 	 */
 	public void postConstruct(T instance)
 	{
-		CreationalContext<T> cc = manager.createCreationalContext(null);
-		it.inject(instance, cc);
-		it.postConstruct(instance);
+		postConstruct(instance, InjectionEngine.INJECTION_TARGET);
+	}
+
+	/**
+	 * Injects the instance using the specified engine and calls any {@link PostConstruct} methods
+	 * 
+	 * @param instance
+	 * @param engine
+	 */
+	public void postConstruct(T instance, InjectionEngine engine)
+	{
+		inject(instance, engine);
+		if (it != null)
+		{
+			it.postConstruct(instance);
+		}
 	}
 	
 	/**
@@ -137,8 +274,196 @@ public class NonContextual<T>
 	 */
 	public void inject(T instance)
 	{
+		inject(instance, InjectionEngine.INJECTION_TARGET);
+	}
+
+	/**
+	 * Injects the instance using the specified engine. Classes with {@link Lazy} fields are always
+	 * injected by the {@link InjectionEngine#FIELD} engine if possible.
+	 * 
+	 * @param instance
+	 * @param engine
+	 */
+	public void inject(T instance, InjectionEngine engine)
+	{
+		inject(instance, engine, null);
+	}
+
+	/**
+	 * Injects the instance using the specified engine. Instances injected by the
+	 * {@link InjectionTarget} whose injection points are all normal scoped share the creational
+	 * context of the batch, and if they are all fields, the references injected into the first
+	 * instance of the batch.
+	 * 
+	 * @param instance
+	 * @param engine
+	 * @param batch
+	 *            batch of the current request or {@code null} if injection is not batched
+	 */
+	void inject(T instance, InjectionEngine engine, InjectionBatch batch)
+	{
+		if (!injecting)
+		{
+			return;
+		}
+		if (engine == InjectionEngine.FIELD || lazy)
+		{
+			FieldInjector injector = getFieldInjector();
+			if (injector.isSupported())
+			{
+				CreationalContext<?> cc = injector.inject(instance);
+				if (cc != null)
+				{
+					dependents.track(instance, cc);
+				}
+				return;
+			}
+		}
+		if (batch != null && !hasDependents())
+		{
+			Object[] references = batch.getReferences(this);
+			FieldInjector injector = getFieldInjector();
+			if (references != null)
+			{
+				injector.write(instance, references);
+				return;
+			}
+			it.inject(instance, batch.getCreationalContext(this));
+			if (injector.isSupported())
+			{
+				batch.setReferences(this, injector.read(instance));
+			}
+			return;
+		}
 		CreationalContext<T> cc = manager.createCreationalContext(null);
 		it.inject(instance, cc);
+		if (hasDependents())
+		{
+			dependents.track(instance, cc);
+		}
+	}
+
+	private boolean hasDependents()
+	{
+		Boolean result = dependent;
+		if (result == null)
+		{
+			result = false;
+			for (InjectionPoint ip : it.getInjectionPoints())
+			{
+				Bean<?> bean = FieldInjector.resolve(manager, ip);
+				if (bean == null || !manager.isNormalScope(bean.getScope()))
+				{
+					result = true;
+				}
+				else
+				{
+					getSharedReference(ip, bean);
+				}
+			}
+			dependent = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Tells whether or not the class injects the {@link Conversation} or a
+	 * {@link ConversationScoped} bean
+	 * 
+	 * @return {@code true} iff any injection point is conversational
+	 */
+	boolean isConversational()
+	{
+		Boolean result = conversational;
+		if (result == null)
+		{
+			result = false;
+			if (it != null)
+			{
+				for (InjectionPoint ip : it.getInjectionPoints())
+				{
+					if (Conversation.class.equals(ip.getType()))
+					{
+						result = true;
+						break;
+					}
+					Bean<?> bean = FieldInjector.resolve(manager, ip);
+					if (bean != null && ConversationScoped.class.equals(bean.getScope()))
+					{
+						result = true;
+						break;
+					}
+				}
+			}
+			conversational = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Tracks a context holding dependent instances created for the specified instance, releasing it
+	 * once the instance is destroyed or, if it is a component, once its page is gone
+	 * 
+	 * @param instance
+	 *            owner of the dependent instances, {@code null} for the page of the current request
+	 * @param cc
+	 */
+	void track(Object instance, CreationalContext<?> cc)
+	{
+		dependents.track(instance, cc);
+	}
+
+	/**
+	 * Looks up the injection point of a field
+	 * 
+	 * @param declaringClass
+	 * @param fieldName
+	 * @return injection point or {@code null} if the field is not injected
+	 */
+	InjectionPoint getInjectionPoint(Class<?> declaringClass, String fieldName)
+	{
+		if (it == null)
+		{
+			return null;
+		}
+		for (InjectionPoint ip : it.getInjectionPoints())
+		{
+			if (ip.getMember() instanceof Field &&
+				ip.getMember().getDeclaringClass().equals(declaringClass) &&
+				ip.getMember().getName().equals(fieldName))
+			{
+				return ip;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the client proxy of a normal scoped injection point and registers it so it can be
+	 * written as a {@link ReferenceToken} when serialized
+	 * 
+	 * @param ip
+	 * @param bean
+	 *            bean the injection point resolves to
+	 * @return client proxy
+	 */
+	Object getSharedReference(InjectionPoint ip, Bean<?> bean)
+	{
+		Object reference = manager.getInjectableReference(ip, manager.createCreationalContext(null));
+		references.register(reference, bean);
+		return reference;
+	}
+
+	FieldInjector getFieldInjector()
+	{
+		FieldInjector injector = fieldInjector;
+		if (injector == null)
+		{
+			// compiling the plan is idempotent so a racing thread at worst does it twice
+			injector = FieldInjector.of(this, clazz, it.getInjectionPoints());
+			fieldInjector = injector;
+		}
+		return injector;
 	}
 
 	/**
@@ -149,6 +474,10 @@ public class NonContextual<T>
 	 */
 	public void preDestroy(T instance)
 	{
-		it.preDestroy(instance);
+		if (it != null)
+		{
+			it.preDestroy(instance);
+		}
+		dependents.release(instance);
 	}
 }
\ No newline at end of file
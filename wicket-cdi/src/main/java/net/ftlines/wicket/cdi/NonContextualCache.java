@@ -0,0 +1,507 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.inject.Inject;
+
+/**
+ * Cache of {@link NonContextual} instances for a single {@link BeanManager}.
+ * <p>
+ * Lookups are lock-free reads keyed by the {@link Class} itself, which hashes by identity. Every
+ * class gets its own slot that builds the {@link NonContextual} exactly once, so concurrent first
+ * hits for the same class never create duplicate injection targets and first hits for different
+ * classes never contend with each other.
+ * <p>
+ * A subclass that declares no annotated members of its own, such as the anonymous subclasses that
+ * are everywhere in Wicket code, shares the {@link NonContextual} of its superclass instead of
+ * building its own annotated type and injection target.
+ * <p>
+ * Classes are held strongly until {@link #clear()} is called, which {@link NonContextual#undeploy}
+ * does when the application shuts down, unless the cache is bounded with {@link #setMaxSize(int)}.
+ * A bounded cache evicts the least recently used classes once it grows past its limit. Recency is
+ * tracked with a clock that only advances when a class is added, so hits do not write to shared
+ * state unless the class has not been used since the last addition. A hit on a subclass that
+ * shares the helper of its superclass also marks the superclass as used, so the superclass is
+ * never evicted before the subclasses that depend on it.
+ * <p>
+ * Hits are only counted, and recency only tracked, while the cache is bounded or statistics are
+ * enabled with {@link #setStatisticsEnabled(boolean)}, so the lookups of an unbounded cache do not
+ * contend on a shared counter.
+ *
+ * @author igor
+ */
+final class NonContextualCache
+{
+	private final BeanManager manager;
+	private final ConcurrentMap<Class<?>, Slot> slots = new ConcurrentHashMap<Class<?>, Slot>();
+	private final DependentInstances dependents = new DependentInstances();
+	private final InjectedReferences references;
+	private final AtomicInteger targets = new AtomicInteger();
+
+	private volatile int maxSize;
+	private volatile boolean statistics;
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param manager
+	 */
+	public NonContextualCache(BeanManager manager)
+	{
+		this.manager = manager;
+		references = new InjectedReferences(manager);
+	}
+
+	/**
+	 * Retrieves the {@link NonContextual} for the class, creating it if necessary
+	 *
+	 * @param clazz
+	 * @return noncontextual helper for the class
+	 */
+	public NonContextual<?> get(Class<?> clazz)
+	{
+		return slot(clazz).get();
+	}
+
+	private Slot slot(Class<?> clazz)
+	{
+		Slot slot = slots.get(clazz);
+		if (slot == null)
+		{
+			misses.incrementAndGet();
+			Slot created = new Slot(clazz);
+			slot = slots.putIfAbsent(clazz, created);
+			if (slot == null)
+			{
+				slot = created;
+				evictIfNecessary();
+			}
+		}
+		else if (maxSize > 0)
+		{
+			hits.incrementAndGet();
+			slot.touch();
+		}
+		else if (statistics)
+		{
+			hits.incrementAndGet();
+		}
+		return slot;
+	}
+
+	/**
+	 * Sets the maximum number of classes held by the cache
+	 * 
+	 * @param maxSize
+	 *            maximum number of classes or {@code 0} for an unbounded cache
+	 */
+	public void setMaxSize(int maxSize)
+	{
+		if (maxSize < 0)
+		{
+			throw new IllegalArgumentException("maxSize must not be negative");
+		}
+		this.maxSize = maxSize;
+		evictIfNecessary();
+	}
+
+	/**
+	 * Enables counting the hits of an unbounded cache, bounded caches always count them
+	 * 
+	 * @param statistics
+	 */
+	public void setStatisticsEnabled(boolean statistics)
+	{
+		this.statistics = statistics;
+	}
+
+	/**
+	 * @return maximum number of classes held by the cache or {@code 0} if unbounded
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Evicts the least recently used classes once the cache is over its limit. To amortize the
+	 * cost of finding them, a tenth of the limit is evicted on top of the overflow.
+	 */
+	private void evictIfNecessary()
+	{
+		int max = maxSize;
+		if (max <= 0 || slots.size() <= max || !evicting.compareAndSet(false, true))
+		{
+			return;
+		}
+		try
+		{
+			List<Candidate> candidates = new ArrayList<Candidate>(slots.size());
+			for (Map.Entry<Class<?>, Slot> entry : slots.entrySet())
+			{
+				candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+			}
+			int excess = candidates.size() - max;
+			if (excess <= 0)
+			{
+				return;
+			}
+			excess = Math.min(candidates.size(), excess + max / 10);
+
+			Collections.sort(candidates, new Comparator<Candidate>()
+			{
+				@Override
+				public int compare(Candidate o1, Candidate o2)
+				{
+					return o1.access < o2.access ? -1 : (o1.access == o2.access ? 0 : 1);
+				}
+			});
+			for (int i = 0; i < excess; i++)
+			{
+				Candidate candidate = candidates.get(i);
+				if (slots.remove(candidate.clazz, candidate.slot))
+				{
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		finally
+		{
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * @return snapshot of the cache statistics
+	 */
+	public CacheStatistics getStatistics()
+	{
+		return new CacheStatistics(slots.size(), maxSize, targets.get(), hits.get(), misses.get(),
+			evictions.get());
+	}
+
+	/**
+	 * Caches a helper that does not build an injection target for a class reported to have
+	 * neither injection points nor lifecycle callbacks. The report is verified against the
+	 * annotations of the class hierarchy, so a stale index never disables injection. Has no effect
+	 * if the class is already cached.
+	 *
+	 * @param clazz
+	 * @return {@code false} if the class does have injection points or lifecycle callbacks, in
+	 *         which case nothing is cached
+	 */
+	public boolean putPassive(Class<?> clazz)
+	{
+		if (!isPassive(clazz))
+		{
+			return false;
+		}
+		Slot slot = new Slot(clazz);
+		slot.value = new NonContextual<Object>(manager, this);
+		if (slots.putIfAbsent(clazz, slot) == null)
+		{
+			evictIfNecessary();
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of classes in the cache
+	 */
+	public int size()
+	{
+		return slots.size();
+	}
+
+	/**
+	 * @return number of injection targets built, which is lower than {@link #size()} when
+	 *         subclasses share the helper of their superclass
+	 */
+	public int getTargetCount()
+	{
+		return targets.get();
+	}
+
+	/**
+	 * Tells whether instances of the class are injected exactly like instances of its superclass,
+	 * which is the case if the class declares no annotated fields, methods or constructors and
+	 * does not override an annotated method of a superclass
+	 * 
+	 * @param clazz
+	 * @return {@code true} iff the class can share the helper of its superclass
+	 */
+	static boolean isSharingSuperclass(Class<?> clazz)
+	{
+		Class<?> superclass = clazz.getSuperclass();
+		if (superclass == null || superclass == Object.class)
+		{
+			return false;
+		}
+		for (Field field : clazz.getDeclaredFields())
+		{
+			if (field.getAnnotations().length > 0)
+			{
+				return false;
+			}
+		}
+		for (Constructor<?> constructor : clazz.getDeclaredConstructors())
+		{
+			if (constructor.getAnnotations().length > 0 ||
+				isAnnotated(constructor.getParameterAnnotations()))
+			{
+				return false;
+			}
+		}
+		for (Method method : clazz.getDeclaredMethods())
+		{
+			if (method.getAnnotations().length > 0 ||
+				isAnnotated(method.getParameterAnnotations()))
+			{
+				return false;
+			}
+			if (!Modifier.isPrivate(method.getModifiers()) &&
+				!Modifier.isStatic(method.getModifiers()) && overridesAnnotated(superclass, method))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether the class hierarchy declares no {@link Inject} fields, methods or constructors
+	 * and no {@link PostConstruct} or {@link PreDestroy} methods
+	 * 
+	 * @param clazz
+	 * @return {@code true} iff instances of the class have nothing to inject or call back
+	 */
+	static boolean isPassive(Class<?> clazz)
+	{
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass())
+		{
+			for (Field field : c.getDeclaredFields())
+			{
+				if (field.isAnnotationPresent(Inject.class))
+				{
+					return false;
+				}
+			}
+			for (Constructor<?> constructor : c.getDeclaredConstructors())
+			{
+				if (constructor.isAnnotationPresent(Inject.class))
+				{
+					return false;
+				}
+			}
+			for (Method method : c.getDeclaredMethods())
+			{
+				if (method.isAnnotationPresent(Inject.class) ||
+					method.isAnnotationPresent(PostConstruct.class) ||
+					method.isAnnotationPresent(PreDestroy.class))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether the class hierarchy declares any {@link Inject} methods. Initializer methods
+	 * without parameters have no injection points, so this is the only way to tell that they must
+	 * still be called.
+	 * 
+	 * @param clazz
+	 * @return {@code true} iff at least one method of the hierarchy is annotated with {@link Inject}
+	 */
+	static boolean hasInjectMethods(Class<?> clazz)
+	{
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass())
+		{
+			for (Method method : c.getDeclaredMethods())
+			{
+				if (method.isAnnotationPresent(Inject.class))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isAnnotated(Annotation[][] parameters)
+	{
+		for (Annotation[] annotations : parameters)
+		{
+			if (annotations.length > 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean overridesAnnotated(Class<?> superclass, Method method)
+	{
+		for (Class<?> c = superclass; c != null && c != Object.class; c = c.getSuperclass())
+		{
+			for (Method candidate : c.getDeclaredMethods())
+			{
+				if (candidate.getAnnotations().length > 0 &&
+					candidate.getName().equals(method.getName()) &&
+					Arrays.equals(candidate.getParameterTypes(), method.getParameterTypes()))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return registry of dependent instances created while injecting
+	 */
+	public DependentInstances getDependentInstances()
+	{
+		return dependents;
+	}
+
+	/**
+	 * @return registry of client proxies injected into noncontextual instances
+	 */
+	public InjectedReferences getInjectedReferences()
+	{
+		return references;
+	}
+
+	/**
+	 * Removes all entries and releases all outstanding dependent instances
+	 */
+	public void clear()
+	{
+		slots.clear();
+		references.clear();
+		dependents.releaseAll();
+	}
+
+	/**
+	 * Holds the {@link NonContextual} of a single class
+	 *
+	 * @author igor
+	 */
+	private final class Slot
+	{
+		private final Class<?> clazz;
+		private volatile NonContextual<?> value;
+		private volatile long access;
+
+		/** slot of the superclass whose helper is shared, if any */
+		private volatile Slot shared;
+
+		public Slot(Class<?> clazz)
+		{
+			this.clazz = clazz;
+			access = clock.incrementAndGet();
+		}
+
+		public void touch()
+		{
+			long now = clock.get();
+			if (access != now)
+			{
+				access = now;
+			}
+			Slot superclass = shared;
+			if (superclass != null)
+			{
+				superclass.touch();
+			}
+		}
+
+		public NonContextual<?> get()
+		{
+			NonContextual<?> nc = value;
+			if (nc == null)
+			{
+				synchronized (this)
+				{
+					nc = value;
+					if (nc == null)
+					{
+						if (isSharingSuperclass(clazz))
+						{
+							Slot superclass = slot(clazz.getSuperclass());
+							shared = superclass;
+							nc = superclass.get();
+						}
+						else
+						{
+							nc = new NonContextual<Object>(manager, clazz, NonContextualCache.this);
+							targets.incrementAndGet();
+						}
+						value = nc;
+					}
+				}
+			}
+			return nc;
+		}
+	}
+
+	/**
+	 * Slot and its last access time, captured so sorting is not affected by concurrent hits
+	 *
+	 * @author igor
+	 */
+	private static final class Candidate
+	{
+		private final Class<?> clazz;
+		private final Slot slot;
+		private final long access;
+
+		public Candidate(Class<?> clazz, Slot slot)
+		{
+			this.clazz = clazz;
+			this.slot = slot;
+			access = slot.access;
+		}
+	}
+}
@@ -16,11 +16,17 @@
  */
 package net.ftlines.wicket.cdi;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.enterprise.inject.spi.BeanManager;
 
+import org.apache.wicket.application.IClassResolver;
 import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Default implementation of {@link INonContextualManager} using {@link NonContextual} helper
@@ -30,7 +36,11 @@ import org.apache.wicket.util.lang.Args;
  */
 class NonContextualManager implements INonContextualManager
 {
+	private static final Logger logger = LoggerFactory.getLogger(NonContextualManager.class);
+
 	private final BeanManager beanManager;
+	private volatile InjectionEngine engine = InjectionEngine.INJECTION_TARGET;
+	private volatile boolean batching;
 
 	/**
 	 * Constructor
@@ -44,6 +54,126 @@ class NonContextualManager implements INonContextualManager
 		this.beanManager = beanManager;
 	}
 
+	/**
+	 * Sets the engine used to inject instances
+	 * 
+	 * @param engine
+	 */
+	public void setInjectionEngine(InjectionEngine engine)
+	{
+		Args.notNull(engine, "engine");
+
+		this.engine = engine;
+	}
+
+	/**
+	 * @return engine used to inject instances
+	 */
+	public InjectionEngine getInjectionEngine()
+	{
+		return engine;
+	}
+
+	/**
+	 * Sets whether instances injected during the same request share creational contexts
+	 * 
+	 * @see InjectionBatch
+	 * 
+	 * @param batching
+	 */
+	public void setBatching(boolean batching)
+	{
+		this.batching = batching;
+	}
+
+	/**
+	 * @return {@code true} iff instances injected during the same request share creational
+	 *         contexts
+	 */
+	public boolean isBatching()
+	{
+		return batching;
+	}
+
+	/**
+	 * Builds and validates the injection targets of all classes in the index, so injection
+	 * problems are reported before the application serves requests. Classes the index marks as
+	 * having neither injection points nor lifecycle callbacks are checked for injection
+	 * annotations and cached without building an injection target, unless the index turns out to
+	 * be stale.
+	 * 
+	 * @param index
+	 * @param resolver
+	 *            resolver used to load the indexed classes
+	 * @return number of classes loaded from the index
+	 */
+	public int preload(InjectionIndex index, IClassResolver resolver)
+	{
+		Args.notNull(index, "index");
+		Args.notNull(resolver, "resolver");
+
+		int count = 0;
+		for (InjectionIndex.Entry entry : index.getEntries())
+		{
+			if (preload(entry, resolver))
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Builds and validates the injection target of a single indexed class
+	 * 
+	 * @param entry
+	 * @param resolver
+	 * @return {@code true} iff the class could be loaded
+	 */
+	public boolean preload(InjectionIndex.Entry entry, IClassResolver resolver)
+	{
+		Class<?> clazz;
+		try
+		{
+			clazz = resolver.resolveClass(entry.getClassName());
+		}
+		catch (ClassNotFoundException e)
+		{
+			logger.warn("Class {} listed in the injection index could not be loaded",
+				entry.getClassName());
+			return false;
+		}
+
+		if (entry.isPassive())
+		{
+			if (!NonContextual.preloadPassive(clazz, beanManager))
+			{
+				logger.warn("Injection index entry of {} does not match its injection points, " +
+					"the index may be stale", clazz.getName());
+				prepare(clazz);
+			}
+		}
+		else if (!prepare(clazz).equals(new HashSet<String>(entry.getFields())))
+		{
+			logger.warn("Injection index entry of {} does not match its injection points, " +
+				"the index may be stale", clazz.getName());
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the injection target of the class and validates its injection points
+	 * 
+	 * @param clazz
+	 * @return injected fields of the class, as {@code declaringClass#fieldName}
+	 */
+	public Set<String> prepare(Class<?> clazz)
+	{
+		Args.notNull(clazz, "clazz");
+
+		return NonContextual.of(clazz, beanManager).validate();
+	}
+
 	/**
 	 * Performs dependency injection on the noncontextual instance
 	 */
@@ -51,7 +181,8 @@ class NonContextualManager implements INonContextualManager
 	public <T> void inject(T instance)
 	{
 		Args.notNull(instance, "instance");
-		NonContextual.of(instance.getClass(), beanManager).inject(instance);
+		NonContextual.of(instance.getClass(), beanManager).inject(instance, engine,
+			batching ? InjectionBatch.get() : null);
 	}
 
 	/**
@@ -62,7 +193,7 @@ class NonContextualManager implements INonContextualManager
 	public <T> void postConstruct(T instance)
 	{
 		Args.notNull(instance, "instance");
-		NonContextual.of(instance.getClass(), beanManager).postConstruct(instance);
+		NonContextual.of(instance.getClass(), beanManager).postConstruct(instance, engine);
 	}
 
 	/**
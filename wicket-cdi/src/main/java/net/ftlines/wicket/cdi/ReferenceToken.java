@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Serialized form of an injected client proxy. Instead of the proxy, with its bean identifier and
+ * proxy class descriptor, only the index of its bean in the application's {@link BeanTable} is
+ * written, along with the id of the bean for streams that are read by a deployment with other
+ * beans. The id is the same string for every token of a bean, so it is written once per stream
+ * and referenced by a handle after that.
+ *
+ * @see CdiSerializer
+ *
+ * @author igor
+ */
+final class ReferenceToken implements Externalizable
+{
+	private static final long serialVersionUID = 1L;
+
+	private int index;
+	private String id;
+
+	/**
+	 * Constructor used by serialization
+	 */
+	public ReferenceToken()
+	{
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param index
+	 *            index of the bean in the bean table
+	 * @param id
+	 *            id of the bean
+	 */
+	public ReferenceToken(int index, String id)
+	{
+		this.index = index;
+		this.id = id;
+	}
+
+	/**
+	 * @return index of the bean in the bean table
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @return id of the bean, see {@link BeanTable#getId(int)}
+	 */
+	public String getId()
+	{
+		return id;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException
+	{
+		out.writeInt(index);
+		out.writeObject(id);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+	{
+		index = in.readInt();
+		id = (String)in.readObject();
+	}
+}
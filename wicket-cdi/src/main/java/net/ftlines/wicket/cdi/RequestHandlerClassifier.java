@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.handler.BufferedResponseRequestHandler;
+import org.apache.wicket.request.handler.EmptyRequestHandler;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.handler.resource.ResourceRequestHandler;
+import org.apache.wicket.request.handler.resource.ResourceStreamRequestHandler;
+import org.apache.wicket.request.http.handler.ErrorCodeRequestHandler;
+import org.apache.wicket.request.http.handler.RedirectRequestHandler;
+import org.apache.wicket.util.lang.Args;
+
+/**
+ * Default {@link IRequestHandlerClassifier} that excludes handlers of configurable types, and
+ * their subclasses, from the conversation context. By default the handlers of static and dynamic
+ * resources, redirects, error codes, empty responses and buffered responses are excluded.
+ * 
+ * <pre>
+ * config.setHandlerClassifier(new RequestHandlerClassifier().exclude(ReportRequestHandler.class));
+ * </pre>
+ * 
+ * @author igor
+ */
+public class RequestHandlerClassifier implements IRequestHandlerClassifier
+{
+	private final List<Class<? extends IRequestHandler>> excluded = new ArrayList<Class<? extends IRequestHandler>>();
+
+	/**
+	 * Constructor
+	 */
+	public RequestHandlerClassifier()
+	{
+		excluded.add(BufferedResponseRequestHandler.class);
+		excluded.add(ResourceReferenceRequestHandler.class);
+		excluded.add(ResourceRequestHandler.class);
+		excluded.add(ResourceStreamRequestHandler.class);
+		excluded.add(RedirectRequestHandler.class);
+		excluded.add(ErrorCodeRequestHandler.class);
+		excluded.add(EmptyRequestHandler.class);
+	}
+
+	/**
+	 * Excludes handlers of the specified type from the conversation context
+	 * 
+	 * @param type
+	 * @return {@code this} for chaining
+	 */
+	public RequestHandlerClassifier exclude(Class<? extends IRequestHandler> type)
+	{
+		Args.notNull(type, "type");
+
+		excluded.add(type);
+		return this;
+	}
+
+	/**
+	 * Includes handlers of the specified type, removing it from the excluded types
+	 * 
+	 * @param type
+	 * @return {@code this} for chaining
+	 */
+	public RequestHandlerClassifier include(Class<? extends IRequestHandler> type)
+	{
+		Args.notNull(type, "type");
+
+		excluded.remove(type);
+		return this;
+	}
+
+	@Override
+	public boolean isConversational(Class<? extends IRequestHandler> handlerClass)
+	{
+		for (Class<? extends IRequestHandler> type : excluded)
+		{
+			if (type.isAssignableFrom(handlerClass))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
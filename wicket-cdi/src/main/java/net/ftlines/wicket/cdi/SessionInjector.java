@@ -17,6 +17,7 @@
 package net.ftlines.wicket.cdi;
 
 import org.apache.wicket.ISessionListener;
+import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.Session;
 
 /**
@@ -27,20 +28,63 @@ import org.apache.wicket.Session;
  */
 class SessionInjector extends AbstractInjector implements ISessionListener
 {
+	private static final MetaDataKey<Boolean> INJECTED = new MetaDataKey<Boolean>()
+	{
+		private static final long serialVersionUID = 1L;
+	};
+
+	private final boolean deferred;
+
 	/**
 	 * Constructor
 	 * 
 	 * @param container
+	 * @param filter
+	 *            decides which instances are injected
 	 */
-	public SessionInjector(CdiContainer container)
+	public SessionInjector(CdiContainer container, InjectionFilter filter)
 	{
-		super(container);
+		this(container, filter, false);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param container
+	 * @param filter
+	 *            decides which instances are injected
+	 * @param deferred
+	 *            {@code true} to inject sessions when they are bound instead of when they are
+	 *            created
+	 */
+	public SessionInjector(CdiContainer container, InjectionFilter filter, boolean deferred)
+	{
+		super(container, filter);
+		this.deferred = deferred;
 	}
 
 	@Override
 	public void onCreated(Session session)
 	{
-		postConstruct(session);
+		if (!deferred)
+		{
+			postConstruct(session);
+		}
+	}
+
+	/**
+	 * Injects a session that is being bound if injection is deferred and the session has not been
+	 * injected before
+	 * 
+	 * @param session
+	 */
+	void onBind(Session session)
+	{
+		if (deferred && session.getMetaData(INJECTED) == null)
+		{
+			session.setMetaData(INJECTED, Boolean.TRUE);
+			postConstruct(session);
+		}
 	}
 
 }
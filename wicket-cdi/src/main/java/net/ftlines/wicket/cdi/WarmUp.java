@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.Component;
+import org.apache.wicket.Session;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.application.IClassResolver;
+import org.apache.wicket.behavior.Behavior;
+import org.apache.wicket.util.lang.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prepares the injection targets of pages, components, behaviors and sessions on a pool of threads
+ * while the application starts, so the first requests after a deploy do not build them on request
+ * threads.
+ * <p>
+ * Classes are taken from the {@link InjectionIndex}, if one is loaded, from the packages added via
+ * {@link #addPackages(String...)} and from the classes added via {@link #addClasses(Class...)}. By
+ * default warm-up runs in the background and {@link #isReady()} can be used by a health check to
+ * keep the node out of the load balancer until it completes. Classes that cannot be prepared do not
+ * stop warm-up, they are logged and reported by {@link #getFailures()}:
+ * 
+ * <pre>
+ * new CdiConfiguration(beanManager).setWarmUp(new WarmUp().addPackages(&quot;com.example.pages&quot;))
+ * 	.configure(this);
+ * 
+ * boolean ready = CdiContainer.get(application).getWarmUp().isReady();
+ * </pre>
+ * 
+ * @author igor
+ */
+public class WarmUp
+{
+	private static final Logger logger = LoggerFactory.getLogger(WarmUp.class);
+
+	private final Set<String> packages = new LinkedHashSet<String>();
+	private final Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean blocking = false;
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final AtomicInteger prepared = new AtomicInteger();
+	private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+	private volatile boolean started;
+	private volatile long duration = -1;
+
+	/**
+	 * Adds packages whose pages, components, behaviors and sessions are prepared, including those
+	 * of subpackages
+	 * 
+	 * @param packages
+	 * @return {@code this} for chaining
+	 */
+	public WarmUp addPackages(String... packages)
+	{
+		for (String pkg : packages)
+		{
+			this.packages.add(pkg);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds classes to prepare
+	 * 
+	 * @param classes
+	 * @return {@code this} for chaining
+	 */
+	public WarmUp addClasses(Class<?>... classes)
+	{
+		for (Class<?> clazz : classes)
+		{
+			this.classes.add(clazz);
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads that prepare classes, defaults to the number of processors
+	 * 
+	 * @param threads
+	 * @return {@code this} for chaining
+	 */
+	public WarmUp setThreads(int threads)
+	{
+		Args.isTrue(threads > 0, "threads must be positive");
+
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * Sets whether configuring the application waits for warm-up to complete. Blocking warm-up
+	 * fails the configuration if any class could not be prepared.
+	 * 
+	 * @param blocking
+	 * @return {@code this} for chaining
+	 */
+	public WarmUp setBlocking(boolean blocking)
+	{
+		this.blocking = blocking;
+		return this;
+	}
+
+	/**
+	 * @return {@code true} iff warm-up has finished, whether or not every class could be prepared
+	 */
+	public boolean isReady()
+	{
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits for warm-up to finish
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return {@code true} iff warm-up has finished
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return done.await(timeout, unit);
+	}
+
+	/**
+	 * @return number of classes prepared so far
+	 */
+	public int getPrepared()
+	{
+		return prepared.get();
+	}
+
+	/**
+	 * @return duration of warm-up in milliseconds or {@code -1} if it has not completed
+	 */
+	public long getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * @return errors of the classes that could not be prepared so far, and of warm-up itself if it
+	 *         was aborted
+	 */
+	public List<Throwable> getFailures()
+	{
+		return Collections.unmodifiableList(new ArrayList<Throwable>(failures));
+	}
+
+	/**
+	 * Starts warm-up, waiting for it to complete if it is blocking
+	 * 
+	 * @param application
+	 *            application bound to the warm-up threads
+	 * @param resolver
+	 *            resolver used to find and load classes
+	 * @param manager
+	 * @param index
+	 *            index to take classes from, may be {@code null}
+	 */
+	void start(final Application application, final IClassResolver resolver,
+		final NonContextualManager manager, final InjectionIndex index)
+	{
+		if (started)
+		{
+			throw new IllegalStateException("Warm-up can only be started once");
+		}
+		started = true;
+
+		Runnable run = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ThreadContext.setApplication(application);
+				try
+				{
+					WarmUp.this.run(application, resolver, manager, index);
+				}
+				finally
+				{
+					ThreadContext.detach();
+				}
+			}
+		};
+
+		if (blocking)
+		{
+			run.run();
+			if (!failures.isEmpty())
+			{
+				throw new IllegalStateException("Injection warm-up failed", failures.peek());
+			}
+		}
+		else
+		{
+			Thread thread = new Thread(run, "wicket-cdi-warmup");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void run(final Application application, final IClassResolver resolver,
+		final NonContextualManager manager, InjectionIndex index)
+	{
+		long start = System.currentTimeMillis();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "wicket-cdi-warmup-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try
+		{
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			Set<String> indexed = new HashSet<String>();
+			if (index != null)
+			{
+				for (final InjectionIndex.Entry entry : index.getEntries())
+				{
+					if (!indexed.add(entry.getClassName()))
+					{
+						continue;
+					}
+					tasks.add(new Task(application, entry.getClassName())
+					{
+						@Override
+						protected boolean prepare()
+						{
+							return manager.preload(entry, resolver);
+						}
+					});
+				}
+			}
+
+			Set<Class<?>> classes = new LinkedHashSet<Class<?>>(this.classes);
+			for (String pkg : packages)
+			{
+				scan(pkg, resolver, classes);
+			}
+			for (final Class<?> clazz : classes)
+			{
+				if (indexed.contains(clazz.getName()))
+				{
+					// already prepared from its index entry
+					continue;
+				}
+				tasks.add(new Task(application, clazz.getName())
+				{
+					@Override
+					protected boolean prepare()
+					{
+						manager.prepare(clazz);
+						return true;
+					}
+				});
+			}
+
+			for (Future<Void> future : executor.invokeAll(tasks))
+			{
+				future.get();
+			}
+
+			duration = System.currentTimeMillis() - start;
+			logger.info("Injection warm-up prepared {} classes in {} ms, {} failed", new Object[] {
+					prepared.get(), duration, failures.size() });
+		}
+		catch (ExecutionException e)
+		{
+			failures.add(e.getCause());
+			logger.error("Injection warm-up failed", e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			failures.add(e);
+			Thread.currentThread().interrupt();
+		}
+		catch (RuntimeException e)
+		{
+			failures.add(e);
+			logger.error("Injection warm-up failed", e);
+		}
+		catch (Error e)
+		{
+			failures.add(e);
+			throw e;
+		}
+		finally
+		{
+			executor.shutdownNow();
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Prepares a single class with the application bound to the thread, recording its failure
+	 * without failing the other classes
+	 * 
+	 * @author igor
+	 */
+	private abstract class Task implements Callable<Void>
+	{
+		private final Application application;
+		private final String className;
+
+		public Task(Application application, String className)
+		{
+			this.application = application;
+			this.className = className;
+		}
+
+		@Override
+		public Void call() throws Exception
+		{
+			ThreadContext.setApplication(application);
+			try
+			{
+				if (prepare())
+				{
+					prepared.incrementAndGet();
+				}
+			}
+			catch (RuntimeException e)
+			{
+				failures.add(e);
+				logger.error("Injection warm-up could not prepare " + className, e);
+			}
+			finally
+			{
+				ThreadContext.detach();
+			}
+			return null;
+		}
+
+		protected abstract boolean prepare();
+	}
+
+	/**
+	 * Finds the concrete pages, components, behaviors and sessions in the package and its
+	 * subpackages, in directories as well as jars
+	 * 
+	 * @param pkg
+	 * @param resolver
+	 * @param classes
+	 */
+	private static void scan(String pkg, IClassResolver resolver, Set<Class<?>> classes)
+	{
+		String path = pkg.replace('.', '/');
+		Iterator<URL> urls = resolver.getResources(path);
+		while (urls.hasNext())
+		{
+			URL url = urls.next();
+			List<String> names = new ArrayList<String>();
+			try
+			{
+				if ("file".equals(url.getProtocol()))
+				{
+					list(new File(URLDecoder.decode(url.getPath(), "UTF-8")), pkg, names);
+				}
+				else
+				{
+					URLConnection connection = url.openConnection();
+					if (connection instanceof JarURLConnection)
+					{
+						JarFile jar = ((JarURLConnection)connection).getJarFile();
+						Enumeration<JarEntry> entries = jar.entries();
+						while (entries.hasMoreElements())
+						{
+							String name = entries.nextElement().getName();
+							if (name.startsWith(path + "/") && name.endsWith(".class"))
+							{
+								names.add(name.substring(0, name.length() - 6).replace('/', '.'));
+							}
+						}
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				logger.warn("Could not scan " + url + " for classes to warm up", e);
+			}
+
+			for (String name : names)
+			{
+				try
+				{
+					Class<?> clazz = resolver.resolveClass(name);
+					if (isInjectable(clazz))
+					{
+						classes.add(clazz);
+					}
+				}
+				catch (ClassNotFoundException e)
+				{
+					logger.debug("Could not load class {} for warm-up", name);
+				}
+				catch (LinkageError e)
+				{
+					logger.debug("Could not load class {} for warm-up", name);
+				}
+			}
+		}
+	}
+
+	private static void list(File dir, String pkg, List<String> names)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				list(file, pkg + "." + file.getName(), names);
+			}
+			else if (file.getName().endsWith(".class"))
+			{
+				String name = file.getName();
+				names.add(pkg + "." + name.substring(0, name.length() - 6));
+			}
+		}
+	}
+
+	private static boolean isInjectable(Class<?> clazz)
+	{
+		if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) ||
+			clazz.isAnonymousClass() || clazz.isLocalClass())
+		{
+			return false;
+		}
+		return Component.class.isAssignableFrom(clazz) || Behavior.class.isAssignableFrom(clazz) ||
+			Session.class.isAssignableFrom(clazz);
+	}
+}
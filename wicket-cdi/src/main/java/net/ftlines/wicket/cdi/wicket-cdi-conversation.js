@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Remembers the long-running conversation of the page, and thus of its browser tab, and sends it
+ * with every Ajax request in the Wicket-Conversation-Id header, which the server prefers over the
+ * conversation cookie that is shared by all tabs.
+ */
+if (typeof(Wicket) == "undefined")
+	Wicket = { };
+
+if (typeof(Wicket.Conversation) == "undefined") {
+	Wicket.Conversation = {
+		header: "Wicket-Conversation-Id",
+
+		// id of the conversation of this page, null if there is none
+		id: null,
+
+		installed: false,
+
+		// sets the conversation of the page, called when the page is loaded and by every Ajax response
+		set: function(id) {
+			Wicket.Conversation.id = id;
+			Wicket.Conversation.install();
+		},
+
+		// decorates the transports created by wicket-ajax.js once it has been loaded
+		install: function() {
+			if (Wicket.Conversation.installed || typeof(Wicket.Ajax) == "undefined")
+				return;
+			Wicket.Conversation.installed = true;
+
+			var createTransport = Wicket.Ajax.createTransport;
+			Wicket.Ajax.createTransport = function() {
+				var transport = createTransport();
+				try {
+					var open = transport.open;
+					transport.open = function(method, url, async) {
+						open.call(transport, method, url, async);
+						if (Wicket.Conversation.id != null)
+							transport.setRequestHeader(Wicket.Conversation.header, Wicket.Conversation.id);
+					};
+				} catch (e) {
+					// transports that cannot be decorated only send the cookie
+				}
+				return transport;
+			};
+		}
+	};
+}
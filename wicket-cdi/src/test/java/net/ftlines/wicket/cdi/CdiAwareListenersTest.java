@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.cycle.RequestCycleListenerCollection;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link CdiAwareListeners}
+ *
+ * @author igor
+ */
+public class CdiAwareListenersTest
+{
+	private WicketTester tester;
+	private Application application;
+
+	@Before
+	public void before()
+	{
+		tester = new WicketTester(new MockApplication());
+		application = tester.getApplication();
+	}
+
+	@After
+	public void after()
+	{
+		tester.destroy();
+	}
+
+	/**
+	 * Listeners nested in collections are found, and later changes are seen once the registry has
+	 * been invalidated
+	 */
+	@Test
+	public void collectsNestedListeners()
+	{
+		Listener top = new Listener();
+		Listener nested = new Listener();
+		RequestCycleListenerCollection collection = new RequestCycleListenerCollection();
+		collection.add(nested);
+		application.getRequestCycleListeners().add(top);
+		application.getRequestCycleListeners().add(collection);
+
+		CdiAwareListeners listeners = new CdiAwareListeners(application);
+		assertArrayEquals(new Object[] { top, nested }, listeners.getListeners());
+
+		Listener late = new Listener();
+		application.getRequestCycleListeners().add(late);
+		listeners.invalidate();
+		assertArrayEquals(new Object[] { top, nested, late }, listeners.getListeners());
+
+		collection.remove(nested);
+		listeners.invalidate();
+		assertArrayEquals(new Object[] { top, late }, listeners.getListeners());
+
+		application.getRequestCycleListeners().remove(top);
+		listeners.invalidate();
+		assertArrayEquals(new Object[] { late }, listeners.getListeners());
+	}
+
+	/**
+	 * Notifications dispatch to the listeners of the last scan without looking at the application
+	 * again
+	 */
+	@Test
+	public void doesNotScanOnEveryNotification()
+	{
+		Listener registered = new Listener();
+		application.getRequestCycleListeners().add(registered);
+		CdiAwareListeners listeners = new CdiAwareListeners(application);
+		assertArrayEquals(new Object[] { registered }, listeners.getListeners());
+
+		application.getRequestCycleListeners().add(new Listener());
+		assertArrayEquals(new Object[] { registered }, listeners.getListeners());
+	}
+
+	/**
+	 * Listeners added to and removed from the registry directly take effect immediately
+	 */
+	@Test
+	public void addAndRemove()
+	{
+		Listener registered = new Listener();
+		application.getRequestCycleListeners().add(registered);
+		CdiAwareListeners listeners = new CdiAwareListeners(application);
+
+		Listener added = new Listener();
+		listeners.add(added);
+		assertArrayEquals(new Object[] { registered, added }, listeners.getListeners());
+
+		listeners.remove(added);
+		assertArrayEquals(new Object[] { registered }, listeners.getListeners());
+	}
+
+	static class Listener extends AbstractRequestCycleListener
+		implements
+			ICdiAwareRequestCycleListener
+	{
+		@Override
+		public void onAfterConversationActivated(RequestCycle cycle)
+		{
+		}
+
+		@Override
+		public void onBeforeConversationDeactivated(RequestCycle cycle)
+		{
+		}
+	}
+}
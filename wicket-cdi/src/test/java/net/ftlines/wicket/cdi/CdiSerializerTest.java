@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.io.SerializableChecker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link CdiSerializer}
+ *
+ * @author igor
+ */
+public class CdiSerializerTest
+{
+	private MockBeanManager mock;
+	private NonContextualManager manager;
+	private CdiSerializer serializer;
+
+	@Before
+	public void before()
+	{
+		mock = new MockBeanManager();
+		manager = new NonContextualManager(mock.getManager());
+		serializer = new CdiSerializer("test", mock.getManager());
+	}
+
+	@After
+	public void after()
+	{
+		NonContextual.undeploy(mock.getManager());
+	}
+
+	/**
+	 * Injected client proxies are written as tokens and re-injected when read
+	 */
+	@Test
+	public void clientProxiesAreReinjected()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+		mock.setScope(ApplicationScoped.class);
+		Page page = new Page();
+		manager.inject(page);
+
+		byte[] data = serializer.serialize(page);
+
+		assertEquals(0,
+			NonContextual.getInjectedReferences(mock.getManager()).indexOf(page.service));
+
+		Page read = (Page)serializer.deserialize(data);
+		assertEquals(MockBeanManager.REFERENCE, read.service);
+	}
+
+	/**
+	 * Tokens are resolved by another deployment with the same beans, even before the proxy has
+	 * been injected there
+	 */
+	@Test
+	public void tokensAreResolvedAfterRedeploy()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+		mock.setScope(ApplicationScoped.class);
+		Page page = new Page();
+		manager.inject(page);
+
+		byte[] data = serializer.serialize(page);
+		NonContextual.undeploy(mock.getManager());
+
+		Page read = (Page)serializer.deserialize(data);
+		assertEquals(MockBeanManager.REFERENCE, read.service);
+		assertEquals(1, mock.count("getReference"));
+	}
+
+	/**
+	 * Tokens written by a deployment with other beans are resolved by the ids of their beans, and
+	 * only the tokens of beans that no longer exist fail
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void tokensAreResolvedByIdAfterBeansChange() throws Exception
+	{
+		UsersPage users = new UsersPage();
+		RemovedPage removed = new RemovedPage();
+		byte[] usersData;
+		byte[] removedData;
+		WeldDeployment weld = new WeldDeployment(Users.class, Removed.class);
+		try
+		{
+			NonContextualManager manager = new NonContextualManager(weld.getManager());
+			manager.setInjectionEngine(InjectionEngine.FIELD);
+			manager.inject(users);
+			manager.inject(removed);
+			CdiSerializer serializer = new CdiSerializer("test", weld.getManager());
+			usersData = serializer.serialize(users);
+			removedData = serializer.serialize(removed);
+
+			// weld's proxies replace themselves before the serializer sees them
+			assertFalse(new String(usersData, "ISO-8859-1").contains(
+				InjectedReferences.WELD_SERIALIZED_PROXY));
+		}
+		finally
+		{
+			weld.shutdown();
+		}
+
+		weld = new WeldDeployment(Users.class, Added.class);
+		try
+		{
+			CdiSerializer serializer = new CdiSerializer("test", weld.getManager());
+			assertEquals("users", ((UsersPage)serializer.deserialize(usersData)).users.getName());
+			try
+			{
+				serializer.deserialize(removedData);
+				fail();
+			}
+			catch (RuntimeException e)
+			{
+				assertTrue(e.getCause() instanceof InvalidObjectException);
+			}
+		}
+		finally
+		{
+			weld.shutdown();
+		}
+	}
+
+	/**
+	 * Dependent beans are serialized as is
+	 */
+	@Test
+	public void dependentsAreSerialized()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+		Page page = new Page();
+		manager.inject(page);
+
+		int references = mock.count("getInjectableReference");
+		Page read = (Page)serializer.deserialize(serializer.serialize(page));
+		assertEquals(MockBeanManager.REFERENCE, read.service);
+		assertEquals(references, mock.count("getInjectableReference"));
+	}
+
+	/**
+	 * Objects that cannot be serialized are reported with the path to the offending field
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void notSerializableObjectsAreChecked() throws Exception
+	{
+		Broken page = new Broken();
+		try
+		{
+			serializer.newObjectOutputStream(new ByteArrayOutputStream()).writeObject(page);
+			fail();
+		}
+		catch (NotSerializableException e)
+		{
+			// the checker is not available on this jvm
+			assertFalse(SerializableChecker.isAvailable());
+		}
+		catch (WicketRuntimeException e)
+		{
+			assertTrue(e.getMessage().contains("field"));
+		}
+	}
+
+	static class Broken implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		Object field = new Object();
+	}
+
+	@ApplicationScoped
+	static class Users
+	{
+		public String getName()
+		{
+			return "users";
+		}
+	}
+
+	@ApplicationScoped
+	static class Removed
+	{
+	}
+
+	@ApplicationScoped
+	static class Added
+	{
+	}
+
+	static class UsersPage implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		Users users;
+	}
+
+	static class RemovedPage implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		Removed removed;
+	}
+
+	static class Page implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		Object service;
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.enterprise.context.Conversation;
+
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.mock.MockWebResponse;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.request.IRequestCycle;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.Test;
+
+/**
+ * Tests {@link ConversationAdmission}
+ *
+ * @author igor
+ */
+public class ConversationAdmissionTest
+{
+	/**
+	 * A waiting request is admitted once the conversation is released, conversations of other
+	 * sessions are independent
+	 */
+	@Test
+	public void waitsForRelease() throws Exception
+	{
+		final ConversationAdmission admission = new ConversationAdmission();
+		ConversationAdmission.Gate gate = admission.enter("s1", "1");
+		admission.leave(admission.enter("s2", "1"));
+
+		final CountDownLatch admitted = new CountDownLatch(1);
+		Thread waiter = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				admission.leave(admission.enter("s1", "1"));
+				admitted.countDown();
+			}
+		};
+		waiter.start();
+
+		assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+		admission.leave(gate);
+		assertTrue(admitted.await(5, TimeUnit.SECONDS));
+		waiter.join();
+
+		assertEquals(3, admission.getAdmitted());
+		assertEquals(1, admission.getWaited());
+		assertTrue(admission.getMaxWaitTime() >= 50);
+		assertEquals(0, admission.getConversationsInUse());
+	}
+
+	/**
+	 * Requests fail fast when the queue is full and give up after the timeout
+	 */
+	@Test
+	public void rejectsWhenBusy() throws Exception
+	{
+		final ConversationAdmission admission = new ConversationAdmission().setMaxQueueDepth(1)
+			.setTimeout(5, TimeUnit.SECONDS);
+		ConversationAdmission.Gate gate = admission.enter("s1", "1");
+
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		Thread waiter = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					admission.leave(admission.enter("s1", "1"));
+				}
+				catch (RuntimeException e)
+				{
+					failure.set(e);
+				}
+			}
+		};
+		waiter.start();
+		while (admission.getWaited() == 0)
+		{
+			Thread.sleep(10);
+		}
+
+		try
+		{
+			admission.enter("s1", "1");
+			fail();
+		}
+		catch (ConversationBusyException e)
+		{
+			assertEquals("1", e.getCid());
+		}
+		assertEquals(1, admission.getRejected());
+
+		admission.leave(gate);
+		waiter.join();
+		assertNull(failure.get());
+
+		admission.setMaxQueueDepth(1).setTimeout(50, TimeUnit.MILLISECONDS);
+		gate = admission.enter("s1", "1");
+		try
+		{
+			admission.enter("s1", "1");
+			fail();
+		}
+		catch (ConversationBusyException e)
+		{
+			assertEquals(1, admission.getTimedOut());
+		}
+		admission.leave(gate);
+		assertEquals(0, admission.getConversationsInUse());
+	}
+
+	/**
+	 * The conversation is released when a listener fails after it was activated or before it is
+	 * deactivated
+	 */
+	@Test
+	public void releasesWhenListenerFails()
+	{
+		WicketTester tester = new WicketTester(new MockApplication());
+		WeldDeployment weld = new WeldDeployment();
+		try
+		{
+			ConversationAdmission admission = new ConversationAdmission();
+			CdiContainer container = new CdiContainer(weld.getManager(), new NonContextualManager(
+				weld.getManager()));
+			container.setConversationAdmission(admission);
+			FailingListener listener = new FailingListener();
+			tester.getApplication().getRequestCycleListeners().add(listener);
+			ConversationPropagator propagator = new ConversationPropagator(
+				tester.getApplication(), container, ConversationPropagation.ALL);
+
+			// begin a long-running conversation
+			MockHttpServletRequest request = request(tester);
+			RequestCycle cycle = cycle(tester, request);
+			weld.beginRequest(request);
+			propagator.onRequestHandlerResolved(cycle, HANDLER);
+			Conversation conversation = weld.getReference(Conversation.class);
+			conversation.begin();
+			String cid = conversation.getId();
+			propagator.onDetach(cycle);
+			weld.endRequest(request);
+
+			listener.failActivated = true;
+			request = request(tester);
+			request.setParameter(ConversationPropagator.CID, cid);
+			cycle = cycle(tester, request);
+			weld.beginRequest(request);
+			try
+			{
+				propagator.onRequestHandlerResolved(cycle, HANDLER);
+				fail();
+			}
+			catch (IllegalStateException e)
+			{
+				assertEquals(1, admission.getConversationsInUse());
+			}
+			propagator.onDetach(cycle);
+			weld.endRequest(request);
+			assertEquals(0, admission.getConversationsInUse());
+
+			listener.failActivated = false;
+			listener.failDeactivated = true;
+			request = request(tester);
+			request.setParameter(ConversationPropagator.CID, cid);
+			cycle = cycle(tester, request);
+			weld.beginRequest(request);
+			propagator.onRequestHandlerResolved(cycle, HANDLER);
+			try
+			{
+				propagator.onDetach(cycle);
+				fail();
+			}
+			catch (IllegalStateException e)
+			{
+				assertEquals(0, admission.getConversationsInUse());
+			}
+			weld.endRequest(request);
+			assertEquals(2, admission.getAdmitted());
+		}
+		finally
+		{
+			weld.shutdown();
+			tester.destroy();
+		}
+	}
+
+	private static MockHttpServletRequest request(WicketTester tester)
+	{
+		MockHttpServletRequest request = new MockHttpServletRequest(tester.getApplication(),
+			tester.getHttpSession(), tester.getServletContext());
+		request.getSession(true);
+		return request;
+	}
+
+	private static RequestCycle cycle(WicketTester tester, MockHttpServletRequest request)
+	{
+		return tester.getApplication().createRequestCycle(new ServletWebRequest(request, ""),
+			new MockWebResponse());
+	}
+
+	/** a handler that takes part in conversations */
+	private static final IRequestHandler HANDLER = new IRequestHandler()
+	{
+		@Override
+		public void respond(IRequestCycle requestCycle)
+		{
+		}
+
+		@Override
+		public void detach(IRequestCycle requestCycle)
+		{
+		}
+	};
+
+	static class FailingListener extends AbstractRequestCycleListener
+		implements
+			ICdiAwareRequestCycleListener
+	{
+		boolean failActivated;
+		boolean failDeactivated;
+
+		@Override
+		public void onAfterConversationActivated(RequestCycle cycle)
+		{
+			if (failActivated)
+			{
+				throw new IllegalStateException("activated");
+			}
+		}
+
+		@Override
+		public void onBeforeConversationDeactivated(RequestCycle cycle)
+		{
+			if (failDeactivated)
+			{
+				throw new IllegalStateException("deactivated");
+			}
+		}
+	}
+}
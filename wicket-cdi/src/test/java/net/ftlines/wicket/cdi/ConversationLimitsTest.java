@@ -0,0 +1,500 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.Conversation;
+import javax.enterprise.context.ConversationScoped;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.mock.MockWebResponse;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.lang.WicketObjects;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ConversationLimits} and reaping of orphaned and inactive conversations
+ *
+ * @author igor
+ */
+public class ConversationLimitsTest
+{
+	private WicketTester tester;
+	private HttpSession session;
+
+	@Before
+	public void before()
+	{
+		tester = new WicketTester(new MockApplication());
+		session = tester.getHttpSession();
+	}
+
+	@After
+	public void after()
+	{
+		tester.destroy();
+	}
+
+	/**
+	 * The least recently activated conversation is evicted
+	 */
+	@Test
+	public void evictsLeastRecentlyActivated()
+	{
+		ConversationLimits limits = new ConversationLimits(2, 0);
+		request(limits, null, "1", 0);
+		request(limits, null, "2", 0);
+		request(limits, "1", "1", 0);
+
+		assertEquals(Arrays.asList("2"), request(limits, null, "3", 0));
+		assertEquals(1, limits.getEvicted());
+
+		// ended conversations no longer count
+		request(limits, "3", null, 0);
+		assertEquals(Collections.emptyList(), request(limits, null, "4", 0));
+		assertEquals(1, limits.getEvicted());
+	}
+
+	/**
+	 * The container ends evicted conversations, destroying their beans
+	 */
+	@Test
+	public void evictedConversationsAreDestroyed()
+	{
+		WeldDeployment weld = new WeldDeployment(Counter.class);
+		try
+		{
+			CdiContainer container = new CdiContainer(weld.getManager(), new NonContextualManager(
+				weld.getManager()));
+			container.setConversationLimits(new ConversationLimits(1, 0));
+			Counter.destroyed = 0;
+
+			String first = begin(weld, container, null);
+			assertEquals(0, Counter.destroyed);
+
+			String second = begin(weld, container, null);
+			assertFalse(first.equals(second));
+			assertEquals(1, Counter.destroyed);
+		}
+		finally
+		{
+			weld.shutdown();
+		}
+	}
+
+	/**
+	 * Conversations are evicted until the session is within its byte budget, but never while a
+	 * request is using them
+	 */
+	@Test
+	public void evictsOverBudget()
+	{
+		ConversationLimits limits = new ConversationLimits(0, 1000);
+		request(limits, null, "1", 400);
+		request(limits, null, "2", 400);
+
+		// a request for the first conversation is in progress
+		limits.activated(session, "1");
+		assertEquals(Arrays.asList("2"), request(limits, null, "3", 400));
+		assertEquals(Arrays.asList("3"), request(limits, null, "4", 400));
+		assertEquals(2, limits.getEvicted());
+	}
+
+	/**
+	 * Requests in progress on one node do not protect conversations once the session is replicated
+	 */
+	@Test
+	public void activeRequestsAreNotReplicated()
+	{
+		ConversationLimits limits = new ConversationLimits(1, 0);
+		request(limits, null, "1", 0);
+		limits.activated(session, "1");
+
+		for (Enumeration<?> names = session.getAttributeNames(); names.hasMoreElements();)
+		{
+			String name = (String)names.nextElement();
+			session.setAttribute(name, WicketObjects.cloneObject(session.getAttribute(name)));
+		}
+		assertEquals(Arrays.asList("1"), request(limits, null, "2", 0));
+	}
+
+	/**
+	 * Conversations no request has activated since the cutoff are reaped, unless in use
+	 */
+	@Test
+	public void reapsInactive()
+	{
+		ConversationLimits limits = new ConversationLimits(0, 0);
+		ConversationReaper reaper = new ConversationReaper();
+		request(limits, null, "1", 0);
+		request(limits, null, "2", 0);
+		limits.activated(session, "2");
+
+		long now = System.currentTimeMillis() + 1;
+		assertEquals(Collections.singletonMap("1", false), reap(limits, now, Long.MIN_VALUE));
+		assertEquals(Collections.emptyMap(), reap(limits, 0, Long.MIN_VALUE));
+
+		limits.deactivated(session, "2", "2", 0);
+		now = System.currentTimeMillis() + 1;
+		assertEquals(Collections.singletonMap("2", false), reap(limits, now, Long.MIN_VALUE));
+		assertEquals(Collections.emptyMap(), reap(limits, now, Long.MIN_VALUE));
+	}
+
+	/**
+	 * Conversations none of the recently stored pages carries are reaped once the orphan cutoff
+	 * has passed
+	 */
+	@Test
+	public void reapsOrphaned()
+	{
+		ConversationLimits limits = new ConversationLimits(0, 0);
+		request(limits, null, "1", 0);
+		request(limits, null, "2", 0);
+		request(limits, null, "3", 0);
+		limits.pageStored(session, 1, "1", 2);
+		limits.pageStored(session, 2, "2", 2);
+
+		long now = System.currentTimeMillis() + 1;
+		assertEquals(Collections.singletonMap("3", true), reap(limits, Long.MIN_VALUE, now));
+		assertEquals(Collections.emptyMap(), reap(limits, Long.MIN_VALUE, now));
+
+		// the second page no longer carries its conversation and the first one leaves the history
+		limits.pageStored(session, 2, null, 2);
+		limits.pageStored(session, 3, null, 2);
+		Map<String, Boolean> orphaned = new HashMap<String, Boolean>();
+		orphaned.put("1", true);
+		orphaned.put("2", true);
+		assertEquals(orphaned, reap(limits, Long.MIN_VALUE, now));
+	}
+
+	/**
+	 * The reaper ends inactive conversations in the background, destroying their beans
+	 */
+	@Test
+	public void inactiveConversationsAreDestroyed() throws Exception
+	{
+		WeldDeployment weld = new WeldDeployment(Counter.class);
+		ConversationReaper reaper = new ConversationReaper().setInactivityTimeout(50,
+			TimeUnit.MILLISECONDS).setOrphanTimeout(0, TimeUnit.MILLISECONDS);
+		try
+		{
+			CdiContainer container = start(weld, reaper);
+			Counter.destroyed = 0;
+
+			begin(weld, container, null);
+			begin(weld, container, null);
+			assertEquals(1, reaper.getSessions());
+			reaper.reap();
+			assertEquals(0, Counter.destroyed);
+
+			Thread.sleep(100);
+			reaper.reap();
+			assertEquals(2, Counter.destroyed);
+			assertEquals(2, reaper.getReclaimedConversations());
+			assertEquals(0, reaper.getOrphanedConversations());
+			assertTrue(reaper.getReclaimedBytes() > 0);
+
+			// the session no longer holds conversations
+			assertEquals(0, reaper.getSessions());
+		}
+		finally
+		{
+			reaper.stop();
+			weld.shutdown();
+		}
+	}
+
+	/**
+	 * The reaper ends conversations no stored page carries well before they are inactive and
+	 * accounts for the bytes their beans held
+	 */
+	@Test
+	public void orphanedConversationsAreDestroyed() throws Exception
+	{
+		WeldDeployment weld = new WeldDeployment(Counter.class);
+		ConversationReaper reaper = new ConversationReaper().setOrphanTimeout(50,
+			TimeUnit.MILLISECONDS);
+		try
+		{
+			CdiContainer container = start(weld, reaper);
+			Counter.destroyed = 0;
+
+			Page page = new StatefulPage();
+			String carried = begin(weld, container, page);
+			String orphaned = begin(weld, container, null);
+			int size = ConversationLimits.sizeOf(session, orphaned);
+			assertTrue(size > 0);
+
+			Thread.sleep(100);
+			reaper.reap();
+			assertEquals(1, Counter.destroyed);
+			assertEquals(1, reaper.getOrphanedConversations());
+			assertEquals(1, reaper.getReclaimedConversations());
+			assertEquals(size, reaper.getReclaimedBytes());
+			assertTrue(ConversationPassivation.getAttributes(session, orphaned).isEmpty());
+			assertFalse(ConversationPassivation.getAttributes(session, carried).isEmpty());
+		}
+		finally
+		{
+			reaper.stop();
+			weld.shutdown();
+		}
+	}
+
+	/**
+	 * Idle conversations are moved to the store once and restored on activation
+	 */
+	@Test
+	public void passivatesIdle() throws Exception
+	{
+		MappedConversationStore store = new MappedConversationStore(File.createTempFile(
+			"conversations", ".map"), 1000);
+		try
+		{
+			ConversationPassivation passivation = new ConversationPassivation(store,
+				tester.getApplication().getApplicationKey());
+			ConversationLimits limits = new ConversationLimits(0, 0);
+			ConversationReaper reaper = new ConversationReaper();
+			request(limits, null, "1", 0);
+
+			long now = System.currentTimeMillis() + 1;
+			assertEquals(Collections.emptyMap(), limits.reap(session, Long.MIN_VALUE,
+				Long.MIN_VALUE, now, passivation, reaper));
+			limits.reap(session, Long.MIN_VALUE, Long.MIN_VALUE, now, passivation, reaper);
+			assertNull(session.getAttribute(bean("1")));
+			assertEquals(1, reaper.getPassivatedConversations());
+			assertEquals(1, store.getCount());
+
+			limits.activated(session, "1");
+			passivation.restore(session, "1");
+			assertEquals("1", session.getAttribute(bean("1")));
+			assertEquals(0, store.getCount());
+		}
+		finally
+		{
+			store.destroy();
+		}
+	}
+
+	/**
+	 * The reaper moves idle conversations to the store on its own thread, without waiting for a
+	 * request of the session
+	 */
+	@Test
+	public void passivatesIdleInTheBackground() throws Exception
+	{
+		WeldDeployment weld = new WeldDeployment(Counter.class);
+		MappedConversationStore store = new MappedConversationStore(File.createTempFile(
+			"conversations", ".map"), 10000);
+		ConversationReaper reaper = new ConversationReaper().setIdleTimeout(50,
+			TimeUnit.MILLISECONDS).setOrphanTimeout(0, TimeUnit.MILLISECONDS);
+		try
+		{
+			CdiContainer container = start(weld, reaper);
+			container.setConversationStore(store, tester.getApplication().getApplicationKey());
+
+			String cid = begin(weld, container, null);
+			reaper.reap();
+			assertEquals(0, store.getCount());
+
+			Thread.sleep(100);
+			reaper.reap();
+			assertEquals(1, store.getCount());
+			assertEquals(1, reaper.getPassivatedConversations());
+			assertTrue(ConversationPassivation.getAttributes(session, cid).isEmpty());
+		}
+		finally
+		{
+			reaper.stop();
+			store.destroy();
+			weld.shutdown();
+		}
+	}
+
+	/**
+	 * Conversations are moved to the store when the application is destroyed, and the sessions
+	 * the servlet container restores are handed to the reaper once the application has started
+	 * again
+	 */
+	@Test
+	public void snapshotsAndRestoresConversations() throws Exception
+	{
+		WeldDeployment weld = new WeldDeployment(Counter.class);
+		MappedConversationStore store = new MappedConversationStore(File.createTempFile(
+			"conversations", ".map"), 10000);
+		ConversationReaper reaper = new ConversationReaper().setIdleTimeout(1, TimeUnit.HOURS);
+		try
+		{
+			CdiContainer container = start(weld, reaper);
+			String applicationKey = tester.getApplication().getApplicationKey();
+			container.setConversationStore(store, applicationKey);
+
+			String cid = begin(weld, container, null);
+			assertEquals(0, store.getCount());
+
+			reaper.snapshot();
+			reaper.stop();
+			assertEquals(1, store.getCount());
+			assertTrue(ConversationPassivation.getAttributes(session, cid).isEmpty());
+			assertEquals(0, reaper.getSessions());
+
+			// the servlet container restores the session before the application is configured
+			HttpSessionActivationListener key = (HttpSessionActivationListener)session.getAttribute(
+				ConversationPassivation.KEY_ATTRIBUTE_PREFIX + applicationKey);
+			key.sessionDidActivate(new HttpSessionEvent(session));
+			new CdiShutdownCleaner(container, false).onAfterInitialized(tester.getApplication());
+			assertEquals(1, reaper.getSessions());
+			assertEquals(1, store.getCount());
+		}
+		finally
+		{
+			reaper.stop();
+			store.destroy();
+			weld.shutdown();
+		}
+	}
+
+	private List<String> request(ConversationLimits limits, String activated, String cid,
+		int size)
+	{
+		if (activated != null)
+		{
+			limits.activated(session, activated);
+		}
+		if (cid != null)
+		{
+			session.setAttribute(bean(cid), cid);
+		}
+		return limits.deactivated(session, activated, cid, size);
+	}
+
+	private Map<String, Boolean> reap(ConversationLimits limits, long inactiveBefore,
+		long orphanedBefore)
+	{
+		return limits.reap(session, inactiveBefore, orphanedBefore, Long.MIN_VALUE, null,
+			new ConversationReaper());
+	}
+
+	/**
+	 * Creates a container whose conversations are reaped by the reaper, checking sessions only
+	 * when the test asks it to
+	 */
+	private static CdiContainer start(WeldDeployment weld, ConversationReaper reaper)
+	{
+		CdiContainer container = new CdiContainer(weld.getManager(), new NonContextualManager(
+			weld.getManager()));
+		container.setConversationLimits(new ConversationLimits(0, 0));
+		container.setConversationReaper(reaper);
+		reaper.setPeriod(1, TimeUnit.HOURS).start(container);
+		return container;
+	}
+
+	/**
+	 * Starts a long-running conversation that holds a {@link Counter}, the way a request would
+	 * 
+	 * @param page
+	 *            page the request is handled by, carries the conversation, or {@code null}
+	 * @return id of the conversation
+	 */
+	private String begin(WeldDeployment weld, CdiContainer container, Page page)
+	{
+		HttpServletRequest request = new MockHttpServletRequest(tester.getApplication(),
+			tester.getHttpSession(), tester.getServletContext());
+		RequestCycle cycle = tester.getApplication().createRequestCycle(
+			new ServletWebRequest(request, ""), new MockWebResponse());
+		// the page that begins a conversation has bound the wicket session
+		request.getSession(true);
+		weld.beginRequest(request);
+		try
+		{
+			container.activateConversationalContext(cycle, null);
+			Conversation conversation = weld.getReference(Conversation.class);
+			conversation.begin();
+			weld.getReference(Counter.class).touch();
+			String cid = conversation.getId();
+			if (page != null)
+			{
+				page.setMetaData(ConversationIdMetaKey.INSTANCE, cid);
+			}
+			container.deactivateConversationalContext(cycle, page);
+			return cid;
+		}
+		finally
+		{
+			weld.endRequest(request);
+		}
+	}
+
+	private static String bean(String cid)
+	{
+		return ConversationPassivation.ATTRIBUTE_PREFIX + cid + "#bean";
+	}
+
+	public static class StatefulPage extends WebPage
+	{
+		private static final long serialVersionUID = 1L;
+
+		public StatefulPage()
+		{
+			setStatelessHint(false);
+		}
+	}
+
+	@ConversationScoped
+	static class Counter implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		static int destroyed;
+
+		public void touch()
+		{
+		}
+
+		@PreDestroy
+		void destroy()
+		{
+			destroyed++;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.enterprise.context.Conversation;
+import javax.enterprise.context.ConversationScoped;
+import javax.inject.Inject;
+import javax.servlet.http.Cookie;
+
+import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.markup.html.IHeaderResponse;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.mock.MockHomePage;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.handler.BookmarkablePageRequestHandler;
+import org.apache.wicket.request.handler.PageProvider;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.handler.resource.ResourceRequestHandler;
+import org.apache.wicket.request.resource.ByteArrayResource;
+import org.apache.wicket.request.resource.ContextRelativeResource;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.PackageResourceReference;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.SharedResourceReference;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ConversationPropagator}
+ *
+ * @author igor
+ */
+public class ConversationPropagatorTest
+{
+	private MockBeanManager mock;
+	private WicketTester tester;
+	private ConversationPropagator propagator;
+
+	@Before
+	public void before()
+	{
+		mock = new MockBeanManager();
+		tester = new WicketTester(new MockApplication());
+		CdiContainer container = new CdiContainer(mock.getManager(), new NonContextualManager(
+			mock.getManager()));
+		propagator = new ConversationPropagator(tester.getApplication(), container,
+			ConversationPropagation.ALL);
+	}
+
+	@After
+	public void after()
+	{
+		tester.destroy();
+		NonContextual.undeploy(mock.getManager());
+	}
+
+	/**
+	 * Urls of cacheable resources are the same in every conversation, urls of dynamic resources
+	 * carry the conversation id
+	 */
+	@Test
+	public void cacheableResourceUrlsDoNotCarryCid()
+	{
+		IRequestHandler[] cacheable = new IRequestHandler[] {
+				new ResourceReferenceRequestHandler(new PackageResourceReference(
+					ConversationPropagatorTest.class, "test.css")),
+				new ResourceReferenceRequestHandler(new SharedResourceReference("shared")),
+				new ResourceRequestHandler(new ContextRelativeResource("/logo.png"), null) };
+		IRequestHandler dynamic = new ResourceReferenceRequestHandler(new ResourceReference(
+			"dynamic")
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public IResource getResource()
+			{
+				return new ByteArrayResource("text/plain", new byte[0]);
+			}
+		});
+
+		RequestCycle cycle = tester.getRequestCycle();
+		cycle.setMetaData(ConversationPropagator.CONVERSATION_STARTED_KEY, true);
+
+		Set<String> cacheableUrls = new HashSet<String>();
+		Set<String> dynamicUrls = new HashSet<String>();
+		for (int cid = 0; cid < 5; cid++)
+		{
+			propagator.conversation_ = conversation(String.valueOf(cid));
+			for (int i = 0; i < cacheable.length; i++)
+			{
+				cacheableUrls.add(map(cycle, cacheable[i], "resource" + i));
+			}
+			dynamicUrls.add(map(cycle, dynamic, "dynamic"));
+		}
+
+		assertEquals(cacheable.length, cacheableUrls.size());
+		assertEquals(5, dynamicUrls.size());
+	}
+
+	/**
+	 * In cookie mode the conversation id is written to a cookie instead of urls
+	 */
+	@Test
+	public void cookieModeWritesCookie()
+	{
+		propagator = new ConversationPropagator(tester.getApplication(), new CdiContainer(
+			mock.getManager(), new NonContextualManager(mock.getManager())),
+			ConversationPropagation.COOKIE);
+		propagator.conversation_ = conversation("7");
+		RequestCycle cycle = tester.getRequestCycle();
+		cycle.setMetaData(ConversationPropagator.CONVERSATION_STARTED_KEY, true);
+
+		IRequestHandler page = new BookmarkablePageRequestHandler(new PageProvider(
+			MockHomePage.class));
+		propagator.onRequestHandlerScheduled(cycle, page);
+
+		assertEquals("page", map(cycle, page, "page"));
+		Cookie cookie = tester.getResponse().getCookies().get(0);
+		assertEquals(ConversationPropagator.CID, cookie.getName());
+		assertEquals("7", cookie.getValue());
+	}
+
+	/**
+	 * In cookie mode the conversation id is read from the cookie if there is no header
+	 */
+	@Test
+	public void cookieModeReadsCookie()
+	{
+		tester.getRequest().addCookie(new Cookie(ConversationPropagator.CID, "3"));
+
+		assertEquals("3", resolveExpired());
+	}
+
+	/**
+	 * The header sent by the page of a tab takes precedence over the cookie shared by all tabs
+	 */
+	@Test
+	public void cookieModeReadsHeaderBeforeCookie()
+	{
+		tester.getRequest().addCookie(new Cookie(ConversationPropagator.CID, "3"));
+		tester.getRequest().addHeader(ConversationPropagator.CID_HEADER, "5");
+
+		assertEquals("5", resolveExpired());
+	}
+
+	/**
+	 * A request of a tab whose conversation is sent in the header does not overwrite the cookie
+	 * written by another tab
+	 */
+	@Test
+	public void cookieModeKeepsCookieOfOtherTab()
+	{
+		propagator = cookiePropagator(conversation("7"));
+		tester.getRequest().addCookie(new Cookie(ConversationPropagator.CID, "3"));
+		tester.getRequest().addHeader(ConversationPropagator.CID_HEADER, "7");
+
+		propagator.onRequestHandlerScheduled(tester.getRequestCycle(),
+			new BookmarkablePageRequestHandler(new PageProvider(MockHomePage.class)));
+
+		assertTrue(tester.getResponse().getCookies().isEmpty());
+	}
+
+	/**
+	 * The cookie is cleared once its conversation has ended
+	 */
+	@Test
+	public void cookieModeClearsCookieOfEndedConversation()
+	{
+		propagator = cookiePropagator(conversation("7", true));
+		tester.getRequest().addCookie(new Cookie(ConversationPropagator.CID, "7"));
+
+		propagator.onRequestHandlerScheduled(tester.getRequestCycle(),
+			new BookmarkablePageRequestHandler(new PageProvider(MockHomePage.class)));
+
+		Cookie cookie = tester.getResponse().getCookies().get(0);
+		assertEquals(ConversationPropagator.CID, cookie.getName());
+		assertEquals(0, cookie.getMaxAge());
+	}
+
+	/**
+	 * Pages remember their conversation and Ajax responses update it
+	 */
+	@Test
+	public void cookieModeSendsConversationOfPage()
+	{
+		propagator = cookiePropagator(conversation("7"));
+		final List<String> scripts = new ArrayList<String>();
+		IHeaderResponse response = (IHeaderResponse)Proxy.newProxyInstance(
+			ConversationPropagatorTest.class.getClassLoader(),
+			new Class<?>[] { IHeaderResponse.class }, new InvocationHandler()
+			{
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+				{
+					if ("renderOnDomReadyJavaScript".equals(method.getName()))
+					{
+						scripts.add((String)args[0]);
+					}
+					return null;
+				}
+			});
+		propagator.renderHead(response);
+		assertEquals(Arrays.asList("Wicket.Conversation.set('7');"), scripts);
+
+		propagator.conversation_ = conversation("7", true);
+		AjaxRequestTarget target = new AjaxRequestTarget(new MockHomePage());
+		propagator.onRequestHandlerScheduled(tester.getRequestCycle(), target);
+		target.respond(tester.getRequestCycle());
+		assertTrue(tester.getResponse().getDocument().contains("Wicket.Conversation.set(null);"));
+	}
+
+	/**
+	 * On demand the context of a plain page is activated once it creates a conversational component
+	 */
+	@Test
+	public void onDemandActivatesForConversationalComponent()
+	{
+		mock.setScope(ConversationScoped.class);
+		final List<String> activated = new ArrayList<String>();
+		propagator = new ConversationPropagator(tester.getApplication(), new CdiContainer(
+			mock.getManager(), new NonContextualManager(mock.getManager()))
+		{
+			@Override
+			public void activateConversationalContext(RequestCycle cycle, String cid)
+			{
+				activated.add(cid);
+			}
+		}, ConversationPropagation.ALL).setActivation(ConversationActivation.ON_DEMAND);
+		tester.getApplication().getComponentInstantiationListeners().add(propagator);
+
+		propagator.onRequestHandlerResolved(tester.getRequestCycle(),
+			new BookmarkablePageRequestHandler(new PageProvider(MockHomePage.class)));
+		new WebMarkupContainer("plain");
+		assertTrue(activated.isEmpty());
+
+		new ConversationalComponent("conversational");
+		new ConversationalComponent("other");
+		assertEquals(Arrays.asList((String)null), activated);
+	}
+
+	/**
+	 * Resolves a bookmarkable page while conversation {@code 7} is active in cookie mode
+	 * 
+	 * @return id of the conversation the request asked for
+	 */
+	private String resolveExpired()
+	{
+		propagator = cookiePropagator(conversation("7"));
+		try
+		{
+			propagator.onRequestHandlerResolved(tester.getRequestCycle(),
+				new BookmarkablePageRequestHandler(new PageProvider(MockHomePage.class)));
+			fail();
+			return null;
+		}
+		catch (ConversationExpiredException e)
+		{
+			return e.getCid();
+		}
+	}
+
+	private ConversationPropagator cookiePropagator(Conversation conversation)
+	{
+		ConversationPropagator result = new ConversationPropagator(tester.getApplication(),
+			new CdiContainer(mock.getManager(), new NonContextualManager(mock.getManager())),
+			ConversationPropagation.COOKIE);
+		result.conversation_ = conversation;
+		tester.getRequestCycle().setMetaData(ConversationPropagator.CONVERSATION_STARTED_KEY, true);
+		return result;
+	}
+
+	private String map(RequestCycle cycle, IRequestHandler handler, String path)
+	{
+		Url url = Url.parse(path);
+		propagator.onUrlMapped(cycle, handler, url);
+		return url.toString();
+	}
+
+	private static class ConversationalComponent extends WebMarkupContainer
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		Object bean;
+
+		public ConversationalComponent(String id)
+		{
+			super(id);
+		}
+	}
+
+	private static Conversation conversation(String id)
+	{
+		return conversation(id, false);
+	}
+
+	private static Conversation conversation(final String id, final boolean ended)
+	{
+		return (Conversation)Proxy.newProxyInstance(ConversationPropagatorTest.class.getClassLoader(),
+			new Class<?>[] { Conversation.class }, new InvocationHandler()
+			{
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+				{
+					if ("getId".equals(method.getName()))
+					{
+						return id;
+					}
+					else if ("isTransient".equals(method.getName()))
+					{
+						return ended;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.basic.Label;
+import org.junit.Test;
+
+/**
+ * Tests {@link InjectionFilter}
+ *
+ * @author igor
+ */
+public class InjectionFilterTest
+{
+	/**
+	 * The default filter injects every class
+	 */
+	@Test
+	public void defaultAcceptsEverything()
+	{
+		InjectionFilter filter = InjectionFilter.newDefault();
+		assertTrue(filter.accept(Label.class));
+		assertTrue(filter.accept(Container.class));
+		assertTrue(filter.accept(Custom.class));
+	}
+
+	/**
+	 * Wicket's own classes are excluded on request, application subclasses are not
+	 */
+	@Test
+	public void excludeWicketClasses()
+	{
+		InjectionFilter filter = InjectionFilter.newDefault().excludeWicket();
+		assertFalse(filter.accept(Label.class));
+		assertTrue(filter.accept(Container.class));
+		assertTrue(filter.accept(Custom.class));
+	}
+
+	/**
+	 * Exclude rules win over include rules and package rules only match whole package names
+	 */
+	@Test
+	public void rules()
+	{
+		InjectionFilter filter = new InjectionFilter().includePackages("net.ftlines")
+			.excludeAnnotation(NotInjected.class)
+			.excludeTypes(WebMarkupContainer.class);
+
+		assertTrue(filter.accept(Custom.class));
+		assertFalse(filter.accept(Marked.class));
+		assertFalse(filter.accept(Container.class));
+		assertFalse(filter.accept(ArrayList.class));
+		assertFalse(new InjectionFilter().includePackages("net.ftline").accept(Custom.class));
+	}
+
+	/**
+	 * Adding a rule discards cached decisions
+	 */
+	@Test
+	public void addingRuleDiscardsDecisions()
+	{
+		InjectionFilter filter = new InjectionFilter();
+		assertTrue(filter.accept(Custom.class));
+		filter.excludeTypes(Custom.class);
+		assertFalse(filter.accept(Custom.class));
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	static @interface NotInjected {
+	}
+
+	static class Custom
+	{
+	}
+
+	@NotInjected
+	static class Marked
+	{
+	}
+
+	static class Container extends WebMarkupContainer
+	{
+		private static final long serialVersionUID = 1L;
+
+		public Container(String id)
+		{
+			super(id);
+		}
+	}
+}
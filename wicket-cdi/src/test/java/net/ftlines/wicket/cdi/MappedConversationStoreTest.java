@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.protocol.http.mock.MockHttpSession;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MappedConversationStore} and {@link ConversationPassivation}
+ *
+ * @author igor
+ */
+public class MappedConversationStoreTest
+{
+	private MappedConversationStore store;
+
+	@Before
+	public void before() throws Exception
+	{
+		store = new MappedConversationStore(File.createTempFile("conversations", ".map"), 1000);
+	}
+
+	@After
+	public void after()
+	{
+		store.destroy();
+	}
+
+	/**
+	 * Stored state is returned once and removed by loading it
+	 */
+	@Test
+	public void storeAndLoad()
+	{
+		assertTrue(store.store("s1", "1", bytes(100, 1)));
+		assertTrue(store.store("s1", "2", bytes(200, 2)));
+		assertEquals(2, store.getCount());
+		assertEquals(300, store.getUsed());
+
+		assertArrayEquals(bytes(100, 1), store.load("s1", "1"));
+		assertNull(store.load("s1", "1"));
+		assertEquals(200, store.getUsed());
+
+		store.remove("s1");
+		assertNull(store.load("s1", "2"));
+		assertEquals(0, store.getCount());
+	}
+
+	/**
+	 * Freed space is reclaimed by compaction, state that does not fit is rejected
+	 */
+	@Test
+	public void compactsWhenFull()
+	{
+		for (int i = 0; i < 10; i++)
+		{
+			assertTrue(store.store("s" + i, "1", bytes(100, i)));
+		}
+		store.load("s1", "1");
+		store.load("s5", "1");
+
+		assertTrue(store.store("s10", "1", bytes(200, 10)));
+		assertFalse(store.store("s11", "1", bytes(1, 11)));
+
+		assertArrayEquals(bytes(100, 9), store.load("s9", "1"));
+		assertArrayEquals(bytes(200, 10), store.load("s10", "1"));
+	}
+
+	/**
+	 * A persistent store carries its conversations over a restart
+	 */
+	@Test
+	public void persistentStoreSurvivesRestart() throws Exception
+	{
+		File file = File.createTempFile("conversations", ".map");
+		MappedConversationStore persistent = new MappedConversationStore(file, 1000, true);
+		try
+		{
+			assertTrue(persistent.store("s1", "1", bytes(100, 1)));
+			assertTrue(persistent.store("s1", "2", bytes(200, 2)));
+			persistent.load("s1", "1");
+			persistent.destroy();
+			assertTrue(file.exists());
+
+			persistent = new MappedConversationStore(file, 1000, true);
+			assertEquals(1, persistent.getCount());
+			assertArrayEquals(bytes(200, 2), persistent.load("s1", "2"));
+			assertTrue(persistent.store("s2", "1", bytes(300, 3)));
+		}
+		finally
+		{
+			persistent.destroy();
+			new MappedConversationStore(file, 1000).destroy();
+			new File(file.getPath() + ".index").delete();
+		}
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * Conversation beans are moved out of the session and back
+	 */
+	@Test
+	public void passivatesSessionAttributes()
+	{
+		WicketTester tester = new WicketTester(new MockApplication());
+		try
+		{
+			HttpSession session = tester.getHttpSession();
+			String bean = ConversationPassivation.ATTRIBUTE_PREFIX + "1#bean";
+			String other = ConversationPassivation.ATTRIBUTE_PREFIX + "10#bean";
+			session.setAttribute(bean, "value");
+			session.setAttribute(other, "other");
+
+			ConversationPassivation passivation = new ConversationPassivation(store,
+				tester.getApplication().getApplicationKey());
+			passivation.passivate(session, "1");
+			assertNull(session.getAttribute(bean));
+			assertEquals("other", session.getAttribute(other));
+
+			passivation.restore(session, "1");
+			assertEquals("value", session.getAttribute(bean));
+			assertEquals(0, store.getCount());
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	/**
+	 * Conversations are stored under a key kept in the session, so they are found again when the
+	 * session id changes, and are removed from the store when the session is unbound
+	 */
+	@Test
+	public void storesConversationsUnderSessionKey()
+	{
+		WicketTester tester = new WicketTester(new MockApplication());
+		try
+		{
+			MockBeanManager mock = new MockBeanManager();
+			CdiContainer container = new CdiContainer(mock.getManager(), new NonContextualManager(
+				mock.getManager()));
+			String applicationKey = tester.getApplication().getApplicationKey();
+			container.bind(tester.getApplication());
+			container.setConversationStore(store, applicationKey);
+			ConversationPassivation passivation = new ConversationPassivation(store, applicationKey);
+
+			HttpSession session = tester.getHttpSession();
+			String bean = ConversationPassivation.ATTRIBUTE_PREFIX + "1#bean";
+			session.setAttribute(bean, "value");
+			passivation.passivate(session, "1");
+			assertNull(store.load(session.getId(), "1"));
+
+			// the container renews the session id
+			String name = ConversationPassivation.KEY_ATTRIBUTE_PREFIX + applicationKey;
+			HttpSession renewed = new MockHttpSession(tester.getServletContext());
+			renewed.setAttribute(name, session.getAttribute(name));
+			passivation.restore(renewed, "1");
+			assertEquals("value", renewed.getAttribute(bean));
+
+			passivation.passivate(renewed, "1");
+			assertEquals(1, store.getCount());
+			((HttpSessionBindingListener)renewed.getAttribute(name)).valueUnbound(null);
+			assertEquals(0, store.getCount());
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	private static byte[] bytes(int length, int value)
+	{
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte)value);
+		return bytes;
+	}
+}
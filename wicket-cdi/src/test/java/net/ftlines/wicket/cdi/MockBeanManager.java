@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.enterprise.context.Dependent;
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.InjectionPoint;
+import javax.enterprise.inject.spi.InjectionTarget;
+import javax.inject.Inject;
+
+/**
+ * A minimal {@link BeanManager} stand-in that understands just enough of the SPI to drive
+ * {@link NonContextual}: injection targets report an injection point for every {@link Inject}
+ * field and method in the class hierarchy, every injection point resolves to a bean of the
+ * configured scope whose reference is {@link #REFERENCE}, and every call is counted so tests can assert on the work done.
+ *
+ * @author igor
+ */
+class MockBeanManager implements InvocationHandler
+{
+	/** reference returned for every injection point */
+	public static final String REFERENCE = "reference";
+
+	private final Map<String, Integer> calls = new HashMap<String, Integer>();
+
+	private Bean<?> bean = stub(Bean.class, "getScope", Dependent.class);
+
+	private final BeanManager manager = (BeanManager)Proxy.newProxyInstance(
+		MockBeanManager.class.getClassLoader(), new Class<?>[] { BeanManager.class }, this);
+
+	/**
+	 * @return the mocked bean manager
+	 */
+	public BeanManager getManager()
+	{
+		return manager;
+	}
+
+	/**
+	 * Sets the scope of the bean every injection point resolves to
+	 * 
+	 * @param scope
+	 */
+	public void setScope(Class<? extends Annotation> scope)
+	{
+		bean = stub(Bean.class, "getScope", scope);
+	}
+
+	/**
+	 * @param method
+	 *            name of a {@link BeanManager} or {@link InjectionTarget} method
+	 * @return number of times the method has been called
+	 */
+	public synchronized int count(String method)
+	{
+		Integer count = calls.get(method);
+		return count == null ? 0 : count;
+	}
+
+	private synchronized void called(String method)
+	{
+		calls.put(method, count(method) + 1);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		String name = method.getName();
+		if ("hashCode".equals(name))
+		{
+			return System.identityHashCode(proxy);
+		}
+		else if ("equals".equals(name))
+		{
+			return proxy == args[0];
+		}
+		else if ("toString".equals(name))
+		{
+			return "MockBeanManager";
+		}
+
+		called(name);
+
+		if ("createAnnotatedType".equals(name))
+		{
+			return stub(AnnotatedType.class, "getJavaClass", args[0]);
+		}
+		else if ("createInjectionTarget".equals(name))
+		{
+			return new MockInjectionTarget(((AnnotatedType<?>)args[0]).getJavaClass());
+		}
+		else if ("createCreationalContext".equals(name))
+		{
+			return stub(CreationalContext.class, null, null);
+		}
+		else if ("getInjectableReference".equals(name) || "getReference".equals(name))
+		{
+			return REFERENCE;
+		}
+		else if ("getBeans".equals(name))
+		{
+			return Collections.singleton(bean);
+		}
+		else if ("validate".equals(name))
+		{
+			return null;
+		}
+		else if ("resolve".equals(name))
+		{
+			return ((Set<?>)args[0]).iterator().next();
+		}
+		else if ("isNormalScope".equals(name))
+		{
+			return !Dependent.class.equals(args[0]);
+		}
+		throw new UnsupportedOperationException(name);
+	}
+
+	private static <T> T stub(Class<T> type, final String method, final Object result)
+	{
+		return type.cast(Proxy.newProxyInstance(MockBeanManager.class.getClassLoader(),
+			new Class<?>[] { type }, new InvocationHandler()
+			{
+				@Override
+				public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+				{
+					if ("hashCode".equals(m.getName()))
+					{
+						return System.identityHashCode(proxy);
+					}
+					else if ("equals".equals(m.getName()))
+					{
+						return proxy == args[0];
+					}
+					if (m.getName().equals(method))
+					{
+						return result;
+					}
+					else if (Set.class.equals(m.getReturnType()))
+					{
+						return Collections.emptySet();
+					}
+					return boolean.class.equals(m.getReturnType()) ? false : null;
+				}
+			}));
+	}
+
+	private class MockInjectionTarget implements InjectionTarget<Object>
+	{
+		private final Set<InjectionPoint> injectionPoints;
+
+		public MockInjectionTarget(Class<?> clazz)
+		{
+			Set<InjectionPoint> points = new HashSet<InjectionPoint>();
+			for (Class<?> c = clazz; c != null; c = c.getSuperclass())
+			{
+				for (Field field : c.getDeclaredFields())
+				{
+					if (field.isAnnotationPresent(Inject.class))
+					{
+						points.add(stub(InjectionPoint.class, "getMember", field));
+					}
+				}
+				for (Method method : c.getDeclaredMethods())
+				{
+					// like the container, one injection point per initializer parameter
+					if (method.isAnnotationPresent(Inject.class))
+					{
+						for (int i = 0; i < method.getParameterTypes().length; i++)
+						{
+							points.add(stub(InjectionPoint.class, "getMember", method));
+						}
+					}
+				}
+			}
+			injectionPoints = Collections.unmodifiableSet(points);
+		}
+
+		@Override
+		public void inject(Object instance, CreationalContext<Object> ctx)
+		{
+			called("inject");
+		}
+
+		@Override
+		public void postConstruct(Object instance)
+		{
+			called("postConstruct");
+		}
+
+		@Override
+		public void preDestroy(Object instance)
+		{
+			called("preDestroy");
+		}
+
+		@Override
+		public Object produce(CreationalContext<Object> ctx)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void dispose(Object instance)
+		{
+		}
+
+		@Override
+		public Set<InjectionPoint> getInjectionPoints()
+		{
+			return injectionPoints;
+		}
+	}
+}
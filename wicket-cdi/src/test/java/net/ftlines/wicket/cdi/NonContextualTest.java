@@ -0,0 +1,608 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.ConversationScoped;
+import javax.inject.Inject;
+
+import org.apache.wicket.application.DefaultClassResolver;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.mock.MockHomePage;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link NonContextual} and its cache
+ *
+ * @author igor
+ */
+public class NonContextualTest
+{
+	private MockBeanManager mock;
+	private NonContextualManager manager;
+
+	@Before
+	public void before()
+	{
+		mock = new MockBeanManager();
+		manager = new NonContextualManager(mock.getManager());
+	}
+
+	@After
+	public void after()
+	{
+		NonContextual.undeploy(mock.getManager());
+	}
+
+	/**
+	 * Classes without injection points must not allocate a creational context or call into the
+	 * injection target once their metadata is cached
+	 */
+	@Test
+	public void injectionFreeClassesDoNotAllocate()
+	{
+		for (int i = 0; i < 1000; i++)
+		{
+			manager.inject(new Plain());
+		}
+
+		assertFalse(NonContextual.of(Plain.class, mock.getManager()).isInjecting());
+		assertEquals(1, mock.count("createInjectionTarget"));
+		assertEquals(0, mock.count("createCreationalContext"));
+		assertEquals(0, mock.count("inject"));
+	}
+
+	/**
+	 * Classes with injection points are still injected on every instantiation
+	 */
+	@Test
+	public void injectingClassesAreInjected()
+	{
+		for (int i = 0; i < 10; i++)
+		{
+			manager.inject(new Injected());
+		}
+
+		assertTrue(NonContextual.of(Injected.class, mock.getManager()).isInjecting());
+		assertEquals(1, mock.count("createInjectionTarget"));
+		assertEquals(10, mock.count("createCreationalContext"));
+		assertEquals(10, mock.count("inject"));
+	}
+
+	/**
+	 * Initializer methods without parameters have no injection points but must still be called
+	 */
+	@Test
+	public void parameterlessInitializersAreCalled()
+	{
+		manager.inject(new ParameterlessInitialized());
+
+		assertTrue(NonContextual.of(ParameterlessInitialized.class, mock.getManager())
+			.isInjecting());
+		assertEquals(1, mock.count("inject"));
+	}
+
+	/**
+	 * {@link javax.annotation.PostConstruct} callbacks still run for injection-free classes
+	 */
+	@Test
+	public void postConstructRunsWithoutInjectionPoints()
+	{
+		manager.postConstruct(new Plain());
+
+		assertEquals(0, mock.count("createCreationalContext"));
+		assertEquals(1, mock.count("postConstruct"));
+	}
+
+	/**
+	 * Concurrent first hits must build the injection target exactly once, and undeploying must
+	 * release it
+	 */
+	@Test
+	public void concurrentFirstHitsBuildOnce() throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					manager.inject(new Plain());
+					manager.inject(new Injected());
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(2, mock.count("createInjectionTarget"));
+
+		NonContextual.undeploy(mock.getManager());
+		manager.inject(new Plain());
+		assertEquals(3, mock.count("createInjectionTarget"));
+	}
+
+	/**
+	 * The field engine writes references into fields without going through the injection target
+	 */
+	@Test
+	public void fieldEngineWritesFields()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+
+		Injected injected = new Injected();
+		manager.inject(injected);
+
+		assertEquals(MockBeanManager.REFERENCE, injected.service);
+		assertEquals(0, mock.count("inject"));
+	}
+
+	/**
+	 * The field engine resolves normal scoped injection points once and shares the client proxy,
+	 * without allocating creational contexts for following instances
+	 */
+	@Test
+	public void fieldEngineSharesNormalScopedReferences()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+		mock.setScope(ApplicationScoped.class);
+
+		for (int i = 0; i < 10; i++)
+		{
+			Injected injected = new Injected();
+			manager.inject(injected);
+			assertEquals(MockBeanManager.REFERENCE, injected.service);
+		}
+
+		assertEquals(1, mock.count("resolve"));
+		assertEquals(1, mock.count("getInjectableReference"));
+		assertEquals(1, mock.count("createCreationalContext"));
+	}
+
+	/**
+	 * Dependent injection points are resolved for every instance
+	 */
+	@Test
+	public void fieldEngineResolvesDependentsPerInstance()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+
+		for (int i = 0; i < 10; i++)
+		{
+			manager.inject(new Injected());
+		}
+
+		assertEquals(1, mock.count("resolve"));
+		assertEquals(10, mock.count("getInjectableReference"));
+	}
+
+	/**
+	 * {@link Lazy} fields receive a proxy without resolving the dependent bean, even when the
+	 * injection target engine is selected
+	 */
+	@Test
+	public void lazyFieldsAreNotResolved()
+	{
+		LazyInjected injected = new LazyInjected();
+		manager.inject(injected);
+
+		assertTrue(Proxy.isProxyClass(injected.task.getClass()));
+		assertSame(MockBeanManager.REFERENCE, injected.service);
+		assertEquals(1, mock.count("getInjectableReference"));
+		assertEquals(0, mock.count("inject"));
+	}
+
+	/**
+	 * Classes with initializer methods fall back to the injection target
+	 */
+	@Test
+	public void fieldEngineFallsBackForInitializers()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+
+		Initialized initialized = new Initialized();
+		manager.inject(initialized);
+
+		assertNull(initialized.service);
+		assertEquals(1, mock.count("inject"));
+	}
+
+	/**
+	 * Initializer methods without parameters have no injection points, the field engine must
+	 * still fall back to the injection target so they are called
+	 */
+	@Test
+	public void fieldEngineFallsBackForParameterlessInitializers()
+	{
+		manager.setInjectionEngine(InjectionEngine.FIELD);
+
+		InjectedAndInitialized injected = new InjectedAndInitialized();
+		manager.inject(injected);
+
+		assertNull(injected.service);
+		assertEquals(1, mock.count("inject"));
+	}
+
+	/**
+	 * Contexts holding dependent beans are tracked per instance and released when the instance is
+	 * destroyed
+	 */
+	@Test
+	public void dependentsAreReleasedOnPreDestroy()
+	{
+		DependentInstances dependents = NonContextual.getDependentInstances(mock.getManager());
+
+		Injected first = new Injected();
+		Injected second = new Injected();
+		manager.inject(first);
+		manager.inject(second);
+
+		assertEquals(2, dependents.getOutstanding());
+
+		manager.preDestroy(first);
+
+		assertEquals(1, dependents.getOutstanding());
+		assertEquals(2, dependents.getTracked());
+		assertEquals(1, dependents.getReleased());
+	}
+
+	/**
+	 * Dependents of components on a stored page outlive the request and are released with the
+	 * session, those of components without a page are released with the request
+	 */
+	@Test
+	public void componentDependentsAreReleasedWithTheirPage()
+	{
+		WicketTester tester = new WicketTester();
+		try
+		{
+			DependentInstances dependents = NonContextual.getDependentInstances(mock.getManager());
+			tester.getSession().bind();
+
+			MockHomePage page = new MockHomePage();
+			page.setStatelessHint(false);
+			InjectedComponent component = new InjectedComponent("component");
+			page.add(component);
+			manager.inject(component);
+			manager.inject(new InjectedComponent("removed"));
+			assertEquals(2, dependents.getOutstanding());
+
+			dependents.detach(tester.getRequestCycle(), null);
+			assertEquals(1, dependents.getReleased());
+
+			dependents.releaseSession(tester.getSession().getId());
+			assertEquals(0, dependents.getOutstanding());
+			assertEquals(2, dependents.getReleased());
+		}
+		finally
+		{
+			tester.destroy();
+		}
+	}
+
+	/**
+	 * Instances injected with normal scoped beans only are not tracked
+	 */
+	@Test
+	public void normalScopedReferencesAreNotTracked()
+	{
+		mock.setScope(ApplicationScoped.class);
+
+		manager.inject(new Injected());
+
+		assertEquals(0, NonContextual.getDependentInstances(mock.getManager()).getOutstanding());
+	}
+
+	/**
+	 * Instances of a class injected with normal scoped beans only share the creational context and
+	 * the references of the batch, instances with dependents still get their own
+	 */
+	@Test
+	public void batchSharesCreationalContext()
+	{
+		NonContextual<Injected> nc = NonContextual.of(Injected.class, mock.getManager());
+		InjectionBatch batch = new InjectionBatch();
+
+		nc.inject(new Injected(), InjectionEngine.INJECTION_TARGET, batch);
+		assertEquals(1, NonContextual.getDependentInstances(mock.getManager()).getOutstanding());
+
+		NonContextual.undeploy(mock.getManager());
+		mock.setScope(ApplicationScoped.class);
+		nc = NonContextual.of(Injected.class, mock.getManager());
+		Injected first = new Injected();
+		// the mocked injection target leaves the field alone
+		first.service = MockBeanManager.REFERENCE;
+		nc.inject(first, InjectionEngine.INJECTION_TARGET, batch);
+		int created = mock.count("createCreationalContext");
+		int resolved = mock.count("getBeans");
+		for (int i = 0; i < 100; i++)
+		{
+			Injected injected = new Injected();
+			nc.inject(injected, InjectionEngine.INJECTION_TARGET, batch);
+			assertSame(MockBeanManager.REFERENCE, injected.service);
+		}
+
+		assertEquals(created, mock.count("createCreationalContext"));
+		assertEquals(resolved, mock.count("getBeans"));
+		assertEquals(2, mock.count("inject"));
+
+		// the next request starts a new batch
+		nc.inject(new Injected(), InjectionEngine.INJECTION_TARGET, new InjectionBatch());
+		assertEquals(3, mock.count("inject"));
+	}
+
+	/**
+	 * Classes are conversational iff they inject a conversation scoped bean
+	 */
+	@Test
+	public void conversationalClasses()
+	{
+		assertFalse(NonContextual.of(Injected.class, mock.getManager()).isConversational());
+
+		NonContextual.undeploy(mock.getManager());
+		mock.setScope(ConversationScoped.class);
+		assertTrue(NonContextual.of(Injected.class, mock.getManager()).isConversational());
+		assertFalse(NonContextual.of(Plain.class, mock.getManager()).isConversational());
+	}
+
+	/**
+	 * Indexed classes are validated up front, passive ones without building an injection target
+	 */
+	@Test
+	public void indexedClassesArePreloaded() throws Exception
+	{
+		String prefix = NonContextualTest.class.getName();
+		InjectionIndex index = InjectionIndex.parse(new StringReader("# index\n" + prefix +
+			"$Plain fields= initializers=false callbacks=false\n" + prefix + "$Injected fields=" +
+			prefix + "$Injected#service initializers=false callbacks=false\n"));
+
+		assertEquals(2, manager.preload(index, new DefaultClassResolver()));
+		assertEquals(1, mock.count("createInjectionTarget"));
+		assertEquals(1, mock.count("validate"));
+
+		manager.postConstruct(new Plain());
+		manager.postConstruct(new Injected());
+
+		assertEquals(1, mock.count("createInjectionTarget"));
+		assertEquals(1, mock.count("postConstruct"));
+	}
+
+	/**
+	 * Classes a stale index marks as passive are still injected
+	 */
+	@Test
+	public void stalePassiveEntriesAreInjected() throws Exception
+	{
+		InjectionIndex index = InjectionIndex.parse(new StringReader(
+			NonContextualTest.class.getName() +
+				"$Injected fields= initializers=false callbacks=false\n"));
+
+		assertEquals(1, manager.preload(index, new DefaultClassResolver()));
+		assertEquals(1, mock.count("createInjectionTarget"));
+
+		manager.inject(new Injected());
+		assertEquals(1, mock.count("inject"));
+	}
+
+	/**
+	 * Subclasses that declare no annotated members, such as anonymous classes, reuse the injection
+	 * target of their superclass
+	 */
+	@Test
+	public void subclassesShareTheirSuperclassTarget()
+	{
+		manager.inject(new Injected());
+		manager.inject(new Injected()
+		{
+		});
+		Injected anonymous = new Injected()
+		{
+			@Override
+			public String toString()
+			{
+				return "anonymous";
+			}
+		};
+		manager.inject(anonymous);
+
+		NonContextualCache cache = NonContextual.getCache(mock.getManager());
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getTargetCount());
+		assertEquals(1, mock.count("createInjectionTarget"));
+		assertSame(NonContextual.of(Injected.class, mock.getManager()),
+			NonContextual.of(anonymous.getClass(), mock.getManager()));
+	}
+
+	/**
+	 * Subclasses that add injection points or override annotated methods get their own target
+	 */
+	@Test
+	public void subclassesWithAnnotatedMembersDoNotShare()
+	{
+		manager.inject(new Injected());
+		manager.inject(new LazyInjected());
+		manager.inject(new Initialized());
+		manager.inject(new Reinitialized());
+
+		assertEquals(4, NonContextual.getCache(mock.getManager()).getTargetCount());
+	}
+
+	/**
+	 * A bounded cache evicts the least recently used classes and counts hits, misses and evictions
+	 */
+	@Test
+	public void boundedCacheEvictsLeastRecentlyUsed()
+	{
+		NonContextualCache cache = NonContextual.getCache(mock.getManager());
+		cache.setMaxSize(3);
+
+		manager.inject(new Injected());
+		manager.inject(new Plain());
+		manager.inject(new LazyInjected());
+		manager.inject(new Injected());
+		manager.inject(new Initialized());
+
+		CacheStatistics statistics = cache.getStatistics();
+		assertEquals(3, statistics.getSize());
+		assertEquals(1, statistics.getEvictions());
+		assertEquals(1, statistics.getHits());
+		assertEquals(4, statistics.getMisses());
+
+		// only the least recently used class was evicted and is built again
+		manager.inject(new Injected());
+		manager.inject(new Plain());
+		assertEquals(5, mock.count("createInjectionTarget"));
+	}
+
+	/**
+	 * Hits of an unbounded cache are only counted when statistics are enabled
+	 */
+	@Test
+	public void unboundedCacheCountsHitsOnlyWithStatistics()
+	{
+		NonContextualCache cache = NonContextual.getCache(mock.getManager());
+
+		manager.inject(new Injected());
+		manager.inject(new Injected());
+		assertEquals(0, cache.getStatistics().getHits());
+
+		cache.setStatisticsEnabled(true);
+		manager.inject(new Injected());
+		assertEquals(1, cache.getStatistics().getHits());
+	}
+
+	/**
+	 * Using a subclass that shares the helper of its superclass also marks the superclass as used
+	 */
+	@Test
+	public void sharedSuperclassIsNotEvictedBeforeSubclass()
+	{
+		NonContextualCache cache = NonContextual.getCache(mock.getManager());
+		cache.setMaxSize(4);
+
+		for (int i = 0; i < 2; i++)
+		{
+			manager.inject(new Injected()
+			{
+			});
+			if (i == 0)
+			{
+				manager.inject(new Plain());
+				manager.inject(new Initialized());
+			}
+		}
+		manager.inject(new LazyInjected());
+		assertEquals(4, mock.count("createInjectionTarget"));
+
+		// the least recently used class is the plain one, not the shared superclass
+		manager.inject(new Injected());
+		assertEquals(4, mock.count("createInjectionTarget"));
+		manager.inject(new Plain());
+		assertEquals(5, mock.count("createInjectionTarget"));
+	}
+
+	static class Plain
+	{
+		String value;
+	}
+
+	static class Injected
+	{
+		@Inject
+		Object service;
+	}
+
+	static class Initialized extends Injected
+	{
+		@Inject
+		void init(Object service)
+		{
+		}
+	}
+
+	static class ParameterlessInitialized
+	{
+		@Inject
+		void init()
+		{
+		}
+	}
+
+	static class InjectedAndInitialized extends Injected
+	{
+		@Inject
+		void init()
+		{
+		}
+	}
+
+	static class Reinitialized extends Initialized
+	{
+		@Override
+		void init(Object service)
+		{
+		}
+	}
+
+	static class InjectedComponent extends WebMarkupContainer
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		Object service;
+
+		public InjectedComponent(String id)
+		{
+			super(id);
+		}
+	}
+
+	static class LazyInjected extends Injected
+	{
+		@Inject
+		@Lazy
+		Runnable task;
+	}
+}
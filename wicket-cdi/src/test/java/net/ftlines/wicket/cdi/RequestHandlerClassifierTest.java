@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.wicket.request.handler.BufferedResponseRequestHandler;
+import org.apache.wicket.request.handler.RenderPageRequestHandler;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.http.handler.RedirectRequestHandler;
+import org.junit.Test;
+
+/**
+ * Tests {@link RequestHandlerClassifier}
+ *
+ * @author igor
+ */
+public class RequestHandlerClassifierTest
+{
+	/**
+	 * Resource and utility handlers are not conversational by default, page handlers are
+	 */
+	@Test
+	public void defaults()
+	{
+		RequestHandlerClassifier classifier = new RequestHandlerClassifier();
+
+		assertTrue(classifier.isConversational(RenderPageRequestHandler.class));
+		assertFalse(classifier.isConversational(ResourceReferenceRequestHandler.class));
+		assertFalse(classifier.isConversational(BufferedResponseRequestHandler.class));
+		assertFalse(classifier.isConversational(RedirectRequestHandler.class));
+	}
+
+	/**
+	 * Types can be excluded and included again
+	 */
+	@Test
+	public void excludeAndInclude()
+	{
+		RequestHandlerClassifier classifier = new RequestHandlerClassifier().exclude(
+			RenderPageRequestHandler.class).include(RedirectRequestHandler.class);
+
+		assertFalse(classifier.isConversational(RenderPageRequestHandler.class));
+		assertTrue(classifier.isConversational(RedirectRequestHandler.class));
+	}
+}
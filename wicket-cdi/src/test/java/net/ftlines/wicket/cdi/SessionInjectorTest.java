@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.wicket.Session;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SessionInjector}
+ *
+ * @author igor
+ */
+public class SessionInjectorTest
+{
+	private MockBeanManager mock;
+	private CdiContainer container;
+	private WicketTester tester;
+
+	@Before
+	public void before()
+	{
+		mock = new MockBeanManager();
+		container = new CdiContainer(mock.getManager(),
+			new NonContextualManager(mock.getManager()));
+		tester = new WicketTester(new MockApplication());
+	}
+
+	@After
+	public void after()
+	{
+		tester.destroy();
+		NonContextual.undeploy(mock.getManager());
+	}
+
+	/**
+	 * Sessions are injected when they are created unless injection is deferred
+	 */
+	@Test
+	public void sessionsAreInjectedOnCreation()
+	{
+		Session session = tester.getSession();
+
+		new SessionInjector(container, new InjectionFilter(), true).onCreated(session);
+		assertEquals(0, mock.count("postConstruct"));
+
+		new SessionInjector(container, new InjectionFilter()).onCreated(session);
+		assertEquals(1, mock.count("postConstruct"));
+	}
+
+	/**
+	 * Deferred sessions are injected once, when the session store binds them
+	 */
+	@Test
+	public void deferredSessionsAreInjectedOnBind()
+	{
+		SessionInjector injector = new SessionInjector(container, new InjectionFilter(), true);
+		InjectingSessionStore store = new InjectingSessionStore(
+			tester.getApplication().getSessionStore(), injector);
+		Session session = tester.getSession();
+
+		store.bind(tester.getRequestCycle().getRequest(), session);
+		store.bind(tester.getRequestCycle().getRequest(), session);
+
+		assertEquals(1, mock.count("postConstruct"));
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.apache.wicket.application.DefaultClassResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link WarmUp}
+ *
+ * @author igor
+ */
+public class WarmUpTest
+{
+	private MockBeanManager mock;
+	private NonContextualManager manager;
+
+	@Before
+	public void before()
+	{
+		mock = new MockBeanManager();
+		manager = new NonContextualManager(mock.getManager());
+	}
+
+	@After
+	public void after()
+	{
+		NonContextual.undeploy(mock.getManager());
+	}
+
+	/**
+	 * Background warm-up prepares every class once and reports readiness when done
+	 */
+	@Test
+	public void preparesClassesInBackground() throws Exception
+	{
+		WarmUp warmUp = new WarmUp().addClasses(First.class, Second.class).setThreads(2);
+		warmUp.start(null, new DefaultClassResolver(), manager, null);
+
+		assertTrue(warmUp.await(10, TimeUnit.SECONDS));
+		assertTrue(warmUp.isReady());
+		assertEquals(2, warmUp.getPrepared());
+		assertTrue(warmUp.getDuration() >= 0);
+		assertEquals(2, mock.count("createInjectionTarget"));
+		assertEquals(2, mock.count("validate"));
+	}
+
+	/**
+	 * Classes that fail are reported without keeping warm-up from finishing, and classes listed in
+	 * the index and added again are prepared once
+	 */
+	@Test
+	public void failuresAreReportedSeparately() throws Exception
+	{
+		final AtomicInteger prepares = new AtomicInteger();
+		NonContextualManager failing = new NonContextualManager(mock.getManager())
+		{
+			@Override
+			public Set<String> prepare(Class<?> clazz)
+			{
+				prepares.incrementAndGet();
+				if (clazz == Second.class)
+				{
+					throw new IllegalStateException("unsatisfied");
+				}
+				return super.prepare(clazz);
+			}
+		};
+		InjectionIndex index = InjectionIndex.parse(new StringReader(First.class.getName() +
+			" fields=" + First.class.getName() + "#service initializers=false callbacks=false\n"));
+
+		WarmUp warmUp = new WarmUp().addClasses(First.class, Second.class);
+		warmUp.start(null, new DefaultClassResolver(), failing, index);
+
+		assertTrue(warmUp.await(10, TimeUnit.SECONDS));
+		assertTrue(warmUp.isReady());
+		assertEquals(1, warmUp.getPrepared());
+		assertEquals(2, prepares.get());
+		assertEquals(1, warmUp.getFailures().size());
+		assertEquals("unsatisfied", warmUp.getFailures().get(0).getMessage());
+	}
+
+	static class First
+	{
+		@Inject
+		Object service;
+	}
+
+	static class Second
+	{
+		@Inject
+		Object service;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ftlines.wicket.cdi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.Extension;
+import javax.servlet.http.HttpServletRequest;
+
+import org.jboss.weld.bootstrap.WeldBootstrap;
+import org.jboss.weld.bootstrap.api.Environments;
+import org.jboss.weld.bootstrap.api.ServiceRegistry;
+import org.jboss.weld.bootstrap.api.helpers.SimpleServiceRegistry;
+import org.jboss.weld.bootstrap.spi.BeanDeploymentArchive;
+import org.jboss.weld.bootstrap.spi.BeansXml;
+import org.jboss.weld.bootstrap.spi.Deployment;
+import org.jboss.weld.bootstrap.spi.Metadata;
+import org.jboss.weld.context.http.HttpRequestContext;
+import org.jboss.weld.ejb.spi.EjbDescriptor;
+import org.jboss.weld.resources.DefaultResourceLoader;
+import org.jboss.weld.resources.spi.ResourceLoader;
+
+/**
+ * Boots Weld with a fixed set of bean classes so tests can exercise the real contexts, and stands
+ * in for the servlet listener that activates the request context
+ *
+ * @author igor
+ */
+class WeldDeployment implements Deployment
+{
+	private final SimpleServiceRegistry services = new SimpleServiceRegistry();
+	private final List<String> beanClasses = new ArrayList<String>();
+	private final Archive archive = new Archive();
+	private final WeldBootstrap bootstrap = new WeldBootstrap();
+	private final BeanManager manager;
+
+	/**
+	 * Constructor
+	 *
+	 * @param beanClasses
+	 *            classes deployed as beans
+	 */
+	public WeldDeployment(Class<?>... beanClasses)
+	{
+		for (Class<?> beanClass : beanClasses)
+		{
+			this.beanClasses.add(beanClass.getName());
+		}
+		services.add(ResourceLoader.class, DefaultResourceLoader.INSTANCE);
+
+		bootstrap.startContainer(Environments.SE, this)
+			.startInitialization()
+			.deployBeans()
+			.validateBeans()
+			.endInitialization();
+		manager = bootstrap.getManager(archive);
+	}
+
+	/**
+	 * @return bean manager of the deployment
+	 */
+	public BeanManager getManager()
+	{
+		return manager;
+	}
+
+	/**
+	 * Creates a contextual reference
+	 *
+	 * @param type
+	 * @return reference
+	 */
+	public <T> T getReference(Class<T> type)
+	{
+		Bean<?> bean = manager.resolve(manager.getBeans(type));
+		return type.cast(manager.getReference(bean, type, manager.createCreationalContext(bean)));
+	}
+
+	/**
+	 * Activates the request context for a request
+	 *
+	 * @param request
+	 */
+	public void beginRequest(HttpServletRequest request)
+	{
+		HttpRequestContext context = getReference(HttpRequestContext.class);
+		context.associate(request);
+		context.activate();
+	}
+
+	/**
+	 * Deactivates the request context of a request, destroying its beans
+	 *
+	 * @param request
+	 */
+	public void endRequest(HttpServletRequest request)
+	{
+		HttpRequestContext context = getReference(HttpRequestContext.class);
+		context.invalidate();
+		context.deactivate();
+		context.dissociate(request);
+	}
+
+	/**
+	 * Shuts Weld down and, like the application would, releases the noncontextual helpers of the
+	 * deployment. Bean managers of deployments with the same archive are equal, so the helpers
+	 * would otherwise be reused by the next deployment.
+	 */
+	public void shutdown()
+	{
+		NonContextual.undeploy(manager);
+		bootstrap.shutdown();
+	}
+
+	public Collection<BeanDeploymentArchive> getBeanDeploymentArchives()
+	{
+		return Collections.<BeanDeploymentArchive> singleton(archive);
+	}
+
+	public BeanDeploymentArchive loadBeanDeploymentArchive(Class<?> beanClass)
+	{
+		return archive;
+	}
+
+	public Iterable<Metadata<Extension>> getExtensions()
+	{
+		return Collections.emptySet();
+	}
+
+	public ServiceRegistry getServices()
+	{
+		return services;
+	}
+
+	/**
+	 * The only archive of the deployment
+	 *
+	 * @author igor
+	 */
+	private class Archive implements BeanDeploymentArchive
+	{
+		public Collection<BeanDeploymentArchive> getBeanDeploymentArchives()
+		{
+			return Collections.emptySet();
+		}
+
+		public Collection<String> getBeanClasses()
+		{
+			return beanClasses;
+		}
+
+		public BeansXml getBeansXml()
+		{
+			return BeansXml.EMPTY_BEANS_XML;
+		}
+
+		public Collection<EjbDescriptor<?>> getEjbs()
+		{
+			return Collections.emptySet();
+		}
+
+		public ServiceRegistry getServices()
+		{
+			return services;
+		}
+
+		public String getId()
+		{
+			return WeldDeployment.class.getName();
+		}
+	}
+}